@@ -0,0 +1,49 @@
+package fi.vm.sade.javautils.httpclient;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * OphRequestParameters.cloneParameters() is called for every request created by OphHttpClient.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OphRequestParametersBenchmark {
+    @Param({"0", "4", "32"})
+    public int headerAndParamCount;
+
+    private OphRequestParameters parameters;
+
+    @Setup
+    public void setup() {
+        parameters = new OphRequestParameters();
+        parameters.method = OphHttpClient.Method.GET;
+        parameters.callerId = "1.2.246.562.10.00000000001.benchmark";
+        parameters.acceptMediaTypes.add(OphHttpClient.JSON);
+        parameters.expectStatus.add(200);
+        for (int i = 0; i < headerAndParamCount; i++) {
+            parameters.headers.add("X-Header-" + i, "value" + i);
+            parameters.params.add("param" + (i % 8), "value" + i);
+        }
+    }
+
+    @Benchmark
+    public OphRequestParameters cloneParameters() {
+        return parameters.cloneParameters();
+    }
+}
@@ -0,0 +1,79 @@
+package fi.vm.sade.javautils.httpclient.apache;
+
+import fi.vm.sade.javautils.httpclient.OphRequestParameters;
+import fi.vm.sade.javautils.httpcommon.codec.BufferPool;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading response body as text. Sizes up to oppilaitosnumero-koodisto (~7,5MB). With and without a BufferPool,
+ * EntityUtils.toString as reference.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx2G"})
+public class ApacheOphHttpResponseBenchmark {
+    @Param({"1024", "65536", "8388608"})
+    public int size;
+
+    private byte[] body;
+    private OphRequestParameters requestParameters;
+    private BufferPool bufferPool;
+
+    @Setup
+    public void setup() {
+        StringBuilder json = new StringBuilder(size + 100).append('[');
+        for (int i = 0; json.length() < size; i++) {
+            json.append("{\"koodiUri\":\"oppilaitosnumero_").append(i).append("\",\"nimi\":\"Yliopisto ä ").append(i).append("\"},");
+        }
+        json.setLength(size - 1);
+        json.append(']');
+        body = json.toString().getBytes(StandardCharsets.UTF_8);
+        requestParameters = new OphRequestParameters();
+        requestParameters.url = "http://localhost/koodisto-service/rest/json/oppilaitosnumero/koodi";
+        bufferPool = new BufferPool(64 * 1024, 4);
+    }
+
+    private HttpResponse createResponse() {
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.setEntity(new ByteArrayEntity(body, ContentType.APPLICATION_JSON));
+        return response;
+    }
+
+    @Benchmark
+    public String asText() {
+        return new ApacheOphHttpResponse(requestParameters, createResponse(), null, null).asText();
+    }
+
+    @Benchmark
+    public String asTextPooled() {
+        return new ApacheOphHttpResponse(requestParameters, createResponse(), null, bufferPool).asText();
+    }
+
+    @Benchmark
+    public String entityUtilsReference() throws IOException {
+        return EntityUtils.toString(createResponse().getEntity(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,89 @@
+package fi.vm.sade.properties;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * OphProperties.url() with realistic amount of url.* keys, ${host} references and parameter shapes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OphPropertiesBenchmark {
+    @Param({"100", "5000"})
+    public int keyCount;
+
+    private OphProperties properties;
+    private String[] keys;
+    private Map<String, Object> namedParams;
+    private Map<String, Object> listParams;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        properties = new OphProperties();
+        properties.addDefault("host-virkailija", "https://virkailija.opintopolku.fi");
+        keys = new String[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            keys[i] = "service" + (i % 50) + ".resource" + i;
+            properties.addDefault(keys[i], "${host-virkailija}/service" + (i % 50) + "/rest/resource" + i + "/$1/$oid");
+        }
+        properties.reload();
+
+        namedParams = new LinkedHashMap<>();
+        namedParams.put("oid", "1.2.246.562.10.00000000001");
+        namedParams.put("hakuOid", "1.2.246.562.29.00000000000000000001");
+
+        listParams = new LinkedHashMap<>();
+        listParams.put("oid", "1.2.246.562.10.00000000001");
+        listParams.put("tila", Arrays.asList("AKTIIVINEN", "PASSIIVINEN", "SUUNNITELTU"));
+        listParams.put("hakusana", "Helsingin yliopisto");
+    }
+
+    private String nextKey() {
+        next = (next + 1) % keys.length;
+        return keys[next];
+    }
+
+    @Benchmark
+    public String urlWithoutParams() {
+        return properties.url(nextKey());
+    }
+
+    @Benchmark
+    public String urlPositionalParam() {
+        return properties.url(nextKey(), "1.2.246.562.24.00000000001");
+    }
+
+    @Benchmark
+    public String urlNamedParams() {
+        return properties.url(nextKey(), "1.2.246.562.24.00000000001", namedParams);
+    }
+
+    @Benchmark
+    public String urlMapWithListValues() {
+        return properties.url(nextKey(), "1.2.246.562.24.00000000001", listParams);
+    }
+
+    @Benchmark
+    public String require() {
+        return properties.require(nextKey(), "1.2.246.562.24.00000000001");
+    }
+}
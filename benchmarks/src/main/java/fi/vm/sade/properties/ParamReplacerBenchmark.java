@@ -0,0 +1,69 @@
+package fi.vm.sade.properties;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ParamReplacer.replaceParams() as such (no encoding) and through UrlResolver (encoding + query string).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParamReplacerBenchmark {
+    private static final String URL = "https://virkailija.opintopolku.fi/organisaatio-service/rest/$1/$oid/children";
+
+    private ParamReplacer plain;
+    private ParamReplacer urlResolver;
+    private Map<String, Object> namedParams;
+    private Map<String, Object> listParams;
+
+    @Setup
+    public void setup() {
+        plain = new ParamReplacer();
+        urlResolver = new OphProperties().urls();
+
+        namedParams = new LinkedHashMap<>();
+        namedParams.put("oid", "1.2.246.562.10.00000000001");
+
+        listParams = new LinkedHashMap<>();
+        listParams.put("oid", "1.2.246.562.10.00000000001");
+        listParams.put("tila", Arrays.asList("AKTIIVINEN", "PASSIIVINEN", "SUUNNITELTU"));
+        listParams.put("hakusana", "Helsingin yliopisto");
+    }
+
+    @Benchmark
+    public String positional() {
+        return plain.replaceParams(URL, "v1", "1.2.246.562.10.00000000001");
+    }
+
+    @Benchmark
+    public String named() {
+        return plain.replaceParams(URL, "v1", namedParams);
+    }
+
+    @Benchmark
+    public String encodedNamed() {
+        return urlResolver.replaceParams(URL, "v1", namedParams);
+    }
+
+    @Benchmark
+    public String encodedListValues() {
+        return urlResolver.replaceParams(URL, "v1", listParams);
+    }
+}
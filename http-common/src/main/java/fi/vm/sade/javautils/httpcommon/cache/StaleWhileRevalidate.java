@@ -0,0 +1,160 @@
+package fi.vm.sade.javautils.httpcommon.cache;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.impl.client.cache.AsynchronousValidationRequest;
+import org.apache.http.impl.client.cache.SchedulingStrategy;
+import org.apache.http.impl.execchain.ClientExecChain;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lets the caching client serve a cached response for graceSeconds after it has gone stale while the entry is
+ * revalidated in the background, see ApacheHttpClientBuilder.setStaleWhileRevalidate() in httpclient and
+ * OphHttpClient.Builder.staleWhileRevalidate() in java-http.
+ *
+ * The grace window is added to cacheable responses as a stale-while-revalidate Cache-Control directive unless the
+ * server already sent one or forbids serving stale responses (no-cache, no-store, must-revalidate, proxy-revalidate).
+ * The caching client schedules at most one revalidation per cache entry. Revalidations run in a bounded thread pool,
+ * when it is full the entry is revalidated on the next request.
+ *
+ * An instance belongs to one client and its threads are stopped when the client is closed.
+ */
+public class StaleWhileRevalidate implements SchedulingStrategy {
+    private static final AtomicInteger POOL_NUMBER = new AtomicInteger();
+
+    private final int graceSeconds;
+    private final ThreadPoolExecutor executor;
+    private final ThreadLocal<int[]> refreshStatus = new ThreadLocal<>();
+    private final AtomicLong successes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public StaleWhileRevalidate(int graceSeconds) {
+        this(graceSeconds, 1, 100);
+    }
+
+    /**
+     * @param maxRefreshThreads threads revalidating entries in the background
+     * @param maxQueuedRefreshes revalidations waiting for a thread, more are not scheduled
+     */
+    public StaleWhileRevalidate(int graceSeconds, int maxRefreshThreads, int maxQueuedRefreshes) {
+        if (graceSeconds <= 0) {
+            throw new IllegalArgumentException("graceSeconds must be positive: " + graceSeconds);
+        }
+        this.graceSeconds = graceSeconds;
+        String name = "OphHttpClient-revalidate-" + POOL_NUMBER.incrementAndGet() + "-";
+        AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor(maxRefreshThreads, maxRefreshThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(maxQueuedRefreshes), runnable -> {
+            Thread thread = new Thread(runnable, name + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void schedule(AsynchronousValidationRequest request) {
+        try {
+            executor.execute(() -> refresh(request));
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            throw e;
+        }
+    }
+
+    private void refresh(AsynchronousValidationRequest request) {
+        int[] status = {0};
+        refreshStatus.set(status);
+        try {
+            request.run();
+        } finally {
+            refreshStatus.remove();
+        }
+        // the request logs and swallows errors, status is 0 if the backend could not be reached
+        if (status[0] > 0 && status[0] < 500) {
+            successes.incrementAndGet();
+        } else {
+            failures.incrementAndGet();
+        }
+    }
+
+    /**
+     * Wraps the backend of the caching client so that the grace window is added before the response is cached.
+     * The client has to be built with this as its scheduling strategy and decorateMainExec() returning the decorated
+     * chain.
+     */
+    public ClientExecChain decorate(ClientExecChain backend) {
+        return (route, request, context, execAware) -> {
+            CloseableHttpResponse response = backend.execute(route, request, context, execAware);
+            int[] status = refreshStatus.get();
+            if (status != null) {
+                status[0] = response.getStatusLine().getStatusCode();
+            }
+            String method = request.getRequestLine().getMethod();
+            if ("GET".equals(method) || "HEAD".equals(method)) {
+                addGraceWindow(response);
+            }
+            return response;
+        };
+    }
+
+    private void addGraceWindow(HttpResponse response) {
+        Header[] cacheControls = response.getHeaders("Cache-Control");
+        if (cacheControls.length == 0 && response.getFirstHeader("Expires") == null) {
+            return;
+        }
+        for (Header cacheControl : cacheControls) {
+            for (HeaderElement element : cacheControl.getElements()) {
+                switch (element.getName().toLowerCase()) {
+                    case "no-cache":
+                    case "no-store":
+                    case "must-revalidate":
+                    case "proxy-revalidate":
+                    case "stale-while-revalidate":
+                        return;
+                    default:
+                }
+            }
+        }
+        response.addHeader("Cache-Control", "stale-while-revalidate=" + graceSeconds);
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    public int getGraceSeconds() {
+        return graceSeconds;
+    }
+
+    /**
+     * @return background revalidations that got a response from the server, including 304 Not Modified
+     */
+    public long getRefreshSuccesses() {
+        return successes.get();
+    }
+
+    /**
+     * @return background revalidations that failed with an exception or a 5xx response
+     */
+    public long getRefreshFailures() {
+        return failures.get();
+    }
+
+    /**
+     * @return revalidations that were not scheduled because the thread pool and its queue were full
+     */
+    public long getRefreshesRejected() {
+        return rejected.get();
+    }
+}
@@ -0,0 +1,34 @@
+package fi.vm.sade.javautils.httpcommon.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Type;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+
+/**
+ * Decodes response bodies for as() and mapTo() of httpclient OphHttpResponse and java-http OphHttpResponseHandler
+ * straight from the response stream, without reading the body into a String first. JacksonBodyCodec and
+ * GsonBodyCodec are provided, jackson-databind or gson has to be added as a dependency. Set the codec on the client
+ * so that all of its requests use it:
+ * <pre>
+ * client.codec(new JacksonBodyCodec(objectMapper)); // httpclient
+ * new OphHttpClient.Builder("callerid").codec(new GsonBodyCodec(gson)).build(); // java-http
+ * </pre>
+ */
+public interface BodyCodec {
+    /**
+     * Reads one value of the given type. The caller closes the stream.
+     * @param charset charset of the Content-Type header, null if the response didn't have one
+     */
+    <T> T decode(InputStream in, Charset charset, Type type) throws IOException;
+
+    /**
+     * Reads the elements of a top level JSON array, or newline delimited values (NDJSON), one at a time as the
+     * iterator is advanced. Parse errors are thrown from the iterator as RuntimeExceptions.
+     * @param charset charset of the Content-Type header, null if the response didn't have one
+     */
+    default <T> Iterator<T> decodeElements(InputStream in, Charset charset, Type elementType) throws IOException {
+        throw new UnsupportedOperationException(getClass().getName() + " doesn't support decoding elements");
+    }
+}
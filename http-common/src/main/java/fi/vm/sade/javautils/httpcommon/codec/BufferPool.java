@@ -0,0 +1,40 @@
+package fi.vm.sade.javautils.httpcommon.codec;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Bounded pool of read buffers for ResponseBodies, shared by all the threads using a client. At most maxBuffers
+ * buffers are kept between requests. If the pool is empty a new buffer is allocated, and a buffer released to a full
+ * pool is left to the garbage collector.
+ */
+public final class BufferPool {
+    private final int bufferSize;
+    private final ArrayBlockingQueue<byte[]> buffers;
+
+    public BufferPool(int bufferSize, int maxBuffers) {
+        if (bufferSize <= 0) throw new IllegalArgumentException("bufferSize <= 0");
+        if (maxBuffers <= 0) throw new IllegalArgumentException("maxBuffers <= 0");
+        this.bufferSize = bufferSize;
+        this.buffers = new ArrayBlockingQueue<>(maxBuffers);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Number of buffers currently waiting in the pool
+     */
+    public int getPooledBuffers() {
+        return buffers.size();
+    }
+
+    byte[] acquire() {
+        byte[] buf = buffers.poll();
+        return buf != null ? buf : new byte[bufferSize];
+    }
+
+    void release(byte[] buf) {
+        buffers.offer(buf);
+    }
+}
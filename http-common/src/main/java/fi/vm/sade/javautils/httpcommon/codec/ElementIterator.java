@@ -0,0 +1,115 @@
+package fi.vm.sade.javautils.httpcommon.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Lazily decoded elements of a JSON array or NDJSON response, see asIterator() of httpclient OphHttpResponse and
+ * java-http OphHttpResponseHandler. The connection is released when the last element has been read or a decoding
+ * error is thrown. If you may stop before that, close the iterator or its stream(), e.g. with try-with-resources.
+ */
+public class ElementIterator<T> implements Iterator<T>, AutoCloseable {
+    private final Iterator<T> elements;
+    private final InputStream stream;
+    private final Runnable release;
+    private boolean closed = false;
+
+    /**
+     * @param stream the response stream, closed after the last element so that the rest of the body is read and the
+     *               connection can be reused. null if there is nothing to read.
+     * @param release closes the response
+     */
+    public ElementIterator(Iterator<T> elements, InputStream stream, Runnable release) {
+        this.elements = elements;
+        this.stream = stream;
+        this.release = release;
+    }
+
+    /**
+     * Starts decoding the elements with codec.decodeElements(), releases the response if that fails
+     * @param url of the response for error messages, null if not known
+     */
+    public static <T> ElementIterator<T> decode(BodyCodec codec, InputStream stream, Charset charset, TypeRef<T> elementType,
+                                                String url, Runnable release) {
+        try {
+            Iterator<T> elements = codec.decodeElements(stream, charset, elementType.getType());
+            return new ElementIterator<>(elements, stream, release);
+        } catch (IOException e) {
+            release.run();
+            throw new RuntimeException("Error decoding " + elementType + " elements" + (url != null ? " from url: " + url : ""), e);
+        } catch (RuntimeException e) {
+            release.run();
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (closed) {
+            return false;
+        }
+        boolean hasNext;
+        try {
+            hasNext = elements.hasNext();
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+        if (!hasNext) {
+            finish();
+        }
+        return hasNext;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        try {
+            return elements.next();
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Sequential stream of the remaining elements, closing the stream closes the iterator
+     */
+    public Stream<T> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED), false)
+                .onClose(this::close);
+    }
+
+    /**
+     * Releases the connection without reading the rest of the response
+     */
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            release.run();
+        }
+    }
+
+    private void finish() {
+        try {
+            if (stream != null) {
+                stream.close();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            close();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package fi.vm.sade.javautils.httpcommon.codec;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.Strictness;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Type;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * BodyCodec for Gson. Bodies without a charset are read as UTF-8. Parse errors are thrown as IOExceptions.
+ */
+public class GsonBodyCodec implements BodyCodec {
+    private final Gson gson;
+
+    public GsonBodyCodec() {
+        this(new Gson());
+    }
+
+    public GsonBodyCodec(Gson gson) {
+        this.gson = gson;
+    }
+
+    @Override
+    public <T> T decode(InputStream in, Charset charset, Type type) throws IOException {
+        try {
+            // JsonReader buffers the input itself
+            return gson.fromJson(new InputStreamReader(in, charset != null ? charset : StandardCharsets.UTF_8), type);
+        } catch (JsonParseException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> Iterator<T> decodeElements(InputStream in, Charset charset, Type elementType) throws IOException {
+        TypeAdapter<T> adapter = (TypeAdapter<T>) gson.getAdapter(TypeToken.get(elementType));
+        JsonReader reader = gson.newJsonReader(new InputStreamReader(in, charset != null ? charset : StandardCharsets.UTF_8));
+        // lenient reader accepts several root level values (NDJSON)
+        reader.setStrictness(Strictness.LENIENT);
+        JsonToken first;
+        try {
+            first = reader.peek();
+        } catch (EOFException e) {
+            // empty body
+            return Collections.emptyIterator();
+        }
+        boolean array = first == JsonToken.BEGIN_ARRAY;
+        if (array) {
+            reader.beginArray();
+        }
+        return new Iterator<T>() {
+            @Override
+            public boolean hasNext() {
+                try {
+                    return array ? reader.hasNext() : reader.peek() != JsonToken.END_DOCUMENT;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    return adapter.read(reader);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+}
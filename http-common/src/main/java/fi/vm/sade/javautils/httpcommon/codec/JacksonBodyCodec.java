@@ -0,0 +1,50 @@
+package fi.vm.sade.javautils.httpcommon.codec;
+
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.Type;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+/**
+ * BodyCodec for Jackson. UTF-8 bodies are parsed from bytes, other charsets through a Reader.
+ */
+public class JacksonBodyCodec implements BodyCodec {
+    private final ObjectMapper mapper;
+
+    public JacksonBodyCodec() {
+        this(new ObjectMapper());
+    }
+
+    public JacksonBodyCodec(ObjectMapper mapper) {
+        this.mapper = mapper;
+    }
+
+    @Override
+    public <T> T decode(InputStream in, Charset charset, Type type) throws IOException {
+        JavaType javaType = mapper.getTypeFactory().constructType(type);
+        if (charset == null || StandardCharsets.UTF_8.equals(charset)) {
+            // Jackson detects UTF-16 and UTF-32 from the bytes as well
+            return mapper.readValue(in, javaType);
+        }
+        return mapper.readValue(new InputStreamReader(in, charset), javaType);
+    }
+
+    /**
+     * MappingIterator unwraps a top level array and reads root level values one after another otherwise
+     */
+    @Override
+    public <T> Iterator<T> decodeElements(InputStream in, Charset charset, Type elementType) throws IOException {
+        ObjectReader reader = mapper.readerFor(mapper.getTypeFactory().constructType(elementType));
+        if (charset == null || StandardCharsets.UTF_8.equals(charset)) {
+            return reader.readValues(in);
+        }
+        return reader.readValues(new InputStreamReader(in, charset));
+    }
+}
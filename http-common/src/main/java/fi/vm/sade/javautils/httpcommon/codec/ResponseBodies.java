@@ -0,0 +1,116 @@
+package fi.vm.sade.javautils.httpcommon.codec;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.ParseException;
+import org.apache.http.entity.ContentType;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.Arrays;
+
+/**
+ * Reading response bodies into memory and resolving their charset
+ */
+public final class ResponseBodies {
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+    // Content-Length is only a hint, larger bodies grow the buffer while they are read
+    static final int MAX_PRESIZE = 1024 * 1024;
+    private static final int MAX_BODY_SIZE = Integer.MAX_VALUE - 8;
+
+    private ResponseBodies() {
+    }
+
+    /**
+     * Reads the entity as text using charset from Content-Type, platform default if it is missing or unsupported
+     * @param pool for reading bodies that fit in its buffers, null to allocate a buffer for every body
+     */
+    public static String toString(HttpEntity entity, BufferPool pool) throws IOException { // IO
+        if (entity == null) {
+            return "";
+        }
+        try (InputStream stream = entity.getContent()) {
+            return toString(stream, entity.getContentLength(), charsetOrDefault(entity), pool);
+        }
+    }
+
+    /**
+     * Reads the whole stream in blocks. Buffer is presized from contentLength (-1 if unknown), but the stream is
+     * always read until the end.
+     * @param pool for reading bodies that fit in its buffers, null to allocate a buffer for every body
+     */
+    public static String toString(InputStream stream, long contentLength, Charset charset, BufferPool pool) throws IOException { // IO
+        byte[] pooled = pool != null && contentLength <= pool.getBufferSize() ? pool.acquire() : null;
+        try {
+            Body body = read(stream, pooled != null ? pooled : new byte[initialSize(contentLength)]);
+            return new String(body.buf, 0, body.length, charset);
+        } finally {
+            if (pooled != null) {
+                pool.release(pooled);
+            }
+        }
+    }
+
+    /**
+     * Reads the whole stream, presizing the buffer from contentLength (-1 if unknown)
+     */
+    public static byte[] toByteArray(InputStream stream, long contentLength) throws IOException { // IO
+        Body body = read(stream, new byte[initialSize(contentLength)]);
+        return body.length == body.buf.length ? body.buf : Arrays.copyOf(body.buf, body.length);
+    }
+
+    /**
+     * Charset from Content-Type header, null if it is missing or unsupported
+     */
+    public static Charset charset(HttpEntity entity) {
+        try {
+            ContentType contentType = ContentType.get(entity);
+            return contentType != null ? contentType.getCharset() : null;
+        } catch (ParseException | UnsupportedCharsetException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Charset from Content-Type header, platform default if it is missing or unsupported
+     */
+    public static Charset charsetOrDefault(HttpEntity entity) {
+        Charset charset = charset(entity);
+        return charset != null ? charset : Charset.defaultCharset();
+    }
+
+    static int initialSize(long contentLength) {
+        return contentLength < 0 ? DEFAULT_BUFFER_SIZE : (int) Math.min(contentLength, MAX_PRESIZE);
+    }
+
+    private static Body read(InputStream stream, byte[] buf) throws IOException {
+        int length = 0;
+        int read;
+        while ((read = stream.read(buf, length, buf.length - length)) != -1) {
+            length += read;
+            if (length == buf.length) {
+                int next = stream.read();
+                if (next == -1) {
+                    break;
+                }
+                if (buf.length == MAX_BODY_SIZE) {
+                    throw new IOException("Response body is too large");
+                }
+                buf = Arrays.copyOf(buf, (int) Math.min(Math.max(buf.length * 2L, DEFAULT_BUFFER_SIZE), MAX_BODY_SIZE));
+                buf[length++] = (byte) next;
+            }
+        }
+        return new Body(buf, length);
+    }
+
+    private static final class Body {
+        private final byte[] buf;
+        private final int length;
+
+        private Body(byte[] buf, int length) {
+            this.buf = buf;
+            this.length = length;
+        }
+    }
+}
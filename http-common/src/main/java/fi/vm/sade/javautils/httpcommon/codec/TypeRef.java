@@ -0,0 +1,37 @@
+package fi.vm.sade.javautils.httpcommon.codec;
+
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+
+/**
+ * Keeps the generic type of the response for mapTo(), e.g. new TypeRef&lt;List&lt;OrganisaatioDto&gt;&gt;() {}
+ */
+public abstract class TypeRef<T> {
+    private final Type type;
+
+    protected TypeRef() {
+        Type superclass = getClass().getGenericSuperclass();
+        if (!(superclass instanceof ParameterizedType)) {
+            throw new IllegalArgumentException("TypeRef needs a type argument, e.g. new TypeRef<List<String>>() {}");
+        }
+        this.type = ((ParameterizedType) superclass).getActualTypeArguments()[0];
+    }
+
+    private TypeRef(Class<T> type) {
+        this.type = type;
+    }
+
+    public static <T> TypeRef<T> of(Class<T> type) {
+        return new TypeRef<T>(type) {
+        };
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    @Override
+    public String toString() {
+        return type.getTypeName();
+    }
+}
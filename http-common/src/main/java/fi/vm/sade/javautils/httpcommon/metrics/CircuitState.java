@@ -0,0 +1,6 @@
+package fi.vm.sade.javautils.httpcommon.metrics;
+
+/**
+ * State of a circuit breaker circuit, see HttpClientMetrics.circuitBreakerStateChanged()
+ */
+public enum CircuitState { CLOSED, OPEN, HALF_OPEN }
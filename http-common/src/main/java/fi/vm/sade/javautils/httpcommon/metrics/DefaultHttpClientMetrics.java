@@ -0,0 +1,148 @@
+package fi.vm.sade.javautils.httpcommon.metrics;
+
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps latency histograms, status code counts, failures, retries and hedges per urlKey in memory and reads
+ * connection pool stats on demand. Use JmxHttpClientMetricsExporter to publish them over JMX.
+ */
+public class DefaultHttpClientMetrics implements HttpClientMetrics {
+    private final ConcurrentHashMap<String, UrlKeyMetrics> urlKeys = new ConcurrentHashMap<>();
+    private final List<PoolingHttpClientConnectionManager> pools = new CopyOnWriteArrayList<>();
+    private final ConcurrentHashMap<String, CircuitState> circuitBreakerStates = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> circuitBreakerOpenings = new ConcurrentHashMap<>();
+
+    @Override
+    public void connectionPool(PoolingHttpClientConnectionManager pool) {
+        pools.add(pool);
+    }
+
+    @Override
+    public void requestCompleted(String urlKey, String method, int statusCode, long durationNanos) {
+        UrlKeyMetrics metrics = metrics(urlKey);
+        metrics.latency.record(durationNanos);
+        metrics.statusCounts.computeIfAbsent(statusCode, code -> new LongAdder()).increment();
+    }
+
+    @Override
+    public void requestFailed(String urlKey, String method, Exception exception, long durationNanos) {
+        UrlKeyMetrics metrics = metrics(urlKey);
+        metrics.latency.record(durationNanos);
+        metrics.failures.increment();
+    }
+
+    @Override
+    public void requestRetried(String urlKey, String method) {
+        metrics(urlKey).retries.increment();
+    }
+
+    @Override
+    public void requestHedged(String urlKey, String method) {
+        metrics(urlKey).hedges.increment();
+    }
+
+    @Override
+    public void circuitBreakerStateChanged(String key, CircuitState state) {
+        circuitBreakerStates.put(key, state);
+        if (state == CircuitState.OPEN) {
+            circuitBreakerOpenings.computeIfAbsent(key, k -> new LongAdder()).increment();
+        }
+    }
+
+    private UrlKeyMetrics metrics(String urlKey) {
+        return urlKeys.computeIfAbsent(urlKey, key -> new UrlKeyMetrics());
+    }
+
+    public Set<String> getUrlKeys() {
+        return new TreeSet<>(urlKeys.keySet());
+    }
+
+    /**
+     * @return null if there hasn't been any requests with urlKey
+     */
+    public UrlKeyMetrics getUrlKeyMetrics(String urlKey) {
+        return urlKeys.get(urlKey);
+    }
+
+    /**
+     * @return latest state of each circuit that has changed state
+     */
+    public Map<String, CircuitState> getCircuitBreakerStates() {
+        return new TreeMap<>(circuitBreakerStates);
+    }
+
+    /**
+     * @return how many times the circuit has opened
+     */
+    public long getCircuitBreakerOpenings(String key) {
+        LongAdder openings = circuitBreakerOpenings.get(key);
+        return openings != null ? openings.sum() : 0;
+    }
+
+    /**
+     * @return leased, pending and available connections by route (scheme://host:port)
+     */
+    public Map<String, PoolStats> getPoolStats() {
+        Map<String, PoolStats> ret = new TreeMap<>();
+        for (PoolingHttpClientConnectionManager pool : pools) {
+            for (HttpRoute route : pool.getRoutes()) {
+                ret.merge(route.getTargetHost().toURI(), pool.getStats(route), DefaultHttpClientMetrics::sum);
+            }
+        }
+        return ret;
+    }
+
+    public PoolStats getTotalPoolStats() {
+        PoolStats total = new PoolStats(0, 0, 0, 0);
+        for (PoolingHttpClientConnectionManager pool : pools) {
+            total = sum(total, pool.getTotalStats());
+        }
+        return total;
+    }
+
+    private static PoolStats sum(PoolStats a, PoolStats b) {
+        return new PoolStats(a.getLeased() + b.getLeased(), a.getPending() + b.getPending(),
+                a.getAvailable() + b.getAvailable(), a.getMax() + b.getMax());
+    }
+
+    public static class UrlKeyMetrics {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final ConcurrentHashMap<Integer, LongAdder> statusCounts = new ConcurrentHashMap<>();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder retries = new LongAdder();
+        private final LongAdder hedges = new LongAdder();
+
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        public Map<Integer, Long> getStatusCounts() {
+            Map<Integer, Long> ret = new TreeMap<>();
+            statusCounts.forEach((status, count) -> ret.put(status, count.sum()));
+            return ret;
+        }
+
+        public long getFailures() {
+            return failures.sum();
+        }
+
+        public long getRetries() {
+            return retries.sum();
+        }
+
+        public long getHedges() {
+            return hedges.sum();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package fi.vm.sade.javautils.httpcommon.metrics;
+
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+/**
+ * Instrumentation SPI the http clients report into, see ApacheHttpClientBuilder.setMetrics() in httpclient and
+ * OphHttpClient.Builder.metrics() in java-http.
+ * DefaultHttpClientMetrics is a dependency free implementation, other metrics libraries can be plugged in by
+ * implementing this interface.
+ *
+ * urlKey is the url property key or the urlKey() of the request (e.g. "organisaatio-service.organisaatio") or
+ * scheme://host:port if the request doesn't have one, so the number of distinct values stays low.
+ * Methods are called concurrently from the request threads and should not block.
+ */
+public interface HttpClientMetrics {
+    HttpClientMetrics NONE = new HttpClientMetrics() {
+    };
+
+    /**
+     * Called when the client is built with a pooling connection manager. Pool stats can be read from it at any time.
+     * Connections of java-http executeAsync() are not included.
+     */
+    default void connectionPool(PoolingHttpClientConnectionManager pool) {
+    }
+
+    /**
+     * Response was received. Duration is measured from sending the request until the response headers were read.
+     */
+    default void requestCompleted(String urlKey, String method, int statusCode, long durationNanos) {
+    }
+
+    /**
+     * Request failed without a response, e.g. connection refused or timeout.
+     */
+    default void requestFailed(String urlKey, String method, Exception exception, long durationNanos) {
+    }
+
+    /**
+     * Request is sent again because of retryOnError() (httpclient) or with a new CAS ticket (java-http).
+     */
+    default void requestRetried(String urlKey, String method) {
+    }
+
+    /**
+     * A second identical request is sent because the first one was slow, see httpclient HedgingPolicy.
+     */
+    default void requestHedged(String urlKey, String method) {
+    }
+
+    /**
+     * Circuit of a service (first part of the urlKey or scheme://host:port) changed state, see httpclient CircuitBreaker.
+     */
+    default void circuitBreakerStateChanged(String key, CircuitState state) {
+    }
+}
@@ -0,0 +1,140 @@
+package fi.vm.sade.javautils.httpcommon.metrics;
+
+import org.apache.http.pool.PoolStats;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Publishes DefaultHttpClientMetrics as a read-only MBean "fi.vm.sade.javautils:type=HttpClientMetrics,name=..."
+ * to the platform MBeanServer. Attributes are computed when read, new urlKeys and routes show up as new attributes:
+ *
+ * urlKey.count, urlKey.latencyP50Micros, urlKey.latencyP90Micros, urlKey.latencyP99Micros, urlKey.latencyMaxMicros,
+ * urlKey.latencyMeanMicros, urlKey.failures, urlKey.retries, urlKey.hedges, urlKey.status.200...,
+ * pool.route.leased, pool.route.pending, pool.route.available, pool.route.max and the same for pool.total,
+ * circuitBreaker.key.state (0 closed, 1 open, 2 half-open) and circuitBreaker.key.openings.
+ */
+public class JmxHttpClientMetricsExporter {
+    private JmxHttpClientMetricsExporter() {
+    }
+
+    public static ObjectName register(DefaultHttpClientMetrics metrics, String name) {
+        try {
+            ObjectName objectName = objectName(name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(metrics), objectName);
+            return objectName;
+        } catch (JMException e) {
+            throw new RuntimeException("Could not register http client metrics " + name, e);
+        }
+    }
+
+    public static void unregister(String name) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = objectName(name);
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            throw new RuntimeException("Could not unregister http client metrics " + name, e);
+        }
+    }
+
+    private static ObjectName objectName(String name) throws JMException {
+        return new ObjectName("fi.vm.sade.javautils:type=HttpClientMetrics,name=" + ObjectName.quote(name));
+    }
+
+    private static class MetricsMBean implements DynamicMBean {
+        private final DefaultHttpClientMetrics metrics;
+
+        MetricsMBean(DefaultHttpClientMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        private Map<String, Long> values() {
+            Map<String, Long> values = new TreeMap<>();
+            for (String urlKey : metrics.getUrlKeys()) {
+                DefaultHttpClientMetrics.UrlKeyMetrics urlKeyMetrics = metrics.getUrlKeyMetrics(urlKey);
+                LatencyHistogram latency = urlKeyMetrics.getLatency();
+                values.put(urlKey + ".count", latency.getCount());
+                values.put(urlKey + ".latencyP50Micros", latency.getPercentileMicros(50));
+                values.put(urlKey + ".latencyP90Micros", latency.getPercentileMicros(90));
+                values.put(urlKey + ".latencyP99Micros", latency.getPercentileMicros(99));
+                values.put(urlKey + ".latencyMaxMicros", latency.getMaxMicros());
+                values.put(urlKey + ".latencyMeanMicros", latency.getMeanMicros());
+                values.put(urlKey + ".failures", urlKeyMetrics.getFailures());
+                values.put(urlKey + ".retries", urlKeyMetrics.getRetries());
+                values.put(urlKey + ".hedges", urlKeyMetrics.getHedges());
+                urlKeyMetrics.getStatusCounts().forEach((status, count) -> values.put(urlKey + ".status." + status, count));
+            }
+            metrics.getPoolStats().forEach((route, stats) -> putPoolStats(values, "pool." + route, stats));
+            putPoolStats(values, "pool.total", metrics.getTotalPoolStats());
+            metrics.getCircuitBreakerStates().forEach((key, state) -> {
+                values.put("circuitBreaker." + key + ".state", (long) state.ordinal());
+                values.put("circuitBreaker." + key + ".openings", metrics.getCircuitBreakerOpenings(key));
+            });
+            return values;
+        }
+
+        private static void putPoolStats(Map<String, Long> values, String prefix, PoolStats stats) {
+            values.put(prefix + ".leased", (long) stats.getLeased());
+            values.put(prefix + ".pending", (long) stats.getPending());
+            values.put(prefix + ".available", (long) stats.getAvailable());
+            values.put(prefix + ".max", (long) stats.getMax());
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Long value = values().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Long> values = values();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                if (values.containsKey(attribute)) {
+                    list.add(new Attribute(attribute, values.get(attribute)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            MBeanAttributeInfo[] attributes = values().keySet().stream()
+                    .map(name -> new MBeanAttributeInfo(name, Long.class.getName(), name, true, false, false))
+                    .toArray(MBeanAttributeInfo[]::new);
+            return new MBeanInfo(getClass().getName(), "Http client metrics", attributes, null, null, null);
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) {
+            throw new UnsupportedOperationException("Http client metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+    }
+}
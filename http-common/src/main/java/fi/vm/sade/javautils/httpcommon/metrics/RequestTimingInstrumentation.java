@@ -0,0 +1,209 @@
+package fi.vm.sade.javautils.httpcommon.metrics;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.methods.HttpRequestWrapper;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.EofSensorInputStream;
+import org.apache.http.conn.EofSensorWatcher;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+import org.apache.http.ssl.SSLContexts;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Records RequestTimings of every request into the HttpContext:
+ * request and response interceptors mark the start, the response headers and wrap the entity to notice the end of the body,
+ * the request executor marks sending the request and the socket factories of the pooling connection manager mark
+ * TCP connect and TLS handshake of new connections.
+ */
+public final class RequestTimingInstrumentation {
+    static final String CONTEXT_ATTRIBUTE = "fi.vm.sade.javautils.httpcommon.request-timings";
+
+    private RequestTimingInstrumentation() {
+    }
+
+    public static void install(HttpClientBuilder httpBuilder, RequestTimingListener listener) {
+        httpBuilder.addInterceptorFirst(startInterceptor(listener));
+        httpBuilder.addInterceptorLast((HttpResponseInterceptor) (response, context) -> {
+            RequestTimings timings = timings(context);
+            if (timings == null) {
+                return;
+            }
+            timings.responseReceived();
+            HttpEntity entity = response.getEntity();
+            if (entity == null) {
+                timings.complete();
+            } else {
+                response.setEntity(new TimedEntity(entity, timings));
+            }
+        });
+        httpBuilder.setRequestExecutor(new TimingRequestExecutor());
+    }
+
+    /**
+     * Stores new RequestTimings into the context of each request. Other clients (e.g. the async client, which has no
+     * request executor or socket factory hooks) can add it to record at least the start of the request.
+     */
+    public static HttpRequestInterceptor startInterceptor(RequestTimingListener listener) {
+        return (request, context) ->
+                context.setAttribute(CONTEXT_ATTRIBUTE, new RequestTimings(request.getRequestLine().getMethod(), uri(request), listener));
+    }
+
+    public static Registry<ConnectionSocketFactory> socketFactoryRegistry() {
+        return RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", new TimingPlainSocketFactory())
+                .register("https", new TimingSSLSocketFactory())
+                .build();
+    }
+
+    public static RequestTimings timings(HttpContext context) {
+        Object timings = context.getAttribute(CONTEXT_ATTRIBUTE);
+        return timings instanceof RequestTimings ? (RequestTimings) timings : null;
+    }
+
+    private static String uri(HttpRequest request) {
+        HttpRequest original = request instanceof HttpRequestWrapper ? ((HttpRequestWrapper) request).getOriginal() : request;
+        return original instanceof HttpUriRequest ? ((HttpUriRequest) original).getURI().toString() : request.getRequestLine().getUri();
+    }
+
+    private static class TimingRequestExecutor extends HttpRequestExecutor {
+        @Override
+        protected HttpResponse doSendRequest(HttpRequest request, HttpClientConnection conn, HttpContext context) throws IOException, HttpException {
+            RequestTimings timings = timings(context);
+            if (timings != null) {
+                timings.requestSending();
+            }
+            HttpResponse response = super.doSendRequest(request, conn, context);
+            if (timings != null) {
+                timings.requestSent();
+            }
+            return response;
+        }
+
+        @Override
+        protected HttpResponse doReceiveResponse(HttpRequest request, HttpClientConnection conn, HttpContext context) throws HttpException, IOException {
+            HttpResponse response = super.doReceiveResponse(request, conn, context);
+            RequestTimings timings = timings(context);
+            if (timings != null) {
+                timings.responseReceived();
+            }
+            return response;
+        }
+    }
+
+    private static class TimingPlainSocketFactory extends PlainConnectionSocketFactory {
+        @Override
+        public Socket connectSocket(int connectTimeout, Socket socket, HttpHost host, InetSocketAddress remoteAddress,
+                                    InetSocketAddress localAddress, HttpContext context) throws IOException {
+            RequestTimings timings = timings(context);
+            if (timings != null) {
+                timings.connectStarted();
+            }
+            Socket connected = super.connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+            if (timings != null) {
+                timings.connected();
+            }
+            return connected;
+        }
+    }
+
+    /**
+     * Same configuration as SSLConnectionSocketFactory.getSocketFactory(). The TLS handshake happens in
+     * createLayeredSocket(), which connectSocket() calls after the TCP connection has been made.
+     */
+    private static class TimingSSLSocketFactory extends SSLConnectionSocketFactory {
+        TimingSSLSocketFactory() {
+            super(SSLContexts.createDefault(), getDefaultHostnameVerifier());
+        }
+
+        @Override
+        public Socket connectSocket(int connectTimeout, Socket socket, HttpHost host, InetSocketAddress remoteAddress,
+                                    InetSocketAddress localAddress, HttpContext context) throws IOException {
+            RequestTimings timings = timings(context);
+            if (timings != null) {
+                timings.connectStarted();
+            }
+            Socket connected = super.connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+            if (timings != null) {
+                timings.connected();
+            }
+            return connected;
+        }
+
+        @Override
+        public Socket createLayeredSocket(Socket socket, String target, int port, HttpContext context) throws IOException {
+            RequestTimings timings = timings(context);
+            if (timings != null) {
+                timings.tlsStarted();
+            }
+            Socket layered = super.createLayeredSocket(socket, target, port, context);
+            if (timings != null) {
+                timings.tlsCompleted();
+            }
+            return layered;
+        }
+    }
+
+    /**
+     * Completes the timings when the content stream reaches the end or is closed
+     */
+    private static class TimedEntity extends HttpEntityWrapper implements EofSensorWatcher {
+        private final RequestTimings timings;
+
+        TimedEntity(HttpEntity entity, RequestTimings timings) {
+            super(entity);
+            this.timings = timings;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new EofSensorInputStream(wrappedEntity.getContent(), this);
+        }
+
+        @Override
+        public void writeTo(OutputStream outStream) throws IOException {
+            try {
+                super.writeTo(outStream);
+            } finally {
+                timings.complete();
+            }
+        }
+
+        @Override
+        public boolean eofDetected(InputStream wrapped) {
+            timings.complete();
+            return true;
+        }
+
+        @Override
+        public boolean streamClosed(InputStream wrapped) {
+            timings.complete();
+            return true;
+        }
+
+        @Override
+        public boolean streamAbort(InputStream wrapped) {
+            timings.complete();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package fi.vm.sade.javautils.httpcommon.metrics;
+
+/**
+ * Receives the phase timings of every request, see ApacheHttpClientBuilder.setRequestTimingListener() in httpclient
+ * and OphHttpClient.Builder.requestTimingListener() in java-http.
+ * Called from the thread that reads or closes the response, so it should not block. Can be used for slow call logging:
+ *
+ * <pre>
+ * builder.setRequestTimingListener(timings -&gt; {
+ *     if (timings.getTotalNanos() &gt; TimeUnit.SECONDS.toNanos(1)) log.warn("Slow request: " + timings);
+ * });
+ * </pre>
+ */
+public interface RequestTimingListener {
+    void requestCompleted(RequestTimings timings);
+}
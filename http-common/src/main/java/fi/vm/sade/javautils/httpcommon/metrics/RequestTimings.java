@@ -0,0 +1,167 @@
+package fi.vm.sade.javautils.httpcommon.metrics;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Phase timestamps (System.nanoTime()) of one request/response exchange. The Apache clients record them with
+ * interceptors, their request executor and connection socket factories, see RequestTimingInstrumentation.
+ *
+ * Durations are -1 when the phase didn't happen or wasn't recorded: connect and TLS times are only recorded for new
+ * connections made by the pooling connection manager of the client, a response served from the cache has only
+ * the total and body times. java-http executeAsync() records only the total and body times, as the async client has
+ * no hooks for the connection and request phases. Body time and total are known after the body has been read or the
+ * response closed.
+ */
+public class RequestTimings {
+    private final String method;
+    private final String uri;
+    private final RequestTimingListener listener;
+    private final long start;
+    private volatile long connectStart = -1;
+    private volatile long connectEnd = -1;
+    private volatile long tlsStart = -1;
+    private volatile long tlsEnd = -1;
+    private volatile long requestStart = -1;
+    private volatile long requestEnd = -1;
+    private volatile long responseStart = -1;
+    private volatile long end = -1;
+    private final AtomicBoolean completed = new AtomicBoolean();
+
+    public RequestTimings(String method, String uri, RequestTimingListener listener) {
+        this.method = method;
+        this.uri = uri;
+        this.listener = listener;
+        this.start = System.nanoTime();
+    }
+
+    public void connectStarted() {
+        connectStart = System.nanoTime();
+    }
+
+    public void connected() {
+        if (connectEnd == -1) {
+            connectEnd = System.nanoTime();
+        }
+    }
+
+    public void tlsStarted() {
+        connected();
+        tlsStart = System.nanoTime();
+    }
+
+    public void tlsCompleted() {
+        tlsEnd = System.nanoTime();
+    }
+
+    public void requestSending() {
+        requestStart = System.nanoTime();
+    }
+
+    public void requestSent() {
+        requestEnd = System.nanoTime();
+    }
+
+    public void responseReceived() {
+        if (responseStart == -1) {
+            responseStart = System.nanoTime();
+        }
+    }
+
+    /**
+     * Body was read or the response closed. Only the first call counts and notifies the listener.
+     */
+    public void complete() {
+        if (completed.compareAndSet(false, true)) {
+            responseReceived();
+            end = System.nanoTime();
+            if (listener != null) {
+                listener.requestCompleted(this);
+            }
+        }
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getUri() {
+        return uri;
+    }
+
+    public boolean isCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * @return true if the request was sent over a pooled connection, false for a new connection or a cached response
+     */
+    public boolean isConnectionReused() {
+        return requestStart != -1 && connectStart == -1;
+    }
+
+    /**
+     * Time from the start of the request until a connection was leased from the pool
+     */
+    public long getPoolWaitNanos() {
+        long leased = connectStart != -1 ? connectStart : requestStart;
+        return leased == -1 ? -1 : leased - start;
+    }
+
+    /**
+     * TCP connect time of a new connection
+     */
+    public long getConnectNanos() {
+        return between(connectStart, connectEnd);
+    }
+
+    public long getTlsHandshakeNanos() {
+        return between(tlsStart, tlsEnd);
+    }
+
+    /**
+     * Time to write the request line, headers and body
+     */
+    public long getRequestSendNanos() {
+        return between(requestStart, requestEnd);
+    }
+
+    /**
+     * Time from the request being sent until the response headers were read
+     */
+    public long getTimeToFirstByteNanos() {
+        return between(requestEnd, responseStart);
+    }
+
+    /**
+     * Time from the response headers until the body was read or the response closed
+     */
+    public long getBodyNanos() {
+        return between(responseStart, end);
+    }
+
+    public long getTotalNanos() {
+        return between(start, end);
+    }
+
+    private static long between(long from, long to) {
+        return from == -1 || to == -1 ? -1 : to - from;
+    }
+
+    @Override
+    public String toString() {
+        return method + " " + uri
+                + " total=" + millis(getTotalNanos())
+                + " pool=" + millis(getPoolWaitNanos())
+                + " connect=" + millis(getConnectNanos())
+                + " tls=" + millis(getTlsHandshakeNanos())
+                + " send=" + millis(getRequestSendNanos())
+                + " ttfb=" + millis(getTimeToFirstByteNanos())
+                + " body=" + millis(getBodyNanos())
+                + (isConnectionReused() ? " (reused connection)" : "");
+    }
+
+    private static String millis(long nanos) {
+        return nanos == -1 ? "-" : String.format(Locale.ROOT, "%.1fms", nanos / 1_000_000.0);
+    }
+}
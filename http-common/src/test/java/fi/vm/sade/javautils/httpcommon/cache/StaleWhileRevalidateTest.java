@@ -0,0 +1,143 @@
+package fi.vm.sade.javautils.httpcommon.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.methods.HttpRequestWrapper;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.cache.CachingHttpClientBuilder;
+import org.apache.http.impl.execchain.ClientExecChain;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+public class StaleWhileRevalidateTest {
+    private static final HttpRoute ROUTE = new HttpRoute(new HttpHost("localhost", 8080));
+
+    @Test
+    public void graceWindowIsAddedToCacheableResponses() throws Exception {
+        StaleWhileRevalidate staleWhileRevalidate = new StaleWhileRevalidate(60);
+        try {
+            assertEquals("max-age=1, stale-while-revalidate=60", cacheControl(staleWhileRevalidate, "GET", "Cache-Control", "max-age=1"));
+            assertEquals("stale-while-revalidate=60", cacheControl(staleWhileRevalidate, "HEAD", "Expires", DateUtils.formatDate(new Date())));
+            assertEquals("max-age=1, stale-while-revalidate=5", cacheControl(staleWhileRevalidate, "GET", "Cache-Control", "max-age=1, stale-while-revalidate=5"));
+            assertEquals("max-age=1, must-revalidate", cacheControl(staleWhileRevalidate, "GET", "Cache-Control", "max-age=1, must-revalidate"));
+            assertEquals("no-store", cacheControl(staleWhileRevalidate, "GET", "Cache-Control", "no-store"));
+            assertEquals("max-age=1", cacheControl(staleWhileRevalidate, "POST", "Cache-Control", "max-age=1"));
+            assertNull(cacheControl(staleWhileRevalidate, "GET", "Content-Type", "text/plain"));
+        } finally {
+            staleWhileRevalidate.close();
+        }
+    }
+
+    @Test
+    public void staleResponseIsServedWhileRevalidatingInBackground() throws Exception {
+        StaleWhileRevalidate staleWhileRevalidate = new StaleWhileRevalidate(60);
+        AtomicReference<String> body = new AtomicReference<>("v1");
+        AtomicInteger backendCalls = new AtomicInteger();
+        ClientExecChain backend = (route, request, context, execAware) -> {
+            backendCalls.incrementAndGet();
+            return response(200, body.get(), "Cache-Control", "max-age=1");
+        };
+        CachingHttpClientBuilder builder = new CachingHttpClientBuilder() {
+            @Override
+            protected ClientExecChain decorateMainExec(ClientExecChain mainExec) {
+                return super.decorateMainExec(staleWhileRevalidate.decorate(backend));
+            }
+        };
+        builder.setSchedulingStrategy(staleWhileRevalidate);
+        try (CloseableHttpClient client = builder.build()) {
+            assertEquals("v1", get(client));
+            Thread.sleep(1500);
+            body.set("v2");
+
+            assertEquals("v1", get(client));
+            for (int i = 0; i < 50 && staleWhileRevalidate.getRefreshSuccesses() == 0; i++) {
+                Thread.sleep(100);
+            }
+            assertEquals(1, staleWhileRevalidate.getRefreshSuccesses());
+            assertEquals(0, staleWhileRevalidate.getRefreshFailures());
+            assertEquals("v2", get(client));
+            assertEquals(2, backendCalls.get());
+        }
+    }
+
+    @Test
+    public void failedRevalidationIsCounted() throws Exception {
+        StaleWhileRevalidate staleWhileRevalidate = new StaleWhileRevalidate(60);
+        AtomicInteger status = new AtomicInteger(200);
+        ClientExecChain backend = (route, request, context, execAware) -> response(status.get(), "v1", "Cache-Control", "max-age=1");
+        CachingHttpClientBuilder builder = new CachingHttpClientBuilder() {
+            @Override
+            protected ClientExecChain decorateMainExec(ClientExecChain mainExec) {
+                return super.decorateMainExec(staleWhileRevalidate.decorate(backend));
+            }
+        };
+        builder.setSchedulingStrategy(staleWhileRevalidate);
+        try (CloseableHttpClient client = builder.build()) {
+            assertEquals("v1", get(client));
+            Thread.sleep(1500);
+            status.set(503);
+
+            assertEquals("v1", get(client));
+            for (int i = 0; i < 50 && staleWhileRevalidate.getRefreshFailures() == 0; i++) {
+                Thread.sleep(100);
+            }
+            assertEquals(0, staleWhileRevalidate.getRefreshSuccesses());
+            assertEquals(1, staleWhileRevalidate.getRefreshFailures());
+        }
+    }
+
+    private static String cacheControl(StaleWhileRevalidate staleWhileRevalidate, String method, String header, String value) throws Exception {
+        ClientExecChain chain = staleWhileRevalidate.decorate((route, request, context, execAware) -> response(200, "", header, value));
+        HttpRequestBase request = "GET".equals(method) ? new HttpGet("/") : "HEAD".equals(method) ? new HttpHead("/") : new HttpPost("/");
+        HttpResponse response = chain.execute(ROUTE, HttpRequestWrapper.wrap(request), HttpClientContext.create(), null);
+        Header[] cacheControls = response.getHeaders("Cache-Control");
+        return cacheControls.length == 0 ? null
+                : Arrays.stream(cacheControls).map(Header::getValue).collect(Collectors.joining(", "));
+    }
+
+    private static String get(CloseableHttpClient client) throws IOException {
+        try (CloseableHttpResponse response = client.execute(new HttpGet("http://localhost:8080/cached"))) {
+            return EntityUtils.toString(response.getEntity());
+        }
+    }
+
+    private static CloseableHttpResponse response(int status, String body, String header, String value) {
+        TestResponse response = new TestResponse(status);
+        response.setHeader("Date", DateUtils.formatDate(new Date()));
+        response.setHeader(header, value);
+        response.setEntity(new StringEntity(body, "UTF-8"));
+        return response;
+    }
+
+    private static class TestResponse extends BasicHttpResponse implements CloseableHttpResponse {
+        TestResponse(int status) {
+            super(HttpVersion.HTTP_1_1, status, status == 200 ? "OK" : "Error");
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
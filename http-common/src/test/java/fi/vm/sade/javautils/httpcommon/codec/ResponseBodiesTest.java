@@ -0,0 +1,99 @@
+package fi.vm.sade.javautils.httpcommon.codec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class ResponseBodiesTest {
+
+    @Test
+    public void bodyIsReadWhateverContentLengthSays() throws Exception {
+        String text = "ääkköset ".repeat(5000);
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        for (long contentLength : new long[]{-1, 0, 10, bytes.length, bytes.length * 2L, Integer.MAX_VALUE}) {
+            assertEquals(text, ResponseBodies.toString(new ByteArrayInputStream(bytes), contentLength, StandardCharsets.UTF_8, null));
+            assertArrayEquals(bytes, ResponseBodies.toByteArray(new ByteArrayInputStream(bytes), contentLength));
+        }
+        assertEquals("", ResponseBodies.toString(new ByteArrayInputStream(new byte[0]), 0, StandardCharsets.UTF_8, null));
+        assertEquals("", ResponseBodies.toString(null, null));
+    }
+
+    @Test
+    public void contentLengthPresizingIsCapped() {
+        assertEquals(8192, ResponseBodies.initialSize(-1));
+        assertEquals(100, ResponseBodies.initialSize(100));
+        assertEquals(ResponseBodies.MAX_PRESIZE, ResponseBodies.initialSize(Integer.MAX_VALUE));
+        assertEquals(ResponseBodies.MAX_PRESIZE, ResponseBodies.initialSize(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void pooledBuffersAreReusedAndBounded() throws Exception {
+        BufferPool pool = new BufferPool(1024, 2);
+        byte[] small = new byte[100];
+        Arrays.fill(small, (byte) 'a');
+        assertEquals(new String(small, StandardCharsets.US_ASCII), ResponseBodies.toString(new ByteArrayInputStream(small), small.length, StandardCharsets.US_ASCII, pool));
+        assertEquals(1, pool.getPooledBuffers());
+
+        byte[] first = pool.acquire();
+        byte[] second = pool.acquire();
+        byte[] third = pool.acquire();
+        pool.release(first);
+        pool.release(second);
+        pool.release(third);
+        assertEquals(2, pool.getPooledBuffers());
+
+        // bodies larger than the pooled buffers don't take a buffer from the pool
+        byte[] large = new byte[5000];
+        Arrays.fill(large, (byte) 'b');
+        assertEquals(new String(large, StandardCharsets.US_ASCII), ResponseBodies.toString(new ByteArrayInputStream(large), large.length, StandardCharsets.US_ASCII, pool));
+        // unknown length uses a pooled buffer and grows past it
+        assertEquals(new String(large, StandardCharsets.US_ASCII), ResponseBodies.toString(new ByteArrayInputStream(large), -1, StandardCharsets.US_ASCII, pool));
+        assertEquals(2, pool.getPooledBuffers());
+    }
+
+    @Test
+    public void charsetComesFromContentType() throws Exception {
+        byte[] latin1 = "ä".getBytes(StandardCharsets.ISO_8859_1);
+        ByteArrayEntity entity = new ByteArrayEntity(latin1, ContentType.create("text/plain", StandardCharsets.ISO_8859_1));
+        assertEquals(StandardCharsets.ISO_8859_1, ResponseBodies.charset(entity));
+        assertEquals("ä", ResponseBodies.toString(entity, null));
+
+        StringEntity withoutCharset = new StringEntity("a", StandardCharsets.UTF_8);
+        withoutCharset.setContentType("application/json");
+        assertNull(ResponseBodies.charset(withoutCharset));
+        assertEquals(Charset.defaultCharset(), ResponseBodies.charsetOrDefault(withoutCharset));
+
+        withoutCharset.setContentType("text/plain; charset=unknown-charset");
+        assertNull(ResponseBodies.charset(withoutCharset));
+    }
+
+    @Test
+    public void streamIsClosed() throws Exception {
+        boolean[] closed = {false};
+        InputStream stream = new ByteArrayInputStream("a".getBytes(StandardCharsets.UTF_8)) {
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        };
+        ByteArrayEntity entity = new ByteArrayEntity(new byte[0]) {
+            @Override
+            public InputStream getContent() {
+                return stream;
+            }
+        };
+        assertEquals("a", ResponseBodies.toString(entity, null));
+        assertEquals(true, closed[0]);
+    }
+}
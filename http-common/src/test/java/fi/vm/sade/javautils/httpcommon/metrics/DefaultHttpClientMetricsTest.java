@@ -0,0 +1,71 @@
+package fi.vm.sade.javautils.httpcommon.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+public class DefaultHttpClientMetricsTest {
+    @Test
+    public void percentilesAreWithinHistogramPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Random random = new Random(1);
+        long[] micros = new long[10000];
+        for (int i = 0; i < micros.length; i++) {
+            micros[i] = (long) Math.exp(random.nextGaussian() * 2 + 8);
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(micros[i]));
+        }
+        Arrays.sort(micros);
+        for (double percentile : new double[]{50, 90, 99, 99.9}) {
+            long exact = micros[(int) Math.ceil(percentile / 100 * micros.length) - 1];
+            long recorded = histogram.getPercentileMicros(percentile);
+            assertTrue(percentile + ": " + exact + " vs " + recorded, recorded >= exact && recorded <= exact * 1.016);
+        }
+        assertEquals(micros[micros.length - 1], histogram.getPercentileMicros(100));
+        assertEquals(micros[micros.length - 1], histogram.getMaxMicros());
+        assertEquals(micros.length, histogram.getCount());
+    }
+
+    @Test
+    public void countsStatusCodesFailuresAndRetriesPerUrlKey() {
+        DefaultHttpClientMetrics metrics = new DefaultHttpClientMetrics();
+        metrics.requestCompleted("koodisto-service.koodi", "GET", 200, TimeUnit.MILLISECONDS.toNanos(5));
+        metrics.requestCompleted("koodisto-service.koodi", "GET", 200, TimeUnit.MILLISECONDS.toNanos(7));
+        metrics.requestCompleted("koodisto-service.koodi", "GET", 503, TimeUnit.MILLISECONDS.toNanos(1));
+        metrics.requestRetried("koodisto-service.koodi", "GET");
+        metrics.requestFailed("organisaatio-service.organisaatio", "GET", new IOException("timeout"), TimeUnit.SECONDS.toNanos(10));
+
+        DefaultHttpClientMetrics.UrlKeyMetrics koodi = metrics.getUrlKeyMetrics("koodisto-service.koodi");
+        assertEquals(3, koodi.getLatency().getCount());
+        assertEquals(Long.valueOf(2), koodi.getStatusCounts().get(200));
+        assertEquals(Long.valueOf(1), koodi.getStatusCounts().get(503));
+        assertEquals(1, koodi.getRetries());
+        assertEquals(0, koodi.getFailures());
+        assertEquals(1, metrics.getUrlKeyMetrics("organisaatio-service.organisaatio").getFailures());
+        assertNull(metrics.getUrlKeyMetrics("oppijanumerorekisteri-service.henkilo"));
+    }
+
+    @Test
+    public void jmxExporterPublishesMetrics() throws Exception {
+        DefaultHttpClientMetrics metrics = new DefaultHttpClientMetrics();
+        metrics.requestCompleted("koodisto-service.koodi", "GET", 200, TimeUnit.MILLISECONDS.toNanos(5));
+        ObjectName name = JmxHttpClientMetricsExporter.register(metrics, "test-client");
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertEquals(1L, server.getAttribute(name, "koodisto-service.koodi.count"));
+            assertEquals(1L, server.getAttribute(name, "koodisto-service.koodi.status.200"));
+            assertEquals(0L, server.getAttribute(name, "pool.total.leased"));
+        } finally {
+            JmxHttpClientMetricsExporter.unregister("test-client");
+        }
+    }
+}
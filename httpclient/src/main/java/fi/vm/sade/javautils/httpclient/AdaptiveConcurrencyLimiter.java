@@ -0,0 +1,264 @@
+package fi.vm.sade.javautils.httpclient;
+
+import fi.vm.sade.javautils.httpcommon.metrics.RequestTimings;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Limits concurrent requests per route (scheme://host[:port]) with a limit that adapts to the latency of the route
+ * (AIMD). The shortest latency seen is the route's baseline. A request that takes longer than latencyTolerance times
+ * the baseline, or fails with an IOException (e.g. a socket or connection pool timeout), decreases the limit by 10%,
+ * at most once per request latency. Other requests increase the limit by 1/limit while at least half of it is in use,
+ * i.e. about one more concurrent request per limit's worth of fast requests. The latency is measured from sending
+ * the request until its response headers arrive, see Exchange. The baseline can only be measured while requests don't
+ * queue up in the backend, so initialLimit should be below the backend's capacity, the limit grows quickly from there.
+ *
+ * A request over the limit waits up to maxWaitMs for a free slot and then throws ConcurrencyLimitExceededException,
+ * which goes to the onError handler and is never retried. Set it on the client so that all of its requests share
+ * the limits:
+ * <pre>
+ * client.concurrencyLimiter(new AdaptiveConcurrencyLimiter(10, 2, 100, 2.0, 500));
+ * </pre>
+ */
+public class AdaptiveConcurrencyLimiter {
+    private static final double BACKOFF_RATIO = 0.9;
+    // how fast the baseline follows latencies above it, so that it recovers if the backend gets permanently slower.
+    // Only latencies of requests sent while the route wasn't busy are followed, queueing would move the baseline too.
+    private static final int BASELINE_DECAY = 1000;
+
+    private final int initialLimit;
+    private final int minLimit;
+    private final int maxLimit;
+    private final double latencyTolerance;
+    private final long maxWaitNanos;
+    private final ConcurrentHashMap<String, Route> routes = new ConcurrentHashMap<>();
+
+    /**
+     * Starts from 10 concurrent requests per route, adapts between 1 and 100, backs off when latency is twice
+     * the baseline and waits up to a second for a free slot
+     */
+    public AdaptiveConcurrencyLimiter() {
+        this(10, 1, 100, 2.0, 1000);
+    }
+
+    public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, double latencyTolerance, long maxWaitMs) {
+        if(minLimit < 1 || initialLimit < minLimit || maxLimit < initialLimit || latencyTolerance <= 1 || maxWaitMs < 0) {
+            throw new IllegalArgumentException("Invalid concurrency limiter: initialLimit=" + initialLimit + " minLimit=" + minLimit
+                    + " maxLimit=" + maxLimit + " latencyTolerance=" + latencyTolerance + " maxWaitMs=" + maxWaitMs);
+        }
+        this.initialLimit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.latencyTolerance = latencyTolerance;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
+    }
+
+    /**
+     * Holds a slot of the route while callable runs. Callable reports the network exchange of the request to Exchange.
+     */
+    <V> V limit(OphRequestParameters requestParameters, Function<Exchange, V> callable) {
+        Route route = acquire(requestParameters);
+        Exchange exchange = new Exchange();
+        try {
+            return callable.apply(exchange);
+        } catch (RuntimeException e) {
+            exchange.failed(e);
+            throw e;
+        } finally {
+            route.release(exchange);
+        }
+    }
+
+    /**
+     * @throws ConcurrencyLimitExceededException if there was no free slot within maxWaitMs
+     */
+    Route acquire(OphRequestParameters requestParameters) {
+        String key = OphRequestExecutor.route(requestParameters.url);
+        Route route = routes.computeIfAbsent(key, k -> new Route());
+        route.acquire(key, requestParameters);
+        return route;
+    }
+
+    /**
+     * @return current limit of url's route
+     */
+    public int getLimit(String url) {
+        Route route = routes.get(OphRequestExecutor.route(url));
+        return route == null ? initialLimit : route.getLimit();
+    }
+
+    /**
+     * @return number of requests currently sent to url's route
+     */
+    public int getActiveRequests(String url) {
+        Route route = routes.get(OphRequestExecutor.route(url));
+        return route == null ? 0 : route.getInFlight();
+    }
+
+    /**
+     * @return number of requests to url's route that were rejected with ConcurrencyLimitExceededException
+     */
+    public long getRejectedRequests(String url) {
+        Route route = routes.get(OphRequestExecutor.route(url));
+        return route == null ? 0 : route.getRejected();
+    }
+
+    public Set<String> getRoutes() {
+        return new TreeSet<>(routes.keySet());
+    }
+
+    private static boolean isIOException(Throwable e) {
+        for(Throwable t = e; t != null; t = t.getCause()) {
+            if(t instanceof IOException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Latency sample of one request: from sending the request until its response headers arrived, or until it failed
+     * without a response. Time spent in the handler after that is not included. A request that was not sent (e.g.
+     * rejected with CircuitBreakerOpenException) or was answered from the cache gives no sample.
+     */
+    static class Exchange {
+        private long sentAt = -1;
+        private long latencyNanos = -1;
+        private boolean dropped = false;
+        private boolean done = false;
+
+        void sending() {
+            sentAt = System.nanoTime();
+        }
+
+        /**
+         * @param timings of the response, null if the client doesn't record them
+         */
+        void responded(RequestTimings timings) {
+            // a response served from the cache has no request send time
+            if(sentAt != -1 && !done && (timings == null || timings.getRequestSendNanos() != -1)) {
+                latencyNanos = System.nanoTime() - sentAt;
+            }
+            done = true;
+        }
+
+        void failed(RuntimeException e) {
+            if(sentAt != -1 && !done) {
+                latencyNanos = System.nanoTime() - sentAt;
+                dropped = isIOException(e);
+            }
+            done = true;
+        }
+    }
+
+    /**
+     * Uses a ReentrantLock instead of synchronized, so that a virtual thread waiting for a slot doesn't pin its carrier
+     */
+    class Route {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition released = lock.newCondition();
+        private double limit = initialLimit;
+        private int inFlight = 0;
+        private long rejected = 0;
+        private long baselineNanos = 0;
+        private long lastDecrease = System.nanoTime() - TimeUnit.HOURS.toNanos(1);
+
+        int getLimit() {
+            lock.lock();
+            try {
+                return (int) limit;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int getInFlight() {
+            lock.lock();
+            try {
+                return inFlight;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long getRejected() {
+            lock.lock();
+            try {
+                return rejected;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void acquire(String key, OphRequestParameters requestParameters) {
+            lock.lock();
+            try {
+                if(inFlight >= (int) limit && maxWaitNanos > 0) {
+                    try {
+                        for(long left = maxWaitNanos; inFlight >= (int) limit && left > 0; ) {
+                            left = released.awaitNanos(left);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RuntimeException("Interrupted while waiting to send request: " + requestParameters.url, e);
+                    }
+                }
+                if(inFlight >= (int) limit) {
+                    rejected++;
+                    throw new ConcurrencyLimitExceededException(key, (int) limit, requestParameters.method + " " + requestParameters.url);
+                }
+                inFlight++;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void release(Exchange exchange) {
+            if(exchange.latencyNanos == -1) {
+                lock.lock();
+                try {
+                    inFlight--;
+                    released.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            } else {
+                release(exchange.latencyNanos, exchange.dropped);
+            }
+        }
+
+        void release(long latencyNanos, boolean dropped) {
+            lock.lock();
+            try {
+                int wasInFlight = inFlight--;
+                if(!dropped) {
+                    if(baselineNanos == 0 || latencyNanos < baselineNanos) {
+                        baselineNanos = latencyNanos;
+                    } else if(wasInFlight == 1 || wasInFlight * 2 <= limit) {
+                        baselineNanos += (latencyNanos - baselineNanos) / BASELINE_DECAY;
+                    }
+                }
+                long now = System.nanoTime();
+                if(dropped || latencyNanos > latencyTolerance * baselineNanos) {
+                    // requests that were sent before the previous decrease don't decrease the limit again
+                    if(now - lastDecrease >= latencyNanos) {
+                        limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+                        lastDecrease = now;
+                    }
+                } else if(wasInFlight * 2 >= limit) {
+                    limit = Math.min(maxLimit, limit + 1 / limit);
+                }
+                released.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
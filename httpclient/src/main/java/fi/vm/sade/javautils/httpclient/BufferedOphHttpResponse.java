@@ -0,0 +1,113 @@
+package fi.vm.sade.javautils.httpclient;
+
+import fi.vm.sade.javautils.httpcommon.codec.ResponseBodies;
+import fi.vm.sade.javautils.httpcommon.metrics.RequestTimings;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Response read fully into memory so that it can be handed to several handlers, see RequestCoalescer.
+ */
+class BufferedOphHttpResponse implements OphHttpResponse {
+    private static final byte[] EMPTY = new byte[0];
+
+    private final OphRequestParameters requestParameters;
+    private final int statusCode;
+    private final List<String[]> headers;
+    private final byte[] body;
+    private final RequestTimings timings;
+
+    private BufferedOphHttpResponse(OphRequestParameters requestParameters, int statusCode, List<String[]> headers, byte[] body, RequestTimings timings) {
+        this.requestParameters = requestParameters;
+        this.statusCode = statusCode;
+        this.headers = headers;
+        this.body = body;
+        this.timings = timings;
+    }
+
+    static BufferedOphHttpResponse buffer(OphHttpResponse response) throws IOException {
+        List<String[]> headers = new ArrayList<>();
+        for (String key : response.getHeaderKeys()) {
+            for (String value : response.getHeaderValues(key)) {
+                headers.add(new String[]{key, value});
+            }
+        }
+        int statusCode = response.getStatusCode();
+        byte[] body = EMPTY;
+        // responses to HEAD and 204/304 responses don't have an entity
+        if (!OphHttpClient.Method.HEAD.equals(response.getRequestParameters().method) && statusCode != 204 && statusCode != 304) {
+            try (InputStream stream = response.asInputStream()) {
+                body = ResponseBodies.toByteArray(stream, -1);
+            }
+        }
+        return new BufferedOphHttpResponse(response.getRequestParameters(), statusCode, headers, body, response.getTimings());
+    }
+
+    BufferedOphHttpResponse copyFor(OphRequestParameters requestParameters) {
+        return new BufferedOphHttpResponse(requestParameters, statusCode, headers, body, timings);
+    }
+
+    @Override
+    public InputStream asInputStream() {
+        return new ByteArrayInputStream(body);
+    }
+
+    @Override
+    public String asText() {
+        return new String(body, charset());
+    }
+
+    @Override
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    @Override
+    public List<String> getHeaderValues(String key) {
+        List<String> ret = new ArrayList<>();
+        for (String[] header : headers) {
+            if (header[0].equalsIgnoreCase(key)) {
+                ret.add(header[1]);
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public List<String> getHeaderKeys() {
+        List<String> ret = new ArrayList<>();
+        for (String[] header : headers) {
+            if (!ret.contains(header[0])) {
+                ret.add(header[0]);
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public OphRequestParameters getRequestParameters() {
+        return requestParameters;
+    }
+
+    /**
+     * Timings of the request that was made for all the threads sharing the response
+     */
+    @Override
+    public RequestTimings getTimings() {
+        return timings;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private Charset charset() {
+        Charset charset = getCharset();
+        return charset != null ? charset : Charset.defaultCharset();
+    }
+}
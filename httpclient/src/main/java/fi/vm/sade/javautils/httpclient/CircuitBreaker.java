@@ -0,0 +1,171 @@
+package fi.vm.sade.javautils.httpclient;
+
+import fi.vm.sade.javautils.httpcommon.metrics.CircuitState;
+import fi.vm.sade.javautils.httpcommon.metrics.HttpClientMetrics;
+
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fails requests fast when a service is down instead of letting every request wait for the timeouts.
+ * There is a separate circuit for each service: the first part of the url key (e.g. "organisaatio-service" for
+ * "organisaatio-service.organisaatio.byOid") or scheme://host[:port] for plain urls.
+ *
+ * A request fails if it gets no response or a 5xx response. The circuit opens when at least failureRateThreshold of
+ * the last windowSize requests (and at least minimumCalls) failed. While open, requests throw
+ * CircuitBreakerOpenException without being sent, which goes to the onError handler like other errors.
+ * After openDurationMs halfOpenCalls trial requests are let through: if they all succeed the circuit closes,
+ * if any of them fails it opens again. Results of requests started before the latest state change are ignored.
+ * State changes are reported to HttpClientMetrics.
+ *
+ * Set it on the client so that all of its requests share the circuits:
+ * <pre>
+ * client.circuitBreaker(new CircuitBreaker());
+ * </pre>
+ */
+public class CircuitBreaker {
+    private final int windowSize;
+    private final double failureRateThreshold;
+    private final int minimumCalls;
+    private final long openDurationNanos;
+    private final int halfOpenCalls;
+    private final ConcurrentHashMap<String, Circuit> circuits = new ConcurrentHashMap<>();
+
+    /**
+     * Opens when half of the last 20 requests (at least 10) failed, stays open for 30 seconds and closes after 3
+     * successful trial requests
+     */
+    public CircuitBreaker() {
+        this(20, 0.5, 10, 30000, 3);
+    }
+
+    public CircuitBreaker(int windowSize, double failureRateThreshold, int minimumCalls, long openDurationMs, int halfOpenCalls) {
+        if(windowSize < 1 || failureRateThreshold <= 0 || failureRateThreshold > 1 || minimumCalls < 1 || minimumCalls > windowSize
+                || openDurationMs < 0 || halfOpenCalls < 1) {
+            throw new IllegalArgumentException("Invalid circuit breaker: windowSize=" + windowSize + " failureRateThreshold=" + failureRateThreshold
+                    + " minimumCalls=" + minimumCalls + " openDurationMs=" + openDurationMs + " halfOpenCalls=" + halfOpenCalls);
+        }
+        this.windowSize = windowSize;
+        this.failureRateThreshold = failureRateThreshold;
+        this.minimumCalls = minimumCalls;
+        this.openDurationNanos = TimeUnit.MILLISECONDS.toNanos(openDurationMs);
+        this.halfOpenCalls = halfOpenCalls;
+    }
+
+    public CircuitState getState(String key) {
+        Circuit circuit = circuits.get(key);
+        return circuit != null ? circuit.getState() : CircuitState.CLOSED;
+    }
+
+    public Set<String> getKeys() {
+        return new TreeSet<>(circuits.keySet());
+    }
+
+    /**
+     * First part of the url key or scheme://host[:port] for plain urls
+     */
+    static String key(OphRequestParameters requestParameters) {
+        if(requestParameters.urlKey != null) {
+            int i = requestParameters.urlKey.indexOf('.');
+            return i > 0 ? requestParameters.urlKey.substring(0, i) : requestParameters.urlKey;
+        }
+        return OphRequestExecutor.route(requestParameters.url);
+    }
+
+    /**
+     * @return generation of the circuit's state the request was started in, to be passed to record()
+     * @throws CircuitBreakerOpenException if the request is not allowed
+     */
+    long acquire(String key, OphRequestParameters requestParameters, HttpClientMetrics metrics) {
+        long generation = circuits.computeIfAbsent(key, k -> new Circuit()).tryAcquire(key, metrics);
+        if(generation < 0) {
+            throw new CircuitBreakerOpenException(key, requestParameters.method + " " + requestParameters.url);
+        }
+        return generation;
+    }
+
+    void record(String key, long generation, boolean success, HttpClientMetrics metrics) {
+        circuits.computeIfAbsent(key, k -> new Circuit()).record(key, generation, success, metrics);
+    }
+
+    private class Circuit {
+        private final boolean[] failures = new boolean[windowSize];
+        private int calls = 0;
+        private int position = 0;
+        private int failureCount = 0;
+        private CircuitState state = CircuitState.CLOSED;
+        // incremented on every state change
+        private long generation = 0;
+        private long openedAt;
+        private int trialsStarted;
+        private int trialsSucceeded;
+
+        synchronized CircuitState getState() {
+            return state;
+        }
+
+        /**
+         * @return current generation, -1 if the request is not allowed
+         */
+        synchronized long tryAcquire(String key, HttpClientMetrics metrics) {
+            if(state == CircuitState.OPEN) {
+                if(System.nanoTime() - openedAt < openDurationNanos) {
+                    return -1;
+                }
+                transition(key, CircuitState.HALF_OPEN, metrics);
+            }
+            if(state == CircuitState.HALF_OPEN) {
+                if(trialsStarted >= halfOpenCalls) {
+                    return -1;
+                }
+                trialsStarted++;
+            }
+            return generation;
+        }
+
+        synchronized void record(String key, long requestGeneration, boolean success, HttpClientMetrics metrics) {
+            if(requestGeneration != generation) {
+                // started in an earlier state, e.g. a slow request sent while closed is not a trial of half-open
+                return;
+            }
+            if(state == CircuitState.HALF_OPEN) {
+                if(!success) {
+                    transition(key, CircuitState.OPEN, metrics);
+                } else if(++trialsSucceeded >= halfOpenCalls) {
+                    transition(key, CircuitState.CLOSED, metrics);
+                }
+            } else if(state == CircuitState.CLOSED) {
+                if(calls == windowSize && failures[position]) {
+                    failureCount--;
+                }
+                failures[position] = !success;
+                if(!success) {
+                    failureCount++;
+                }
+                position = (position + 1) % windowSize;
+                calls = Math.min(calls + 1, windowSize);
+                if(calls >= minimumCalls && failureCount >= failureRateThreshold * calls) {
+                    transition(key, CircuitState.OPEN, metrics);
+                }
+            }
+        }
+
+        private void transition(String key, CircuitState newState, HttpClientMetrics metrics) {
+            state = newState;
+            generation++;
+            if(newState == CircuitState.OPEN) {
+                openedAt = System.nanoTime();
+            } else if(newState == CircuitState.HALF_OPEN) {
+                trialsStarted = 0;
+                trialsSucceeded = 0;
+            } else {
+                calls = 0;
+                position = 0;
+                failureCount = 0;
+            }
+            metrics.circuitBreakerStateChanged(key, newState);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package fi.vm.sade.javautils.httpclient;
+
+/**
+ * Thrown instead of sending the request when the CircuitBreaker of the service is open
+ */
+public class CircuitBreakerOpenException extends RuntimeException {
+    private final String key;
+
+    public CircuitBreakerOpenException(String key, String request) {
+        super("Circuit breaker is open for " + key + ", not sending " + request);
+        this.key = key;
+    }
+
+    public String getKey() {
+        return key;
+    }
+}
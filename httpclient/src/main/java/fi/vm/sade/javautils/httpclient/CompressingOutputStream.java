@@ -0,0 +1,77 @@
+package fi.vm.sade.javautils.httpclient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzips the request body of compressRequest(). Content is buffered until it is larger than minSize, smaller content
+ * is written uncompressed when the stream is closed. Use isCompressed() after closing to set the Content-Encoding.
+ */
+public class CompressingOutputStream extends OutputStream {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final OutputStream out;
+    private final int level;
+    private final int minSize;
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private GZIPOutputStream gzip = null;
+
+    public CompressingOutputStream(OutputStream out, int level, int minSize) {
+        this.out = out;
+        this.level = level;
+        this.minSize = minSize;
+    }
+
+    /**
+     * Always compressing stream, finish() it after writing
+     */
+    public static GZIPOutputStream gzip(OutputStream out, int level) throws IOException {
+        return new GZIPOutputStream(out, BUFFER_SIZE) {
+            {
+                def.setLevel(level);
+            }
+        };
+    }
+
+    public boolean isCompressed() {
+        return gzip != null;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if(gzip == null && buffer.size() + len > minSize) {
+            gzip = gzip(out, level);
+            buffer.writeTo(gzip);
+            buffer = null;
+        }
+        if(gzip != null) {
+            gzip.write(b, off, len);
+        } else {
+            buffer.write(b, off, len);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if(gzip != null) {
+            gzip.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(gzip != null) {
+            gzip.close();
+        } else {
+            buffer.writeTo(out);
+            out.close();
+        }
+    }
+}
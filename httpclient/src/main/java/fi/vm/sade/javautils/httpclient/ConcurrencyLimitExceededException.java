@@ -0,0 +1,23 @@
+package fi.vm.sade.javautils.httpclient;
+
+/**
+ * Thrown instead of sending the request when the AdaptiveConcurrencyLimiter of the route has no free slots
+ */
+public class ConcurrencyLimitExceededException extends RuntimeException {
+    private final String route;
+    private final int limit;
+
+    public ConcurrencyLimitExceededException(String route, int limit, String request) {
+        super("Concurrency limit " + limit + " reached for " + route + ", not sending " + request);
+        this.route = route;
+        this.limit = limit;
+    }
+
+    public String getRoute() {
+        return route;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+}
@@ -0,0 +1,94 @@
+package fi.vm.sade.javautils.httpclient;
+
+import org.apache.http.client.utils.DateUtils;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.apache.http.HttpHeaders.RETRY_AFTER;
+
+/**
+ * Retries requests that got no response (connection errors, timeouts) or a 502, 503 or 504 response.
+ * The delay before attempt n+1 is random between 0 and min(maxDelayMs, baseDelayMs * 2^(n-1)) ("full jitter"), so that
+ * clients don't retry in lockstep. A Retry-After header is used as the delay instead, and if it is longer than
+ * maxDelayMs the request is not retried. Failed assertions for other statuses and handler exceptions are not retried.
+ *
+ * Configure before use, the same instance can be shared by all requests:
+ * <pre>
+ * client.retryPolicy(new ExponentialBackoffRetryPolicy(4, 100, 5000).retryOnStatus(429, 502, 503, 504));
+ * </pre>
+ */
+public class ExponentialBackoffRetryPolicy implements RetryPolicy {
+    private final int maxAttempts;
+    private final long baseDelayMs;
+    private final long maxDelayMs;
+    private final Set<Integer> retryStatuses = new HashSet<>(Arrays.asList(502, 503, 504));
+
+    /**
+     * @param maxAttempts max number of requests including the first one
+     */
+    public ExponentialBackoffRetryPolicy(int maxAttempts, long baseDelayMs, long maxDelayMs) {
+        if(maxAttempts < 1 || baseDelayMs < 0 || maxDelayMs < baseDelayMs) {
+            throw new IllegalArgumentException("Invalid retry policy: maxAttempts=" + maxAttempts + " baseDelayMs=" + baseDelayMs + " maxDelayMs=" + maxDelayMs);
+        }
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMs = baseDelayMs;
+        this.maxDelayMs = maxDelayMs;
+    }
+
+    /**
+     * Replaces the default retried statuses 502, 503 and 504
+     */
+    public ExponentialBackoffRetryPolicy retryOnStatus(Integer... statusCodes) {
+        retryStatuses.clear();
+        retryStatuses.addAll(Arrays.asList(statusCodes));
+        return this;
+    }
+
+    @Override
+    public long retryDelayMs(OphRequestParameters requestParameters, int attempt, OphHttpResponse response, RuntimeException error) {
+        if(attempt >= maxAttempts) {
+            return NO_RETRY;
+        }
+        if(response != null) {
+            if(!retryStatuses.contains(response.getStatusCode())) {
+                return NO_RETRY;
+            }
+            long retryAfterMs = retryAfterMs(response);
+            if(retryAfterMs >= 0) {
+                return retryAfterMs <= maxDelayMs ? retryAfterMs : NO_RETRY;
+            }
+        }
+        long cap = baseDelayMs;
+        for(int i = 1; i < attempt && cap < maxDelayMs; i++) {
+            cap *= 2;
+        }
+        cap = Math.min(cap, maxDelayMs);
+        return ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+
+    /**
+     * @return Retry-After header as milliseconds (delay-seconds or HTTP-date) or -1 if missing or invalid
+     */
+    static long retryAfterMs(OphHttpResponse response) {
+        List<String> values = response.getHeaderValues(RETRY_AFTER);
+        if(values.isEmpty()) {
+            return -1;
+        }
+        String value = values.get(0).trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException e) {
+            Date date = DateUtils.parseDate(value);
+            return date != null ? Math.max(0, date.getTime() - System.currentTimeMillis()) : -1;
+        }
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+}
@@ -19,9 +19,9 @@ public class FormUrlEncodedWriter {
         } else {
             outstream.write("&");
         }
-        outstream.write(UrlUtils.encode(key));
+        UrlUtils.encode(key, outstream);
         outstream.write("=");
-        outstream.write(UrlUtils.encode(value.toString()));
+        UrlUtils.encode(value.toString(), outstream);
         return this;
     }
 }
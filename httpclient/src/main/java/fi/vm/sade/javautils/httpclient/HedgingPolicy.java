@@ -0,0 +1,236 @@
+package fi.vm.sade.javautils.httpclient;
+
+import fi.vm.sade.javautils.httpcommon.metrics.LatencyHistogram;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cuts tail latency of GET and HEAD requests by sending a second identical request if the first one has not got
+ * a response within the given latency percentile of the url key (or scheme://host[:port] for plain urls). The first
+ * response wins, the other request is aborted and its connection released. Latencies are collected from the last
+ * minute or two, until there are 20 responses requests are not hedged. Hedges are limited to budgetRatio of
+ * the requests during the last 10 seconds so hedging can't double the load of a slow backend.
+ *
+ * The requests are sent from the policy's executor (virtual threads on Java 21) while the caller waits.
+ * handleManually() requests are not hedged. Set it on the client so that all of its requests share the latencies
+ * and the budget:
+ * <pre>
+ * client.hedgingPolicy(new HedgingPolicy(95, 20, 0.05));
+ * </pre>
+ */
+public class HedgingPolicy {
+    private static final int MIN_SAMPLES = 20;
+    private static final long WINDOW_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final double percentile;
+    private final long minDelayNanos;
+    private final RetryBudget budget;
+    private final ExecutorService executor;
+    private final ConcurrentHashMap<String, Latencies> latencies = new ConcurrentHashMap<>();
+
+    /**
+     * Hedges requests that are slower than p95 but at least 10ms, at most 10% of requests
+     */
+    public HedgingPolicy() {
+        this(95, 10, 0.1);
+    }
+
+    public HedgingPolicy(double percentile, long minDelayMs, double budgetRatio) {
+        this(percentile, minDelayMs, budgetRatio, defaultExecutor());
+    }
+
+    public HedgingPolicy(double percentile, long minDelayMs, double budgetRatio, ExecutorService executor) {
+        if(percentile <= 0 || percentile >= 100 || minDelayMs < 0 || budgetRatio < 0) {
+            throw new IllegalArgumentException("Invalid hedging policy: percentile=" + percentile + " minDelayMs=" + minDelayMs
+                    + " budgetRatio=" + budgetRatio);
+        }
+        this.percentile = percentile;
+        this.minDelayNanos = TimeUnit.MILLISECONDS.toNanos(minDelayMs);
+        this.budget = new RetryBudget(budgetRatio, 0);
+        this.executor = executor;
+    }
+
+    public static boolean canHedge(String method) {
+        return OphHttpClient.Method.GET.equals(method) || OphHttpClient.Method.HEAD.equals(method);
+    }
+
+    /**
+     * @return how long requests for key wait before they are hedged, -1 if there are not enough responses yet
+     */
+    public long getDelayMs(String key) {
+        long delayNanos = delayNanos(key);
+        return delayNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(delayNanos);
+    }
+
+    /**
+     * Sends the request and a hedge if needed.
+     * @return the first response, the caller must close it
+     */
+    OphHttpResponse send(String key, OphRequestParameters requestParameters, OphHttpClientProxy client) {
+        budget.requestStarted();
+        long delayNanos = delayNanos(key);
+        if(delayNanos < 0) {
+            long start = System.nanoTime();
+            try {
+                OphHttpResponse response = client.createRequest(requestParameters).handleManually();
+                record(key, System.nanoTime() - start);
+                return response;
+            } catch (IOException e) {
+                throw new RuntimeException("Error handling url: " + requestParameters.url, e);
+            }
+        }
+        Race race = new Race(key, requestParameters, client);
+        race.start();
+        try {
+            try {
+                return race.winner.get(delayNanos, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                if(budget.tryRetry()) {
+                    client.getMetrics().requestHedged(key, requestParameters.method);
+                    race.start();
+                }
+            }
+            return race.winner.get();
+        } catch (InterruptedException e) {
+            race.abortAll();
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for response: " + requestParameters.url, e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+        }
+    }
+
+    private long delayNanos(String key) {
+        Latencies keyLatencies = latencies.get(key);
+        LatencyHistogram histogram = keyLatencies == null ? null : keyLatencies.histogram();
+        if(histogram == null) {
+            return -1;
+        }
+        return Math.max(minDelayNanos, TimeUnit.MICROSECONDS.toNanos(histogram.getPercentileMicros(percentile)));
+    }
+
+    private void record(String key, long latencyNanos) {
+        latencies.computeIfAbsent(key, k -> new Latencies()).record(latencyNanos);
+    }
+
+    static void close(OphHttpResponse response) {
+        try {
+            response.close();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("Error closing response", e);
+        }
+    }
+
+    private static ExecutorService defaultExecutor() {
+        if(VirtualThreads.isSupported()) {
+            return VirtualThreads.newExecutor("OphHttpRequest-hedge");
+        }
+        AtomicInteger threads = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "OphHttpRequest-hedge-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return Executors.newCachedThreadPool(threadFactory);
+    }
+
+    /**
+     * Identical requests of which the first response wins. Later responses are closed and unfinished requests aborted.
+     */
+    private class Race {
+        private final String key;
+        private final OphRequestParameters requestParameters;
+        private final OphHttpClientProxy client;
+        private final CompletableFuture<OphHttpResponse> winner = new CompletableFuture<>();
+        private final List<OphHttpClientProxyRequest> requests = new CopyOnWriteArrayList<>();
+        private final AtomicInteger running = new AtomicInteger();
+
+        Race(String key, OphRequestParameters requestParameters, OphHttpClientProxy client) {
+            this.key = key;
+            this.requestParameters = requestParameters;
+            this.client = client;
+        }
+
+        void start() {
+            OphHttpClientProxyRequest request = client.createRequest(requestParameters);
+            requests.add(request);
+            running.incrementAndGet();
+            executor.execute(() -> {
+                long start = System.nanoTime();
+                try {
+                    OphHttpResponse response = request.handleManually();
+                    if(winner.complete(response)) {
+                        record(key, System.nanoTime() - start);
+                        abortOthers(request);
+                    } else {
+                        close(response);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // an aborted loser also ends up here, only the last failure is reported
+                    if(running.decrementAndGet() == 0) {
+                        winner.completeExceptionally(e instanceof RuntimeException ? e
+                                : new RuntimeException("Error handling url: " + requestParameters.url, e));
+                    }
+                }
+            });
+        }
+
+        void abortAll() {
+            abortOthers(null);
+            winner.thenAccept(HedgingPolicy::close);
+        }
+
+        private void abortOthers(OphHttpClientProxyRequest winningRequest) {
+            for(OphHttpClientProxyRequest request : requests) {
+                if(request != winningRequest) {
+                    request.abort();
+                }
+            }
+        }
+    }
+
+    /**
+     * Latencies of the current and previous minute, the previous minute is used once it has enough samples
+     */
+    private static class Latencies {
+        private LatencyHistogram previous = null;
+        private LatencyHistogram current = new LatencyHistogram();
+        private long currentStarted = System.nanoTime();
+
+        synchronized void record(long latencyNanos) {
+            rotate();
+            current.record(latencyNanos);
+        }
+
+        synchronized LatencyHistogram histogram() {
+            rotate();
+            if(previous != null && previous.getCount() >= MIN_SAMPLES) {
+                return previous;
+            }
+            return current.getCount() >= MIN_SAMPLES ? current : null;
+        }
+
+        private void rotate() {
+            long now = System.nanoTime();
+            if(now - currentStarted >= WINDOW_NANOS) {
+                // an idle minute leaves an empty previous histogram and latencies are collected from scratch
+                previous = now - currentStarted >= 2 * WINDOW_NANOS ? null : current;
+                current = new LatencyHistogram();
+                currentStarted = now;
+            }
+        }
+    }
+}
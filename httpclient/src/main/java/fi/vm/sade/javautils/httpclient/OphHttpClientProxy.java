@@ -1,5 +1,18 @@
 package fi.vm.sade.javautils.httpclient;
 
+import fi.vm.sade.javautils.httpcommon.metrics.HttpClientMetrics;
+
 public abstract class OphHttpClientProxy extends OphRequestParameterAccessors<OphHttpClientProxy> implements AutoCloseable {
+    final RequestCoalescer coalescer = new RequestCoalescer();
+    private HttpClientMetrics metrics = HttpClientMetrics.NONE;
+
     public abstract OphHttpClientProxyRequest createRequest(OphRequestParameters requestParameters);
+
+    public HttpClientMetrics getMetrics() {
+        return metrics;
+    }
+
+    protected void setMetrics(HttpClientMetrics metrics) {
+        this.metrics = metrics;
+    }
 }
@@ -11,4 +11,11 @@ public interface OphHttpClientProxyRequest {
      * @throws IOException
      */
     OphHttpResponse handleManually() throws IOException;
+
+    /**
+     * Aborts the request if it is in progress and releases its connection. Used to cancel the losing request of
+     * a hedged request, so it may be called from another thread and before the request has been sent.
+     */
+    default void abort() {
+    }
 }
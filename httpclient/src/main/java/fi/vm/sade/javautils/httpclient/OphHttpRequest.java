@@ -1,5 +1,6 @@
 package fi.vm.sade.javautils.httpclient;
 
+import fi.vm.sade.javautils.httpcommon.metrics.HttpClientMetrics;
 import fi.vm.sade.properties.OphProperties;
 
 import java.io.IOException;
@@ -7,6 +8,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 
 import static org.apache.http.HttpHeaders.CONTENT_TYPE;
 
@@ -35,17 +38,50 @@ public class OphHttpRequest extends OphRequestParameterAccessors<OphHttpRequest>
         final OphRequestParameters requestParameters = getRequestParameters();
         final OphHttpResponse[] responseForOnError = new OphHttpResponse[1];
         return handleOnError(requestParameters, responseForOnError, () -> {
-            return handleRetryOnError(requestParameters.method + " " + requestParameters.url, requestParameters.maxRetryCount, requestParameters.retryDelayMs, () -> {
-                try {
-                    return client.createRequest(requestParameters).execute(response -> {
+            return spoolBody(requestParameters, () -> handleRetryOnError(requestParameters, responseForOnError, () -> {
+                if(RequestCoalescer.canCoalesce(requestParameters)) {
+                    BufferedOphHttpResponse response = client.coalescer.execute(requestParameters, () -> limit(requestParameters, exchange -> {
+                        return send(requestParameters, exchange, BufferedOphHttpResponse::buffer);
+                    }));
+                    responseForOnError[0] = response;
+                    checkResponse(response);
+                    try {
+                        return handler.handleResponse(response);
+                    } catch (IOException e) {
+                        throw new RuntimeException("Error handling url: " + requestParameters.url, e);
+                    }
+                }
+                return limit(requestParameters, exchange -> {
+                    return send(requestParameters, exchange, response -> {
                         responseForOnError[0] = response;
                         checkResponse(response);
                         return handler.handleResponse(response);
                     });
-                } catch (IOException e) {
-                    throw new RuntimeException("Error handling url: " + requestParameters.url, e);
-                }
-            });
+                });
+            }));
+        });
+    }
+
+    /**
+     * Like execute(handler) but runs the request, retries and handler in the executor set with executeWith().
+     */
+    public <R> CompletableFuture<R> executeAsync(final OphHttpResponseHandler<R> handler) {
+        OphRequestExecutor executor = getRequestParameters().executor;
+        if(executor == null) {
+            throw new RuntimeException("executeAsync() requires an executor, see executeWith()");
+        }
+        return executor.submit(() -> execute(handler));
+    }
+
+    /**
+     * Like execute() but runs the request and retries in the executor set with executeWith().
+     */
+    public CompletableFuture<Void> executeAsync() {
+        return executeAsync(new OphHttpResponseHandler<Void>() {
+            @Override
+            public Void handleResponse(OphHttpResponse response) {
+                return null;
+            }
         });
     }
 
@@ -70,19 +106,95 @@ public class OphHttpRequest extends OphRequestParameterAccessors<OphHttpRequest>
         final OphRequestParameters requestParameters = getRequestParameters();
         final OphHttpResponse[] responseForOnError = new OphHttpResponse[1];
         return handleOnError(requestParameters, responseForOnError, () -> {
-            return handleRetryOnError(requestParameters.method + " " + requestParameters.url, requestParameters.maxRetryCount, requestParameters.retryDelayMs, () -> {
-                OphHttpResponse response;
-                try {
-                    response = client.createRequest(requestParameters).handleManually();
-                } catch (IOException e) {
-                    throw new RuntimeException("Error handling url: " + requestParameters.url, e);
-                }
+            return spoolBody(requestParameters, () -> handleRetryOnError(requestParameters, responseForOnError, () -> {
+                OphHttpResponse response = limit(requestParameters, exchange -> {
+                    HttpClientMetrics metrics = client.getMetrics();
+                    long circuitGeneration = acquireCircuit(requestParameters);
+                    long start = System.nanoTime();
+                    exchange.sending();
+                    try {
+                        OphHttpResponse manualResponse = client.createRequest(requestParameters).handleManually();
+                        exchange.responded(manualResponse.getTimings());
+                        metrics.requestCompleted(metricsKey(requestParameters), requestParameters.method, manualResponse.getStatusCode(), System.nanoTime() - start);
+                        recordCircuit(requestParameters, circuitGeneration, manualResponse.getStatusCode() < 500);
+                        return manualResponse;
+                    } catch (IOException | RuntimeException e) {
+                        metrics.requestFailed(metricsKey(requestParameters), requestParameters.method, e, System.nanoTime() - start);
+                        recordCircuit(requestParameters, circuitGeneration, false);
+                        throw e instanceof RuntimeException ? (RuntimeException) e : new RuntimeException("Error handling url: " + requestParameters.url, e);
+                    }
+                });
+                responseForOnError[0] = response;
                 checkResponse(response);
                 return response;
-            });
+            }));
         });
     }
 
+    /**
+     * Sends the request and reports it to the client's metrics, circuit breaker and concurrency limiter. IOExceptions
+     * are wrapped in RuntimeException.
+     */
+    private <R> R send(OphRequestParameters requestParameters, AdaptiveConcurrencyLimiter.Exchange exchange, OphHttpResponseHandler<R> handler) {
+        HttpClientMetrics metrics = client.getMetrics();
+        String urlKey = metricsKey(requestParameters);
+        long circuitGeneration = acquireCircuit(requestParameters);
+        long start = System.nanoTime();
+        exchange.sending();
+        boolean[] responded = {false};
+        try {
+            if(requestParameters.hedgingPolicy != null && HedgingPolicy.canHedge(requestParameters.method)) {
+                OphHttpResponse response = requestParameters.hedgingPolicy.send(urlKey, requestParameters, client);
+                try {
+                    responded[0] = true;
+                    exchange.responded(response.getTimings());
+                    metrics.requestCompleted(urlKey, requestParameters.method, response.getStatusCode(), System.nanoTime() - start);
+                    recordCircuit(requestParameters, circuitGeneration, response.getStatusCode() < 500);
+                    return handler.handleResponse(response);
+                } finally {
+                    HedgingPolicy.close(response);
+                }
+            }
+            return client.createRequest(requestParameters).execute(response -> {
+                responded[0] = true;
+                exchange.responded(response.getTimings());
+                metrics.requestCompleted(urlKey, requestParameters.method, response.getStatusCode(), System.nanoTime() - start);
+                recordCircuit(requestParameters, circuitGeneration, response.getStatusCode() < 500);
+                return handler.handleResponse(response);
+            });
+        } catch (IOException | RuntimeException e) {
+            if(!responded[0]) {
+                metrics.requestFailed(urlKey, requestParameters.method, e, System.nanoTime() - start);
+                recordCircuit(requestParameters, circuitGeneration, false);
+            }
+            throw e instanceof RuntimeException ? (RuntimeException) e : new RuntimeException("Error handling url: " + requestParameters.url, e);
+        }
+    }
+
+    /**
+     * @return generation of the circuit to pass to recordCircuit()
+     * @throws CircuitBreakerOpenException if the circuit of the target service is open
+     */
+    private long acquireCircuit(OphRequestParameters requestParameters) {
+        if(requestParameters.circuitBreaker != null) {
+            return requestParameters.circuitBreaker.acquire(CircuitBreaker.key(requestParameters), requestParameters, client.getMetrics());
+        }
+        return 0;
+    }
+
+    private void recordCircuit(OphRequestParameters requestParameters, long circuitGeneration, boolean success) {
+        if(requestParameters.circuitBreaker != null) {
+            requestParameters.circuitBreaker.record(CircuitBreaker.key(requestParameters), circuitGeneration, success, client.getMetrics());
+        }
+    }
+
+    /**
+     * urlKey or scheme://host:port for plain urls, to keep the number of distinct metric keys low
+     */
+    private static String metricsKey(OphRequestParameters requestParameters) {
+        return requestParameters.urlKey != null ? requestParameters.urlKey : OphRequestExecutor.route(requestParameters.url);
+    }
+
     private void prepareRequest() {
         if(isEditMode()) {
             final OphRequestParameters requestParameters = getRequestParameters();
@@ -212,28 +324,96 @@ public class OphHttpRequest extends OphRequestParameterAccessors<OphHttpRequest>
         }
     }
 
-    private static <V> V handleRetryOnError(String id, Integer maxCount, Integer delayMs, CallableWithoutException<V> callable) {
-        if(shouldRetryOnError(maxCount)) {
-            int count = 0;
-            while(true) {
-                try {
-                    return callable.call();
-                } catch(Exception e) {
-                    if(maxCount == ++count) {
-                        throw new RuntimeException("Tried " + count + " times " + id, e);
-                    }
-                    if(delayMs != null && delayMs > 0) {
-                        try {
-                            Thread.sleep(delayMs);
-                        } catch (InterruptedException e1) {
-                            throw new RuntimeException("Interrupted: " + id, e1);
-                        }
+    /**
+     * Makes the request again while the retry policy (retryPolicy() or retryOnError()) allows it. Non-idempotent
+     * requests are retried only with retryNonIdempotentRequests() and retries are capped by the retry budget.
+     */
+    private <V> V handleRetryOnError(final OphRequestParameters requestParameters, final OphHttpResponse[] responseForOnError, CallableWithoutException<V> callable) {
+        if(requestParameters.retryBudget != null) {
+            requestParameters.retryBudget.requestStarted();
+        }
+        RetryPolicy retryPolicy = retryPolicy(requestParameters);
+        if(retryPolicy == null) {
+            return callable.call();
+        }
+        String id = requestParameters.method + " " + requestParameters.url;
+        int count = 0;
+        while(true) {
+            responseForOnError[0] = null;
+            try {
+                return callable.call();
+            } catch(RuntimeException e) {
+                count++;
+                long delayMs = retryDelayMs(retryPolicy, requestParameters, count, responseForOnError[0], e);
+                if(delayMs == RetryPolicy.NO_RETRY) {
+                    throw new RuntimeException("Tried " + count + " times " + id, e);
+                }
+                if(delayMs > 0) {
+                    try {
+                        Thread.sleep(delayMs);
+                    } catch (InterruptedException e1) {
+                        Thread.currentThread().interrupt();
+                        throw new RuntimeException("Interrupted: " + id, e1);
                     }
                 }
+                client.getMetrics().requestRetried(metricsKey(requestParameters), requestParameters.method);
             }
         }
+    }
+
+    private static RetryPolicy retryPolicy(OphRequestParameters requestParameters) {
+        if(requestParameters.retryPolicy != null) {
+            return requestParameters.retryPolicy;
+        }
+        if(shouldRetryOnError(requestParameters.maxRetryCount)) {
+            return RetryPolicy.fixedDelay(requestParameters.maxRetryCount, requestParameters.retryDelayMs != null ? requestParameters.retryDelayMs : 0);
+        }
+        return null;
+    }
+
+    private static long retryDelayMs(RetryPolicy retryPolicy, OphRequestParameters requestParameters, int attempt, OphHttpResponse response, RuntimeException e) {
+        if(e instanceof CircuitBreakerOpenException || e.getCause() instanceof CircuitBreakerOpenException
+                || e instanceof ConcurrencyLimitExceededException || e.getCause() instanceof ConcurrencyLimitExceededException) {
+            return RetryPolicy.NO_RETRY;
+        }
+        if(!requestParameters.retryNonIdempotent && !RetryPolicy.isIdempotent(requestParameters.method)) {
+            return RetryPolicy.NO_RETRY;
+        }
+        long delayMs = retryPolicy.retryDelayMs(requestParameters, attempt, response, e);
+        if(delayMs != RetryPolicy.NO_RETRY && requestParameters.retryBudget != null && !requestParameters.retryBudget.tryRetry()) {
+            return RetryPolicy.NO_RETRY;
+        }
+        return delayMs;
+    }
 
-        return callable.call();
+    /**
+     * With spoolRequestBody() writes the dataWriter content once for all attempts and deletes it when done.
+     */
+    private static <V> V spoolBody(OphRequestParameters requestParameters, CallableWithoutException<V> callable) {
+        if(requestParameters.dataWriter == null || requestParameters.spoolThreshold == null) {
+            return callable.call();
+        }
+        try (SpooledRequestBody body = SpooledRequestBody.spool(requestParameters)) {
+            requestParameters.spooledBody = body;
+            return callable.call();
+        } catch (IOException e) {
+            throw new RuntimeException("Error writing request body for url: " + requestParameters.url, e);
+        } finally {
+            requestParameters.spooledBody = null;
+        }
+    }
+
+    /**
+     * Limits concurrent requests per route if executeWith() or concurrencyLimiter() is used. With handleManually()
+     * the limit only applies until the response is returned.
+     */
+    private static <V> V limit(OphRequestParameters requestParameters, Function<AdaptiveConcurrencyLimiter.Exchange, V> callable) {
+        CallableWithoutException<V> limited = requestParameters.concurrencyLimiter == null ? () -> callable.apply(new AdaptiveConcurrencyLimiter.Exchange()) :
+                () -> requestParameters.concurrencyLimiter.limit(requestParameters, callable);
+        if(requestParameters.executor == null) {
+            return limited.call();
+        }
+        return requestParameters.executor.limit(requestParameters.url, limited);
     }
 
     private static boolean shouldRetryOnError(Integer maxCount) {
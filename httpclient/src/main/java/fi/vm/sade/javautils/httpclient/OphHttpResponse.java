@@ -1,7 +1,18 @@
 package fi.vm.sade.javautils.httpclient;
 
+import fi.vm.sade.javautils.httpcommon.codec.BodyCodec;
+import fi.vm.sade.javautils.httpcommon.codec.ElementIterator;
+import fi.vm.sade.javautils.httpcommon.codec.TypeRef;
+import fi.vm.sade.javautils.httpcommon.metrics.RequestTimings;
+import org.apache.http.ParseException;
+import org.apache.http.entity.ContentType;
+
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.UnsupportedCharsetException;
 import java.util.List;
+import java.util.stream.Stream;
 
 public interface OphHttpResponse extends AutoCloseable {
     InputStream asInputStream();
@@ -10,6 +21,89 @@ public interface OphHttpResponse extends AutoCloseable {
     List<String> getHeaderKeys();
     OphRequestParameters getRequestParameters();
 
+    /**
+     * Phase timings of the request: pool wait, connect, TLS handshake, time to first byte and body.
+     * Body time and total are known after the body has been read or the response closed.
+     * @return null if the client doesn't record timings
+     */
+    default RequestTimings getTimings() {
+        return null;
+    }
+
+    /**
+     * Decodes the body with the codec() of the request straight from the response stream
+     */
+    default <T> T as(Class<T> type) {
+        return mapTo(TypeRef.of(type));
+    }
+
+    /**
+     * Decodes the body to a generic type, e.g. mapTo(new TypeRef&lt;List&lt;OrganisaatioDto&gt;&gt;() {})
+     */
+    default <T> T mapTo(TypeRef<T> type) {
+        BodyCodec codec = getRequestParameters().codec;
+        if(codec == null) {
+            throw new IllegalStateException("No codec set for url: " + getRequestParameters().url + ", use codec()");
+        }
+        try (InputStream stream = asInputStream()) {
+            return codec.decode(stream, getCharset(), type.getType());
+        } catch (IOException e) {
+            throw new RuntimeException("Error decoding " + type + " from url: " + getRequestParameters().url, e);
+        }
+    }
+
+    /**
+     * Decodes the elements of a JSON array or NDJSON response lazily with the codec() of the request, so that large
+     * results can be processed in constant memory. The response is closed after the last element or when the stream
+     * is closed. Use it inside the handler or with handleManually():
+     * <pre>
+     * try (Stream&lt;HenkiloDto&gt; henkilot = client.get(...).handleManually().asStream(HenkiloDto.class)) { ... }
+     * </pre>
+     */
+    default <T> Stream<T> asStream(Class<T> elementType) {
+        return asIterator(TypeRef.of(elementType)).stream();
+    }
+
+    default <T> Stream<T> asStream(TypeRef<T> elementType) {
+        return asIterator(elementType).stream();
+    }
+
+    /**
+     * Like asStream(), close the iterator if you may stop before the last element
+     */
+    default <T> ElementIterator<T> asIterator(Class<T> elementType) {
+        return asIterator(TypeRef.of(elementType));
+    }
+
+    default <T> ElementIterator<T> asIterator(TypeRef<T> elementType) {
+        String url = getRequestParameters().url;
+        BodyCodec codec = getRequestParameters().codec;
+        Runnable release = () -> {
+            try {
+                close();
+            } catch (Exception e) {
+                throw new RuntimeException("Error closing connection: " + url, e);
+            }
+        };
+        if(codec == null) {
+            release.run();
+            throw new IllegalStateException("No codec set for url: " + url + ", use codec()");
+        }
+        return ElementIterator.decode(codec, asInputStream(), getCharset(), elementType, url, release);
+    }
+
+    /**
+     * @return charset of the Content-Type header, null if there is none or it is not supported
+     */
+    default Charset getCharset() {
+        List<String> contentType = getHeaderValues("Content-Type");
+        try {
+            return contentType.isEmpty() ? null : ContentType.parse(contentType.get(0)).getCharset();
+        } catch (ParseException | UnsupportedCharsetException e) {
+            return null;
+        }
+    }
+
     /**
      * For testing only. Use asInputStream() instead.
      * @return
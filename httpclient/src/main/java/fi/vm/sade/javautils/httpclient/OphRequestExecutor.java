@@ -0,0 +1,94 @@
+package fi.vm.sade.javautils.httpclient;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs executeAsync() requests in an executor and limits the number of concurrent requests per route
+ * (scheme://host:port). Set it with executeWith(), the same instance should be shared by all requests.
+ *
+ * With virtualThreads() each request, including the delays of retryOnError(), runs in its own virtual thread so
+ * waiting doesn't reserve platform threads. Requests waiting for the limiter don't reserve pooled connections, so
+ * the limit should not be larger than the connection pool's max connections per route.
+ */
+public class OphRequestExecutor implements AutoCloseable {
+    private final ExecutorService executor;
+    private final int maxConcurrentRequestsPerRoute;
+    private final ConcurrentHashMap<String, Semaphore> routes = new ConcurrentHashMap<>();
+
+    public OphRequestExecutor(ExecutorService executor, int maxConcurrentRequestsPerRoute) {
+        if (maxConcurrentRequestsPerRoute < 1) {
+            throw new IllegalArgumentException("maxConcurrentRequestsPerRoute should be at least 1: " + maxConcurrentRequestsPerRoute);
+        }
+        this.executor = executor;
+        this.maxConcurrentRequestsPerRoute = maxConcurrentRequestsPerRoute;
+    }
+
+    /**
+     * Executor that starts a virtual thread for each request. Requires Java 21 or newer.
+     */
+    public static OphRequestExecutor virtualThreads(int maxConcurrentRequestsPerRoute) {
+        if (!isVirtualThreadsSupported()) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or newer, running on " + System.getProperty("java.version"));
+        }
+        return new OphRequestExecutor(VirtualThreads.newExecutor("OphHttpRequest"), maxConcurrentRequestsPerRoute);
+    }
+
+    public static boolean isVirtualThreadsSupported() {
+        return VirtualThreads.isSupported();
+    }
+
+    <V> CompletableFuture<V> submit(CallableWithoutException<V> callable) {
+        return CompletableFuture.supplyAsync(callable::call, executor);
+    }
+
+    /**
+     * Waits until there are less than maxConcurrentRequestsPerRoute requests to url's route and calls callable.
+     */
+    <V> V limit(String url, CallableWithoutException<V> callable) {
+        Semaphore semaphore = routes.computeIfAbsent(route(url), route -> new Semaphore(maxConcurrentRequestsPerRoute, true));
+        try {
+            semaphore.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting to send request: " + url, e);
+        }
+        try {
+            return callable.call();
+        } finally {
+            semaphore.release();
+        }
+    }
+
+    /**
+     * @return number of requests currently sent to url's route
+     */
+    public int getActiveRequests(String url) {
+        Semaphore semaphore = routes.get(route(url));
+        return semaphore == null ? 0 : maxConcurrentRequestsPerRoute - semaphore.availablePermits();
+    }
+
+    public int getMaxConcurrentRequestsPerRoute() {
+        return maxConcurrentRequestsPerRoute;
+    }
+
+    static String route(String url) {
+        int start = url.indexOf("://");
+        start = start == -1 ? 0 : start + 3;
+        int end = start;
+        while (end < url.length() && "/?#".indexOf(url.charAt(end)) == -1) {
+            end++;
+        }
+        return url.substring(0, end).toLowerCase();
+    }
+
+    /**
+     * Stops accepting new requests, already submitted requests are finished.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+}
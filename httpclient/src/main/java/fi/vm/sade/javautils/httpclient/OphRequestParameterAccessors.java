@@ -1,6 +1,9 @@
 package fi.vm.sade.javautils.httpclient;
 
+import fi.vm.sade.javautils.httpcommon.codec.BodyCodec;
+
 import java.util.Arrays;
+import java.util.zip.Deflater;
 
 class OphRequestParameterAccessors<T> {
     private T thisParams;
@@ -34,6 +37,15 @@ class OphRequestParameterAccessors<T> {
         return thisParams;
     }
 
+    /**
+     * Codec for OphHttpResponse.as() and mapTo(), e.g. JacksonBodyCodec. Set it on the client to use it for all requests.
+     */
+    public T codec(BodyCodec codec) {
+        checkEditMode();
+        requestParameters.codec = codec;
+        return thisParams;
+    }
+
     public T dataWriter(String contentType, String encoding, OphRequestPostWriter writer) {
         checkEditMode();
         requestParameters.contentType = contentType;
@@ -42,6 +54,39 @@ class OphRequestParameterAccessors<T> {
         return thisParams;
     }
 
+    /**
+     * Write the dataWriter content once before sending, in memory up to memoryThreshold bytes and in a temp file
+     * after that. The body is sent with Content-Length instead of chunked and retries resend it without calling
+     * the dataWriter again, see SpooledRequestBody.
+     */
+    public T spoolRequestBody(int memoryThreshold) {
+        checkEditMode();
+        requestParameters.spoolThreshold = memoryThreshold;
+        return thisParams;
+    }
+
+    /**
+     * Gzip the dataWriter content with the default compression level and send it with Content-Encoding: gzip.
+     */
+    public T compressRequest() {
+        return compressRequest(Deflater.DEFAULT_COMPRESSION, 0);
+    }
+
+    /**
+     * Gzip the dataWriter content and send it with Content-Encoding: gzip. The size of streamed content is not known
+     * before it is sent so minSize only applies with spoolRequestBody(): smaller content is sent uncompressed.
+     * @param level 1 (fastest) - 9 (smallest) or -1 for the default
+     */
+    public T compressRequest(int level, int minSize) {
+        checkEditMode();
+        if(level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+        requestParameters.compressionLevel = level;
+        requestParameters.compressionMinSize = minSize;
+        return thisParams;
+    }
+
     public T header(String key, String value) {
         checkEditMode();
         requestParameters.headers.add(key, value);
@@ -95,6 +140,64 @@ class OphRequestParameterAccessors<T> {
         return thisParams;
     }
 
+    /**
+     * Retry failed requests as decided by retryPolicy, e.g. ExponentialBackoffRetryPolicy. Replaces retryOnError().
+     * Only idempotent requests (GET, HEAD, OPTIONS, PUT, DELETE) are retried unless retryNonIdempotentRequests() is used.
+     */
+    public T retryPolicy(RetryPolicy retryPolicy) {
+        checkEditMode();
+        requestParameters.retryPolicy = retryPolicy;
+        return thisParams;
+    }
+
+    /**
+     * Allow retrying also POST and PATCH requests. Use only if the server handles duplicate requests.
+     */
+    public T retryNonIdempotentRequests() {
+        checkEditMode();
+        requestParameters.retryNonIdempotent = true;
+        return thisParams;
+    }
+
+    /**
+     * Cap retries with retryBudget. Set it on the client so that all of its requests share the budget.
+     */
+    public T retryBudget(RetryBudget retryBudget) {
+        checkEditMode();
+        requestParameters.retryBudget = retryBudget;
+        return thisParams;
+    }
+
+    /**
+     * Fail fast with CircuitBreakerOpenException while the target service is failing, see CircuitBreaker.
+     * Set it on the client so that all of its requests share the circuits.
+     */
+    public T circuitBreaker(CircuitBreaker circuitBreaker) {
+        checkEditMode();
+        requestParameters.circuitBreaker = circuitBreaker;
+        return thisParams;
+    }
+
+    /**
+     * Limit concurrent requests per route with a limit that adapts to the route's latency, see AdaptiveConcurrencyLimiter.
+     * Set it on the client so that all of its requests share the limits.
+     */
+    public T concurrencyLimiter(AdaptiveConcurrencyLimiter concurrencyLimiter) {
+        checkEditMode();
+        requestParameters.concurrencyLimiter = concurrencyLimiter;
+        return thisParams;
+    }
+
+    /**
+     * Send a second identical GET or HEAD request if the first one is slow, see HedgingPolicy.
+     * Set it on the client so that all of its requests share the latencies and the hedging budget.
+     */
+    public T hedgingPolicy(HedgingPolicy hedgingPolicy) {
+        checkEditMode();
+        requestParameters.hedgingPolicy = hedgingPolicy;
+        return thisParams;
+    }
+
     public T skipResponseAssertions() {
         checkEditMode();
         requestParameters.skipResponseAssertions = true;
@@ -132,4 +235,25 @@ class OphRequestParameterAccessors<T> {
         requestParameters.sendOphHeaders = false;
         return thisParams;
     }
+
+    /**
+     * Use executor for executeAsync() and limit concurrent requests per route with it.
+     * See OphRequestExecutor.virtualThreads()
+     */
+    public T executeWith(OphRequestExecutor executor) {
+        checkEditMode();
+        requestParameters.executor = executor;
+        return thisParams;
+    }
+
+    /**
+     * Identical GET and HEAD requests (same url and headers) made at the same time with execute() or executeAsync()
+     * share one request to the server. The response body is read into memory and each caller's handler gets its own
+     * copy. Useful for urls that many threads fetch at once, e.g. when the cache is empty after a deploy.
+     */
+    public T coalesceIdenticalRequests() {
+        checkEditMode();
+        requestParameters.coalesce = true;
+        return thisParams;
+    }
 }
@@ -1,5 +1,7 @@
 package fi.vm.sade.javautils.httpclient;
 
+import fi.vm.sade.javautils.httpcommon.codec.BodyCodec;
+
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -19,17 +21,33 @@ public class OphRequestParameters implements Cloneable {
     public OphRequestPostWriter dataWriter = null;
     public String contentType = null;
     public String dataWriterCharset = null;
+    public Integer spoolThreshold = null;
+    public Integer compressionLevel = null;
+    public int compressionMinSize = 0;
+    // dataWriter output while a spooled request is executed
+    public SpooledRequestBody spooledBody = null;
 
     // Assertions for response
     public List<Integer> expectStatus = new ArrayList<>();
     public List<String> acceptMediaTypes = new ArrayList<>();
+    public BodyCodec codec = null;
     public Integer maxRetryCount  = null;
     public Integer retryDelayMs = null;
+    public RetryPolicy retryPolicy = null;
+    public boolean retryNonIdempotent = false;
+    public RetryBudget retryBudget = null;
+    public CircuitBreaker circuitBreaker = null;
+    public AdaptiveConcurrencyLimiter concurrencyLimiter = null;
+    public HedgingPolicy hedgingPolicy = null;
     public boolean skipResponseAssertions = false;
     public OphHttpRequestErrorHandler onError;
     public boolean throwOnlyOnErrorExceptions = false;
     public boolean sendOphHeaders = true;
 
+    // Execution
+    public OphRequestExecutor executor = null;
+    public boolean coalesce = false;
+
     public OphRequestParameters cloneParameters() {
         try {
             OphRequestParameters clone = (OphRequestParameters) super.clone();
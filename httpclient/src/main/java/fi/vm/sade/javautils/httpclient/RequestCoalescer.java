@@ -0,0 +1,64 @@
+package fi.vm.sade.javautils.httpclient;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shares one in-flight request between threads making an identical request at the same time, see
+ * OphRequestParameterAccessors.coalesceIdenticalRequests(). The first thread makes the request and buffers the
+ * response, the others wait for it.
+ */
+class RequestCoalescer {
+    private final ConcurrentHashMap<String, CompletableFuture<BufferedOphHttpResponse>> inFlight = new ConcurrentHashMap<>();
+
+    static boolean canCoalesce(OphRequestParameters requestParameters) {
+        return requestParameters.coalesce
+                && requestParameters.dataWriter == null
+                && (OphHttpClient.Method.GET.equals(requestParameters.method) || OphHttpClient.Method.HEAD.equals(requestParameters.method));
+    }
+
+    /**
+     * @return response for requestParameters, made by this thread or by another thread with identical parameters
+     */
+    BufferedOphHttpResponse execute(OphRequestParameters requestParameters, CallableWithoutException<BufferedOphHttpResponse> request) {
+        String key = key(requestParameters);
+        CompletableFuture<BufferedOphHttpResponse> future = new CompletableFuture<>();
+        CompletableFuture<BufferedOphHttpResponse> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            return join(existing, requestParameters);
+        }
+        try {
+            BufferedOphHttpResponse response = request.call();
+            inFlight.remove(key, future);
+            future.complete(response);
+            return response;
+        } catch (RuntimeException | Error e) {
+            inFlight.remove(key, future);
+            future.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private static BufferedOphHttpResponse join(CompletableFuture<BufferedOphHttpResponse> future, OphRequestParameters requestParameters) {
+        try {
+            return future.join().copyFor(requestParameters);
+        } catch (CompletionException e) {
+            throw new RuntimeException("Error handling url: " + requestParameters.url, e.getCause());
+        }
+    }
+
+    /**
+     * Method, url and headers, other parameters only affect how the response is checked and handled
+     */
+    private static String key(OphRequestParameters requestParameters) {
+        StringBuilder key = new StringBuilder(requestParameters.method).append(' ').append(requestParameters.url);
+        for (Map.Entry<String, List<String>> header : new TreeMap<>(requestParameters.headers).entrySet()) {
+            key.append('\n').append(header.getKey()).append(": ").append(header.getValue());
+        }
+        return key.toString();
+    }
+}
@@ -0,0 +1,74 @@
+package fi.vm.sade.javautils.httpclient;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caps retries to a share of the live traffic so that retries don't multiply the load of an overloaded backend.
+ * Retries during the last 10 seconds may be at most ratio * requests during the same time, but minRetriesPerSecond
+ * are always allowed so that a client with little traffic can still retry. Set it on the client to share it
+ * with all of its requests:
+ * <pre>
+ * client.retryBudget(new RetryBudget(0.1, 5));
+ * </pre>
+ */
+public class RetryBudget {
+    private static final int WINDOW_SECONDS = 10;
+
+    private final double ratio;
+    private final int minRetriesPerSecond;
+    private final long[] seconds = new long[WINDOW_SECONDS];
+    private final long[] requests = new long[WINDOW_SECONDS];
+    private final long[] retries = new long[WINDOW_SECONDS];
+
+    public RetryBudget(double ratio, int minRetriesPerSecond) {
+        if(ratio < 0 || minRetriesPerSecond < 0) {
+            throw new IllegalArgumentException("Invalid retry budget: ratio=" + ratio + " minRetriesPerSecond=" + minRetriesPerSecond);
+        }
+        this.ratio = ratio;
+        this.minRetriesPerSecond = minRetriesPerSecond;
+        Arrays.fill(seconds, -1);
+    }
+
+    /**
+     * Counts a new request (not a retry) into live traffic
+     */
+    synchronized void requestStarted() {
+        requests[slot(now())]++;
+    }
+
+    /**
+     * @return true and counts the retry if it fits into the budget
+     */
+    synchronized boolean tryRetry() {
+        long now = now();
+        slot(now);
+        long windowRequests = 0;
+        long windowRetries = 0;
+        for(int i = 0; i < WINDOW_SECONDS; i++) {
+            if(seconds[i] > now - WINDOW_SECONDS) {
+                windowRequests += requests[i];
+                windowRetries += retries[i];
+            }
+        }
+        if(windowRetries >= Math.max((long) minRetriesPerSecond * WINDOW_SECONDS, (long) (ratio * windowRequests))) {
+            return false;
+        }
+        retries[slot(now)]++;
+        return true;
+    }
+
+    private int slot(long second) {
+        int i = (int) (second % WINDOW_SECONDS);
+        if(seconds[i] != second) {
+            seconds[i] = second;
+            requests[i] = 0;
+            retries[i] = 0;
+        }
+        return i;
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+    }
+}
@@ -0,0 +1,35 @@
+package fi.vm.sade.javautils.httpclient;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Decides whether and when a failed request is sent again, see OphRequestParameterAccessors.retryPolicy().
+ * Only idempotent requests are retried unless retryNonIdempotentRequests() is used, and retries can be capped
+ * client-wide with a RetryBudget.
+ */
+public interface RetryPolicy {
+    long NO_RETRY = -1;
+
+    List<String> IDEMPOTENT_METHODS = Arrays.asList(OphHttpClient.Method.GET, OphHttpClient.Method.HEAD,
+            OphHttpClient.Method.OPTIONS, OphHttpClient.Method.PUT, OphHttpClient.Method.DELETE);
+
+    /**
+     * @param attempt number of the failed attempt, 1 for the first request
+     * @param response response of the failed attempt, null if no response was received (e.g. connection refused or timeout)
+     * @param error exception thrown by the request, the response assertions or the handler
+     * @return milliseconds to wait before the next attempt or NO_RETRY
+     */
+    long retryDelayMs(OphRequestParameters requestParameters, int attempt, OphHttpResponse response, RuntimeException error);
+
+    /**
+     * Retries any exception, including failed assertions and handler exceptions, with a fixed delay. Used by retryOnError().
+     */
+    static RetryPolicy fixedDelay(int maxAttempts, long delayMs) {
+        return (requestParameters, attempt, response, error) -> attempt < maxAttempts ? Math.max(0, delayMs) : NO_RETRY;
+    }
+
+    static boolean isIdempotent(String method) {
+        return IDEMPOTENT_METHODS.contains(method);
+    }
+}
@@ -0,0 +1,190 @@
+package fi.vm.sade.javautils.httpclient;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.SequenceInputStream;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Request body written once by the dataWriter and kept in memory up to memoryThreshold bytes, larger bodies in a temp
+ * file. The body has an exact length so it is sent with Content-Length instead of chunked, and retries resend it
+ * without calling the dataWriter again. Files are sent with FileChannel.transferTo(). Memory is kept in 64KB chunks
+ * that are reused by later requests. Created by spoolRequestBody(), the body is deleted when the request is done.
+ * With compressRequest() the gzipped content is spooled.
+ */
+public class SpooledRequestBody implements AutoCloseable {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_POOLED_CHUNKS = 64;
+    private static final ConcurrentLinkedQueue<byte[]> chunkPool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooledChunks = new AtomicInteger();
+
+    private final int memoryThreshold;
+    private final List<byte[]> chunks = new ArrayList<>();
+    private long length = 0;
+    private Path file = null;
+    private boolean compressed = false;
+
+    private SpooledRequestBody(int memoryThreshold) {
+        this.memoryThreshold = memoryThreshold;
+    }
+
+    public static SpooledRequestBody spool(OphRequestParameters requestParameters) throws IOException {
+        SpooledRequestBody body = new SpooledRequestBody(requestParameters.spoolThreshold);
+        OutputStream out = body.new SpoolOutputStream();
+        CompressingOutputStream compressing = null;
+        if(requestParameters.compressionLevel != null) {
+            out = compressing = new CompressingOutputStream(out, requestParameters.compressionLevel, requestParameters.compressionMinSize);
+        }
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(out, requestParameters.dataWriterCharset), 8192)) {
+            requestParameters.dataWriter.writeTo(writer);
+        } catch (IOException | RuntimeException e) {
+            body.close();
+            throw e;
+        }
+        body.compressed = compressing != null && compressing.isCompressed();
+        return body;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public boolean isInMemory() {
+        return file == null;
+    }
+
+    /**
+     * @return true if the body was gzipped by compressRequest()
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    public InputStream getContent() throws IOException {
+        if(file != null) {
+            return Files.newInputStream(file);
+        }
+        List<InputStream> streams = new ArrayList<>();
+        long left = length;
+        for(byte[] chunk : chunks) {
+            streams.add(new ByteArrayInputStream(chunk, 0, (int) Math.min(left, chunk.length)));
+            left -= chunk.length;
+        }
+        return new SequenceInputStream(Collections.enumeration(streams));
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        if(file != null) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                WritableByteChannel target = Channels.newChannel(out);
+                for(long position = 0; position < length; ) {
+                    position += channel.transferTo(position, length - position, target);
+                }
+            }
+        } else {
+            long left = length;
+            for(byte[] chunk : chunks) {
+                out.write(chunk, 0, (int) Math.min(left, chunk.length));
+                left -= chunk.length;
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Returns the memory to the pool and deletes the temp file
+     */
+    @Override
+    public void close() {
+        releaseChunks();
+        if(file != null) {
+            file.toFile().delete();
+        }
+    }
+
+    private void releaseChunks() {
+        for(byte[] chunk : chunks) {
+            if(pooledChunks.incrementAndGet() <= MAX_POOLED_CHUNKS) {
+                chunkPool.offer(chunk);
+            } else {
+                pooledChunks.decrementAndGet();
+            }
+        }
+        chunks.clear();
+    }
+
+    private static byte[] takeChunk() {
+        byte[] chunk = chunkPool.poll();
+        if(chunk == null) {
+            return new byte[CHUNK_SIZE];
+        }
+        pooledChunks.decrementAndGet();
+        return chunk;
+    }
+
+    private class SpoolOutputStream extends OutputStream {
+        private OutputStream fileOut = null;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if(fileOut == null && length + len > memoryThreshold) {
+                overflowToFile();
+            }
+            if(fileOut != null) {
+                fileOut.write(b, off, len);
+                length += len;
+                return;
+            }
+            while(len > 0) {
+                int position = (int) (length % CHUNK_SIZE);
+                if(position == 0 && length / CHUNK_SIZE == chunks.size()) {
+                    chunks.add(takeChunk());
+                }
+                int n = Math.min(len, CHUNK_SIZE - position);
+                System.arraycopy(b, off, chunks.get(chunks.size() - 1), position, n);
+                off += n;
+                len -= n;
+                length += n;
+            }
+        }
+
+        private void overflowToFile() throws IOException {
+            file = Files.createTempFile("OphHttpRequest", ".body");
+            fileOut = new BufferedOutputStream(Files.newOutputStream(file), CHUNK_SIZE);
+            long left = length;
+            for(byte[] chunk : chunks) {
+                fileOut.write(chunk, 0, (int) Math.min(left, chunk.length));
+                left -= chunk.length;
+            }
+            releaseChunks();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(fileOut != null) {
+                fileOut.close();
+            }
+        }
+    }
+}
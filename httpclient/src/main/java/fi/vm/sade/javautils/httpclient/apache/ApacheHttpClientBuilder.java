@@ -1,6 +1,11 @@
 package fi.vm.sade.javautils.httpclient.apache;
 
 import fi.vm.sade.javautils.httpclient.OphHttpClient;
+import fi.vm.sade.javautils.httpcommon.cache.StaleWhileRevalidate;
+import fi.vm.sade.javautils.httpcommon.codec.BufferPool;
+import fi.vm.sade.javautils.httpcommon.metrics.HttpClientMetrics;
+import fi.vm.sade.javautils.httpcommon.metrics.RequestTimingInstrumentation;
+import fi.vm.sade.javautils.httpcommon.metrics.RequestTimingListener;
 import fi.vm.sade.properties.OphProperties;
 import org.apache.http.client.CookieStore;
 import org.apache.http.client.config.RequestConfig;
@@ -10,7 +15,10 @@ import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.cache.CacheConfig;
 import org.apache.http.impl.client.cache.CachingHttpClientBuilder;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.execchain.ClientExecChain;
 
+import java.io.Closeable;
+import java.io.File;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -26,14 +34,25 @@ public class ApacheHttpClientBuilder {
     // default to non-caching closableClient
     private HttpClientBuilder httpBuilder = HttpClientBuilder.create();
     private CookieStore cookieStore = null;
+    private PoolingHttpClientConnectionManager connectionManager = null;
+    private HttpClientMetrics metrics = HttpClientMetrics.NONE;
+    private RequestTimingListener requestTimingListener = null;
+    private boolean requestTimingInstalled = false;
+    private BufferPool bufferPool = null;
 
     public ApacheOphHttpClient build() {
         disableRedirectHandling();
+        if(!requestTimingInstalled) {
+            RequestTimingInstrumentation.install(httpBuilder, requestTimingListener);
+            requestTimingInstalled = true;
+        }
         return new ApacheOphHttpClient(this);
     }
 
     public ApacheHttpClientBuilder createClosableClient() {
         httpBuilder = HttpClientBuilder.create();
+        connectionManager = null;
+        requestTimingInstalled = false;
         return this;
     }
 
@@ -44,17 +63,59 @@ public class ApacheHttpClientBuilder {
     }
 
     public ApacheHttpClientBuilder createCachingClient(int maxCacheEntries, int maxObjectSize) {
-        CachingHttpClientBuilder builder = CachingHttpClientBuilder.create();
+        CachingBuilder builder = new CachingBuilder();
         CacheConfig cacheConfig = CacheConfig.custom().
                 setMaxCacheEntries(maxCacheEntries).
                 setMaxObjectSize(maxObjectSize).build();
         builder.setCacheConfig(cacheConfig);
         this.httpBuilder = builder;
+        this.connectionManager = null;
+        this.requestTimingInstalled = false;
+        return this;
+    }
+
+    public ApacheHttpClientBuilder createPersistentCachingClient(File cacheDirectory, long maxCacheBytes) {
+        final int maxObjectSize = 10 * 1024 * 1024; // 10MB
+        return createPersistentCachingClient(cacheDirectory, maxCacheBytes, maxObjectSize);
+    }
+
+    /**
+     * Caching client that stores the cache in memory-mapped files in cacheDirectory, see MappedFileHttpCacheStorage.
+     * The cache is reloaded when the client is created again with the same directory. Closing the client closes the storage.
+     */
+    public ApacheHttpClientBuilder createPersistentCachingClient(File cacheDirectory, long maxCacheBytes, int maxObjectSize) {
+        MappedFileHttpCacheStorage storage = new MappedFileHttpCacheStorage(cacheDirectory, maxCacheBytes,
+                (int) Math.min(Integer.MAX_VALUE, Math.max(maxObjectSize + 64 * 1024, Math.min(256 * 1024 * 1024, maxCacheBytes / 8))));
+        CachingBuilder builder = new CachingBuilder();
+        builder.addCloseable(storage);
+        CacheConfig cacheConfig = CacheConfig.custom().
+                setMaxObjectSize(maxObjectSize).build();
+        builder.setCacheConfig(cacheConfig);
+        builder.setHttpCacheStorage(storage);
+        this.httpBuilder = builder;
+        this.connectionManager = null;
+        this.requestTimingInstalled = false;
+        return this;
+    }
+
+    /**
+     * Serve stale cached responses while they are revalidated in the background, see StaleWhileRevalidate.
+     * Call after createCachingClient() or createPersistentCachingClient().
+     */
+    public ApacheHttpClientBuilder setStaleWhileRevalidate(StaleWhileRevalidate staleWhileRevalidate) {
+        if (!(httpBuilder instanceof CachingBuilder)) {
+            throw new IllegalStateException("setStaleWhileRevalidate() requires createCachingClient() or createPersistentCachingClient()");
+        }
+        CachingBuilder builder = (CachingBuilder) httpBuilder;
+        builder.staleWhileRevalidate = staleWhileRevalidate;
+        builder.setSchedulingStrategy(staleWhileRevalidate);
         return this;
     }
 
     public ApacheHttpClientBuilder setHttpClientBuilder(HttpClientBuilder httpBuilder) {
         this.httpBuilder = httpBuilder;
+        this.connectionManager = null;
+        this.requestTimingInstalled = false;
         return this;
     }
 
@@ -88,8 +149,9 @@ public class ApacheHttpClientBuilder {
 
     public ApacheHttpClientBuilder setPoolingConnectionManager(long connectionTimeToLiveSec, int defaultMaxPerRoute, int maxTotal) {
         // multithread support + max connections
-        PoolingHttpClientConnectionManager connectionManager;
-        connectionManager = new PoolingHttpClientConnectionManager(connectionTimeToLiveSec, TimeUnit.MILLISECONDS);
+        // socket factories record connect and TLS handshake times, see RequestTimingInstrumentation
+        connectionManager = new PoolingHttpClientConnectionManager(RequestTimingInstrumentation.socketFactoryRegistry(),
+                null, null, null, connectionTimeToLiveSec, TimeUnit.MILLISECONDS);
         connectionManager.setDefaultMaxPerRoute(defaultMaxPerRoute); // default 2
         connectionManager.setMaxTotal(maxTotal); // default 20
         httpBuilder.setConnectionManager(connectionManager);
@@ -102,6 +164,37 @@ public class ApacheHttpClientBuilder {
         return this;
     }
 
+    /**
+     * Report connection pool stats, request latencies, status codes and retries to metrics,
+     * e.g. DefaultHttpClientMetrics
+     */
+    public ApacheHttpClientBuilder setMetrics(HttpClientMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * Receive pool wait, connect, TLS handshake, time to first byte and body timings of every request, e.g. for
+     * slow call logging. Timings are also available from OphHttpResponse.getTimings(). Call before build().
+     * Connect and TLS times are recorded only with setPoolingConnectionManager() or setDefaultConfiguration().
+     */
+    public ApacheHttpClientBuilder setRequestTimingListener(RequestTimingListener requestTimingListener) {
+        if(requestTimingInstalled) {
+            throw new IllegalStateException("setRequestTimingListener() must be called before build()");
+        }
+        this.requestTimingListener = requestTimingListener;
+        return this;
+    }
+
+    /**
+     * Read asText() bodies that fit in the pooled buffers into buffers shared by all request threads, e.g.
+     * new BufferPool(64 * 1024, 16). By default every body is read into a buffer of its own.
+     */
+    public ApacheHttpClientBuilder setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+        return this;
+    }
+
     public ApacheHttpClientBuilder disableRedirectHandling() {
         httpBuilder.disableRedirectHandling();
         return this;
@@ -118,4 +211,34 @@ public class ApacheHttpClientBuilder {
     public CookieStore getCookieStore() {
         return cookieStore;
     }
+
+    public PoolingHttpClientConnectionManager getConnectionManager() {
+        return connectionManager;
+    }
+
+    public HttpClientMetrics getMetrics() {
+        return metrics;
+    }
+
+    public RequestTimingListener getRequestTimingListener() {
+        return requestTimingListener;
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    private static class CachingBuilder extends CachingHttpClientBuilder {
+        private StaleWhileRevalidate staleWhileRevalidate;
+
+        @Override
+        protected void addCloseable(Closeable closeable) {
+            super.addCloseable(closeable);
+        }
+
+        @Override
+        protected ClientExecChain decorateMainExec(ClientExecChain mainExec) {
+            return super.decorateMainExec(staleWhileRevalidate != null ? staleWhileRevalidate.decorate(mainExec) : mainExec);
+        }
+    }
 }
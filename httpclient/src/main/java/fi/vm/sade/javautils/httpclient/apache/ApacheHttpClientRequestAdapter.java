@@ -1,29 +1,40 @@
 package fi.vm.sade.javautils.httpclient.apache;
 
 import fi.vm.sade.javautils.httpclient.*;
+import fi.vm.sade.javautils.httpcommon.codec.BufferPool;
+import fi.vm.sade.javautils.httpcommon.metrics.RequestTimingInstrumentation;
 import org.apache.http.client.CookieStore;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.*;
+import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.impl.cookie.BasicClientCookie;
 
 import java.io.IOException;
 import java.util.HashMap;
 
 class ApacheHttpClientRequestAdapter implements OphHttpClientProxyRequest {
+    private static final String GZIP = "gzip";
     private final OphRequestParameters requestParameters;
     private final HashMap<String, Boolean> csrfCookiesCreateForHost = new HashMap<>();
     private HttpClient httpClient;
     private CookieStore cookieStore;
+    private BufferPool bufferPool;
+    private volatile HttpRequestBase request;
+    private volatile boolean aborted = false;
 
-    ApacheHttpClientRequestAdapter(OphRequestParameters requestParameters, HttpClient httpClient, CookieStore cookieStore) {
+    ApacheHttpClientRequestAdapter(OphRequestParameters requestParameters, HttpClient httpClient, CookieStore cookieStore, BufferPool bufferPool) {
         this.requestParameters = requestParameters;
         this.httpClient = httpClient;
         this.cookieStore = cookieStore;
+        this.bufferPool = bufferPool;
     }
 
     @Override
     public <R> R execute(final OphHttpResponseHandler<? extends R> handler) throws IOException {
-        return httpClient.execute(createRequest(requestParameters), response -> handler.handleResponse(new ApacheOphHttpResponse(requestParameters, response)));
+        HttpClientContext context = HttpClientContext.create();
+        return httpClient.execute(start(),
+                response -> handler.handleResponse(new ApacheOphHttpResponse(requestParameters, response, RequestTimingInstrumentation.timings(context), bufferPool)),
+                context);
     }
 
     /**
@@ -31,15 +42,45 @@ class ApacheHttpClientRequestAdapter implements OphHttpClientProxyRequest {
      */
     @Override
     public OphHttpResponse handleManually() throws IOException {
-        return new ApacheOphHttpResponse(requestParameters, httpClient.execute(createRequest(requestParameters)));
+        HttpClientContext context = HttpClientContext.create();
+        CloseableHttpResponse response = (CloseableHttpResponse) httpClient.execute(start(), context);
+        return new ApacheOphHttpResponse(requestParameters, response, RequestTimingInstrumentation.timings(context), bufferPool);
+    }
+
+    @Override
+    public void abort() {
+        aborted = true;
+        HttpRequestBase started = request;
+        if(started != null) {
+            started.abort();
+        }
+    }
+
+    private HttpRequestBase start() {
+        request = createRequest(requestParameters);
+        if(aborted) {
+            request.abort();
+        }
+        return request;
     }
 
     private HttpRequestBase createRequest(OphRequestParameters requestParameters) {
         HttpRequestBase request = getHttpClientRequest(requestParameters.method, requestParameters.url);
-        if(requestParameters.dataWriter != null) {
-            DataWriterEntity entity = new DataWriterEntity(requestParameters.dataWriterCharset, requestParameters.dataWriter);
+        if(requestParameters.spooledBody != null) {
+            SpooledEntity entity = new SpooledEntity(requestParameters.spooledBody);
+            entity.setContentType(requestParameters.contentType + "; charset=" + requestParameters.dataWriterCharset);
+            if(requestParameters.spooledBody.isCompressed()) {
+                entity.setContentEncoding(GZIP);
+            }
+            ((HttpEntityEnclosingRequestBase)request).setEntity(entity);
+        } else if(requestParameters.dataWriter != null) {
+            DataWriterEntity entity = new DataWriterEntity(requestParameters.dataWriterCharset, requestParameters.dataWriter,
+                    requestParameters.compressionLevel);
             entity.setChunked(true);
             entity.setContentType(requestParameters.contentType + "; charset=" + requestParameters.dataWriterCharset);
+            if(requestParameters.compressionLevel != null) {
+                entity.setContentEncoding(GZIP);
+            }
             ((HttpEntityEnclosingRequestBase)request).setEntity(entity);
         }
         if(!OphHttpClient.CSRF_SAFE_VERBS.contains(requestParameters.method)) {
@@ -1,6 +1,7 @@
 package fi.vm.sade.javautils.httpclient.apache;
 
 import fi.vm.sade.javautils.httpclient.*;
+import fi.vm.sade.javautils.httpcommon.codec.BufferPool;
 import fi.vm.sade.properties.OphProperties;
 import org.apache.http.client.CookieStore;
 import org.apache.http.impl.client.CloseableHttpClient;
@@ -13,10 +14,16 @@ public class ApacheOphHttpClient extends OphHttpClientProxy {
 
     private CloseableHttpClient httpClient;
     private CookieStore cookieStore;
+    private BufferPool bufferPool;
 
     public ApacheOphHttpClient(ApacheHttpClientBuilder builder) {
         httpClient = builder.getHttpBuilder().build();
         cookieStore = builder.getCookieStore();
+        bufferPool = builder.getBufferPool();
+        setMetrics(builder.getMetrics());
+        if(builder.getConnectionManager() != null) {
+            builder.getMetrics().connectionPool(builder.getConnectionManager());
+        }
     }
 
     public static OphHttpClient createDefaultOphClient(String callerId, OphProperties urlProperties) {
@@ -48,6 +55,6 @@ public class ApacheOphHttpClient extends OphHttpClientProxy {
 
     @Override
     public OphHttpClientProxyRequest createRequest(OphRequestParameters requestParameters) {
-        return new ApacheHttpClientRequestAdapter(requestParameters, httpClient, cookieStore);
+        return new ApacheHttpClientRequestAdapter(requestParameters, httpClient, cookieStore, bufferPool);
     }
 }
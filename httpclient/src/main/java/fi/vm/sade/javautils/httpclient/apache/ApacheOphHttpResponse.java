@@ -2,12 +2,13 @@ package fi.vm.sade.javautils.httpclient.apache;
 
 import fi.vm.sade.javautils.httpclient.OphHttpResponse;
 import fi.vm.sade.javautils.httpclient.OphRequestParameters;
+import fi.vm.sade.javautils.httpcommon.codec.BufferPool;
+import fi.vm.sade.javautils.httpcommon.codec.ResponseBodies;
+import fi.vm.sade.javautils.httpcommon.metrics.RequestTimings;
 import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.CloseableHttpResponse;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
@@ -16,10 +17,14 @@ import java.util.List;
 class ApacheOphHttpResponse implements OphHttpResponse {
     private OphRequestParameters requestParameters;
     private HttpResponse response;
+    private RequestTimings timings;
+    private BufferPool bufferPool;
 
-    ApacheOphHttpResponse(OphRequestParameters requestParameters, HttpResponse response) {
+    ApacheOphHttpResponse(OphRequestParameters requestParameters, HttpResponse response, RequestTimings timings, BufferPool bufferPool) {
         this.requestParameters = requestParameters;
         this.response = response;
+        this.timings = timings;
+        this.bufferPool = bufferPool;
     }
 
     @Override
@@ -34,7 +39,7 @@ class ApacheOphHttpResponse implements OphHttpResponse {
     @Override
     public String asText() {
         try {
-            return toString(asInputStream());
+            return ResponseBodies.toString(response.getEntity(), bufferPool);
         } catch (IOException e) {
             throw new RuntimeException("Url: " + requestParameters.url, e);
         }
@@ -46,6 +51,10 @@ class ApacheOphHttpResponse implements OphHttpResponse {
             ((CloseableHttpResponse)response).close();
         } catch (IOException e) {
             throw new RuntimeException("Error closing connection: " + requestParameters.url, e);
+        } finally {
+            if(timings != null) {
+                timings.complete();
+            }
         }
     }
 
@@ -79,15 +88,8 @@ class ApacheOphHttpResponse implements OphHttpResponse {
         return requestParameters;
     }
 
-    private static String toString(InputStream stream) throws IOException { // IO
-        BufferedInputStream bis = new BufferedInputStream(stream);
-        ByteArrayOutputStream buf = new ByteArrayOutputStream();
-        int result;
-        result = bis.read();
-        while(result != -1) {
-            buf.write((byte) result);
-            result = bis.read();
-        }
-        return buf.toString();
+    @Override
+    public RequestTimings getTimings() {
+        return timings;
     }
 }
@@ -1,17 +1,28 @@
 package fi.vm.sade.javautils.httpclient.apache;
 
+import fi.vm.sade.javautils.httpclient.CompressingOutputStream;
 import fi.vm.sade.javautils.httpclient.OphRequestPostWriter;
 import org.apache.http.entity.AbstractHttpEntity;
 
 import java.io.*;
+import java.util.zip.GZIPOutputStream;
 
 class DataWriterEntity extends AbstractHttpEntity {
     private OphRequestPostWriter dataWriter;
     private String charsetName;
+    private Integer compressionLevel;
 
     DataWriterEntity(String charsetName, OphRequestPostWriter dataWriter) {
+        this(charsetName, dataWriter, null);
+    }
+
+    /**
+     * @param compressionLevel gzip the content with this level, null for no compression
+     */
+    DataWriterEntity(String charsetName, OphRequestPostWriter dataWriter, Integer compressionLevel) {
         this.dataWriter = dataWriter;
         this.charsetName = charsetName;
+        this.compressionLevel = compressionLevel;
     }
 
     public boolean isRepeatable() {
@@ -32,8 +43,12 @@ class DataWriterEntity extends AbstractHttpEntity {
     }
 
     public void writeTo(final OutputStream outstream) throws IOException {
-        Writer writer = new BufferedWriter(new OutputStreamWriter(outstream, charsetName), 128*1024);
+        GZIPOutputStream gzip = compressionLevel != null ? CompressingOutputStream.gzip(outstream, compressionLevel) : null;
+        Writer writer = new BufferedWriter(new OutputStreamWriter(gzip != null ? gzip : outstream, charsetName), 128*1024);
         dataWriter.writeTo(writer);
         writer.flush();
+        if(gzip != null) {
+            gzip.finish();
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,570 @@
+package fi.vm.sade.javautils.httpclient.apache;
+
+import org.apache.http.Header;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheStorage;
+import org.apache.http.client.cache.HttpCacheUpdateCallback;
+import org.apache.http.client.cache.HttpCacheUpdateException;
+import org.apache.http.client.cache.Resource;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * HttpCacheStorage that keeps cached responses in memory-mapped segment files under a directory so that the cache
+ * survives restarts. Bodies are served straight from the mapped segments, only the index (key -> location) is kept
+ * on the heap.
+ *
+ * Entries are appended to the newest segment. When the total size of the segments would exceed maxBytes the oldest
+ * segment is dropped with all the entries in it. The index is an append-only log (index.log) that is compacted
+ * when the storage is opened and when most of its records are replaced or removed entries. Every record ends with
+ * a CRC32 of the record, an entry that doesn't match it is dropped when it is read. Cached entries are still
+ * validated by the caching client as usual, the storage only remembers them.
+ */
+public class MappedFileHttpCacheStorage implements HttpCacheStorage, Closeable {
+    // 02: records end with a CRC32
+    private static final int RECORD_MAGIC = 0x0bca4e02;
+    private static final int CRC_BYTES = 4;
+    private static final byte INDEX_PUT = 1;
+    private static final byte INDEX_REMOVE = 2;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+    private static final int MIN_SEGMENT_BYTES = 1024 * 1024;
+    private static final int MAX_SEGMENT_BYTES = 256 * 1024 * 1024;
+    // index.log is compacted when it has more dead records than this and than live ones
+    private static final int MIN_DEAD_INDEX_RECORDS = 1000;
+
+    private final File directory;
+    private final long maxBytes;
+    private final int segmentBytes;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final LinkedHashMap<String, Location> index = new LinkedHashMap<>();
+    private final File indexFile;
+    private FileChannel indexLog;
+    private int indexLogRecords;
+    private Segment active;
+    private boolean closed;
+
+    public MappedFileHttpCacheStorage(File directory, long maxBytes) {
+        this(directory, maxBytes, (int) Math.max(MIN_SEGMENT_BYTES, Math.min(MAX_SEGMENT_BYTES, maxBytes / 8)));
+    }
+
+    /**
+     * @param segmentBytes size of one segment file, entries larger than this are not stored
+     */
+    public MappedFileHttpCacheStorage(File directory, long maxBytes, int segmentBytes) {
+        if (maxBytes < segmentBytes) {
+            throw new IllegalArgumentException("maxBytes " + maxBytes + " is smaller than segmentBytes " + segmentBytes);
+        }
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.segmentBytes = segmentBytes;
+        this.indexFile = new File(directory, "index.log");
+        try {
+            Files.createDirectories(directory.toPath());
+            lockChannel = FileChannel.open(new File(directory, "lock").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            lock = tryLock(lockChannel);
+            if (lock == null) {
+                lockChannel.close();
+                throw new IllegalStateException("Cache directory " + directory + " is already in use");
+            }
+            load();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not open http cache in " + directory, e);
+        }
+    }
+
+    @Override
+    public synchronized void putEntry(String key, HttpCacheEntry entry) throws IOException {
+        ensureOpen();
+        byte[] record = serialize(key, entry);
+        if (record.length > segmentBytes) {
+            removeEntry(key);
+            return;
+        }
+        if (active == null || active.position + record.length > active.buffer.capacity()) {
+            active = createSegment(active == null ? 0 : active.id + 1);
+            evict();
+        }
+        ByteBuffer buffer = active.buffer.duplicate();
+        buffer.position(active.position);
+        buffer.put(record);
+        Location location = new Location(active.id, active.position, record.length);
+        active.position += record.length;
+        index.remove(key);
+        index.put(key, location);
+        writeIndex(INDEX_PUT, key, location);
+    }
+
+    @Override
+    public synchronized HttpCacheEntry getEntry(String key) throws IOException {
+        ensureOpen();
+        Location location = index.get(key);
+        if (location == null) {
+            return null;
+        }
+        Segment segment = segments.get(location.segment);
+        HttpCacheEntry entry = segment == null ? null : read(segment, location, key);
+        if (entry == null) {
+            removeEntry(key);
+        }
+        return entry;
+    }
+
+    @Override
+    public synchronized void removeEntry(String key) throws IOException {
+        ensureOpen();
+        if (index.remove(key) != null) {
+            writeIndex(INDEX_REMOVE, key, null);
+        }
+    }
+
+    @Override
+    public synchronized void updateEntry(String key, HttpCacheUpdateCallback callback) throws IOException, HttpCacheUpdateException {
+        HttpCacheEntry updated = callback.update(getEntry(key));
+        if (updated != null) {
+            putEntry(key, updated);
+        } else {
+            removeEntry(key);
+        }
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * @return bytes reserved by the segment files, including space taken by replaced and removed entries
+     */
+    public synchronized long getSegmentBytes() {
+        return (long) segments.size() * segmentBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return number of records in index.log, including records of replaced and removed entries
+     */
+    synchronized int getIndexLogRecords() {
+        return indexLogRecords;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            for (Segment segment : segments.values()) {
+                segment.buffer.force();
+            }
+            indexLog.force(true);
+            indexLog.close();
+        } finally {
+            lock.release();
+            lockChannel.close();
+        }
+    }
+
+    private static FileLock tryLock(FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            return null;
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Cache storage " + directory + " is closed");
+        }
+    }
+
+    private void load() throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        for (File file : files == null ? new File[0] : files) {
+            String name = file.getName();
+            int id;
+            try {
+                id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (file.length() != segmentBytes) {
+                // written with another segment size
+                Files.deleteIfExists(file.toPath());
+                continue;
+            }
+            segments.put(id, new Segment(id, map(file)));
+        }
+        if (indexFile.exists()) {
+            readIndex();
+        }
+        // drop entries that point to missing or partially written records
+        for (Iterator<Map.Entry<String, Location>> it = index.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Location> e = it.next();
+            Segment segment = segments.get(e.getValue().segment);
+            if (segment == null || !isValid(segment, e.getValue(), e.getKey())) {
+                it.remove();
+            } else {
+                segment.position = Math.max(segment.position, e.getValue().offset + e.getValue().length);
+            }
+        }
+        if (!segments.isEmpty()) {
+            active = segments.lastEntry().getValue();
+        }
+        writeCompactedIndex();
+        evict();
+    }
+
+    private void readIndex() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile.toPath())))) {
+            while (true) {
+                byte op;
+                try {
+                    op = in.readByte();
+                } catch (EOFException e) {
+                    return;
+                }
+                try {
+                    String key = readString(in);
+                    if (op == INDEX_PUT) {
+                        Location location = new Location(in.readInt(), in.readInt(), in.readInt());
+                        index.remove(key);
+                        index.put(key, location);
+                    } else if (op == INDEX_REMOVE) {
+                        index.remove(key);
+                    } else {
+                        return;
+                    }
+                } catch (EOFException e) {
+                    // last write was interrupted
+                    return;
+                }
+            }
+        }
+    }
+
+    private void writeCompactedIndex() throws IOException {
+        File tmp = new File(directory, "index.log.tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp.toPath())))) {
+            for (Map.Entry<String, Location> e : index.entrySet()) {
+                writeIndexRecord(out, INDEX_PUT, e.getKey(), e.getValue());
+            }
+        }
+        Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        indexLog = FileChannel.open(indexFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        indexLogRecords = index.size();
+    }
+
+    private void writeIndex(byte op, String key, Location location) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(key.length() + 32);
+        writeIndexRecord(new DataOutputStream(bytes), op, key, location);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        while (buffer.hasRemaining()) {
+            indexLog.write(buffer);
+        }
+        indexLogRecords++;
+        if (indexLogRecords - index.size() > Math.max(MIN_DEAD_INDEX_RECORDS, index.size())) {
+            indexLog.close();
+            writeCompactedIndex();
+        }
+    }
+
+    private static void writeIndexRecord(DataOutputStream out, byte op, String key, Location location) throws IOException {
+        out.writeByte(op);
+        writeString(out, key);
+        if (op == INDEX_PUT) {
+            out.writeInt(location.segment);
+            out.writeInt(location.offset);
+            out.writeInt(location.length);
+        }
+        out.flush();
+    }
+
+    private Segment createSegment(int id) throws IOException {
+        Segment segment = new Segment(id, map(new File(directory, SEGMENT_PREFIX + id + SEGMENT_SUFFIX)));
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private MappedByteBuffer map(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(segmentBytes);
+            // the mapping stays valid after the channel is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+    }
+
+    private void evict() throws IOException {
+        while ((long) segments.size() * segmentBytes > maxBytes && segments.size() > 1) {
+            Segment oldest = segments.pollFirstEntry().getValue();
+            List<String> removed = new ArrayList<>();
+            for (Map.Entry<String, Location> e : index.entrySet()) {
+                if (e.getValue().segment == oldest.id) {
+                    removed.add(e.getKey());
+                }
+            }
+            for (String key : removed) {
+                removeEntry(key);
+            }
+            // resources returned earlier keep using the mapping, it is released when they are garbage collected
+            Files.deleteIfExists(new File(directory, SEGMENT_PREFIX + oldest.id + SEGMENT_SUFFIX).toPath());
+        }
+    }
+
+    private static boolean isValid(Segment segment, Location location, String key) {
+        if (location.offset < 0 || location.length < 0 || (long) location.offset + location.length > segment.buffer.capacity()) {
+            return false;
+        }
+        try {
+            ByteBuffer buffer = record(segment, location);
+            return buffer.getInt() == RECORD_MAGIC && key.equals(readString(buffer));
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads the whole record, so only done when the entry is read and not for every entry when the storage is opened
+     */
+    private static boolean hasValidChecksum(Segment segment, Location location) {
+        if (location.length < CRC_BYTES) {
+            return false;
+        }
+        ByteBuffer buffer = record(segment, location);
+        buffer.limit(location.length - CRC_BYTES);
+        CRC32 crc = new CRC32();
+        crc.update(buffer);
+        return (int) crc.getValue() == buffer.limit(location.length).getInt();
+    }
+
+    private static ByteBuffer record(Segment segment, Location location) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(location.offset).limit(location.offset + location.length);
+        return buffer.slice();
+    }
+
+    private static byte[] serialize(String key, HttpCacheEntry entry) throws IOException {
+        Resource resource = entry.getResource();
+        long bodyLength = resource == null ? -1 : resource.length();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024 + (int) Math.max(0, Math.min(bodyLength, Integer.MAX_VALUE - 1024)));
+        CRC32 crc = new CRC32();
+        DataOutputStream out = new DataOutputStream(new CheckedOutputStream(bytes, crc));
+        out.writeInt(RECORD_MAGIC);
+        writeString(out, key);
+        out.writeLong(entry.getRequestDate().getTime());
+        out.writeLong(entry.getResponseDate().getTime());
+        ProtocolVersion version = entry.getProtocolVersion();
+        writeString(out, version.getProtocol());
+        out.writeInt(version.getMajor());
+        out.writeInt(version.getMinor());
+        out.writeInt(entry.getStatusCode());
+        writeString(out, entry.getReasonPhrase());
+        Header[] headers = entry.getAllHeaders();
+        out.writeInt(headers.length);
+        for (Header header : headers) {
+            writeString(out, header.getName());
+            writeString(out, header.getValue());
+        }
+        writeString(out, entry.getRequestMethod());
+        Map<String, String> variants = entry.getVariantMap();
+        out.writeInt(variants.size());
+        for (Map.Entry<String, String> variant : variants.entrySet()) {
+            writeString(out, variant.getKey());
+            writeString(out, variant.getValue());
+        }
+        out.writeLong(bodyLength);
+        if (resource != null) {
+            try (InputStream in = resource.getInputStream()) {
+                byte[] buf = new byte[8192];
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    out.write(buf, 0, n);
+                }
+            }
+        }
+        out.flush();
+        new DataOutputStream(bytes).writeInt((int) crc.getValue());
+        return bytes.toByteArray();
+    }
+
+    private static HttpCacheEntry read(Segment segment, Location location, String key) {
+        if (!isValid(segment, location, key) || !hasValidChecksum(segment, location)) {
+            return null;
+        }
+        try {
+            return deserialize(record(segment, location));
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static HttpCacheEntry deserialize(ByteBuffer in) {
+        in.getInt();
+        readString(in);
+        Date requestDate = new Date(in.getLong());
+        Date responseDate = new Date(in.getLong());
+        ProtocolVersion version = new ProtocolVersion(readString(in), in.getInt(), in.getInt());
+        BasicStatusLine statusLine = new BasicStatusLine(version, in.getInt(), readString(in));
+        Header[] headers = new Header[in.getInt()];
+        for (int i = 0; i < headers.length; i++) {
+            headers[i] = new BasicHeader(readString(in), readString(in));
+        }
+        String requestMethod = readString(in);
+        int variantCount = in.getInt();
+        Map<String, String> variants = new HashMap<>();
+        for (int i = 0; i < variantCount; i++) {
+            variants.put(readString(in), readString(in));
+        }
+        long bodyLength = in.getLong();
+        Resource resource = null;
+        if (bodyLength >= 0) {
+            in.limit(in.position() + (int) bodyLength);
+            resource = new MappedResource(in.slice());
+        }
+        return new HttpCacheEntry(requestDate, responseDate, statusLine, headers, resource, variants, requestMethod);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static class Segment {
+        final int id;
+        final MappedByteBuffer buffer;
+        int position;
+
+        Segment(int id, MappedByteBuffer buffer) {
+            this.id = id;
+            this.buffer = buffer;
+        }
+    }
+
+    private static class Location {
+        final int segment;
+        final int offset;
+        final int length;
+
+        Location(int segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Body of a cached entry, read directly from the mapped segment.
+     */
+    private static class MappedResource implements Resource {
+        private final transient ByteBuffer body;
+
+        MappedResource(ByteBuffer body) {
+            this.body = body;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            ByteBuffer buffer = body.duplicate();
+            return new InputStream() {
+                @Override
+                public int read() {
+                    return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    if (len == 0) {
+                        return 0;
+                    }
+                    if (!buffer.hasRemaining()) {
+                        return -1;
+                    }
+                    int n = Math.min(len, buffer.remaining());
+                    buffer.get(b, off, n);
+                    return n;
+                }
+
+                @Override
+                public int available() {
+                    return buffer.remaining();
+                }
+            };
+        }
+
+        @Override
+        public long length() {
+            return body.capacity();
+        }
+
+        @Override
+        public void dispose() {
+        }
+    }
+}
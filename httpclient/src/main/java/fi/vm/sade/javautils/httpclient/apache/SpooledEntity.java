@@ -0,0 +1,37 @@
+package fi.vm.sade.javautils.httpclient.apache;
+
+import fi.vm.sade.javautils.httpclient.SpooledRequestBody;
+import org.apache.http.entity.AbstractHttpEntity;
+
+import java.io.*;
+
+/**
+ * Repeatable entity with an exact Content-Length for spoolRequestBody()
+ */
+class SpooledEntity extends AbstractHttpEntity {
+    private final SpooledRequestBody body;
+
+    SpooledEntity(SpooledRequestBody body) {
+        this.body = body;
+    }
+
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    public long getContentLength() {
+        return body.getLength();
+    }
+
+    public boolean isStreaming() {
+        return false;
+    }
+
+    public InputStream getContent() throws IOException {
+        return body.getContent();
+    }
+
+    public void writeTo(final OutputStream outstream) throws IOException {
+        body.writeTo(outstream);
+    }
+}
@@ -0,0 +1,120 @@
+package fi.vm.sade.javautils.httpclient.jdk;
+
+import fi.vm.sade.javautils.httpclient.OphHttpClient;
+import fi.vm.sade.javautils.httpcommon.metrics.HttpClientMetrics;
+import fi.vm.sade.javautils.httpcommon.metrics.RequestTimingListener;
+import fi.vm.sade.properties.OphProperties;
+
+import java.net.CookieManager;
+import java.net.CookieStore;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.concurrent.Executor;
+
+/**
+ * Helper methods for java.net.http.HttpClient.Builder, see ApacheHttpClientBuilder.
+ *
+ * HTTP/2 is used by default: concurrent requests to a https host are multiplexed over one connection (negotiated
+ * with ALPN, HTTP/1.1 servers get HTTP/1.1). Plain http requests without a body offer an h2c upgrade, use
+ * setVersion(HttpClient.Version.HTTP_1_1) if a server or proxy doesn't cope with it.
+ */
+public class JdkHttpClientBuilder {
+    private HttpClient.Builder httpBuilder = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2);
+    private CookieStore cookieStore = null;
+    private Duration requestTimeout = null;
+    private HttpClientMetrics metrics = HttpClientMetrics.NONE;
+    private RequestTimingListener requestTimingListener = null;
+
+    public JdkOphHttpClient build() {
+        disableRedirectHandling();
+        return new JdkOphHttpClient(this);
+    }
+
+    public JdkHttpClientBuilder setHttpClientBuilder(HttpClient.Builder httpBuilder) {
+        this.httpBuilder = httpBuilder;
+        return this;
+    }
+
+    public JdkHttpClientBuilder setDefaultConfiguration(int timeoutMs) {
+        setTimeouts(timeoutMs);
+        setCookieStore();
+        return this;
+    }
+
+    /**
+     * Connect timeout and the time to wait for the response headers. The body has no read timeout.
+     */
+    public JdkHttpClientBuilder setTimeouts(int timeoutMs) {
+        httpBuilder.connectTimeout(Duration.ofMillis(timeoutMs));
+        requestTimeout = Duration.ofMillis(timeoutMs);
+        return this;
+    }
+
+    public JdkHttpClientBuilder setVersion(HttpClient.Version version) {
+        httpBuilder.version(version);
+        return this;
+    }
+
+    /**
+     * Executor for the client's async tasks, e.g. a virtual thread executor. I/O is done by the client's own
+     * selector thread.
+     */
+    public JdkHttpClientBuilder setExecutor(Executor executor) {
+        httpBuilder.executor(executor);
+        return this;
+    }
+
+    public JdkHttpClientBuilder setCookieStore() {
+        CookieManager cookieManager = new CookieManager();
+        cookieStore = cookieManager.getCookieStore();
+        httpBuilder.cookieHandler(cookieManager);
+        return this;
+    }
+
+    /**
+     * Report request latencies, status codes and retries to metrics, e.g. DefaultHttpClientMetrics.
+     * The JDK client has no connection pool stats.
+     */
+    public JdkHttpClientBuilder setMetrics(HttpClientMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * Receive time to first byte, body and total timings of every request. Connect and TLS times are not available
+     * from the JDK client.
+     */
+    public JdkHttpClientBuilder setRequestTimingListener(RequestTimingListener requestTimingListener) {
+        this.requestTimingListener = requestTimingListener;
+        return this;
+    }
+
+    public JdkHttpClientBuilder disableRedirectHandling() {
+        httpBuilder.followRedirects(HttpClient.Redirect.NEVER);
+        return this;
+    }
+
+    public OphHttpClient buildOphClient(String callerId, OphProperties urlProperties) {
+        return new OphHttpClient(build(), callerId, urlProperties);
+    }
+
+    public HttpClient.Builder getHttpBuilder() {
+        return httpBuilder;
+    }
+
+    public CookieStore getCookieStore() {
+        return cookieStore;
+    }
+
+    public Duration getRequestTimeout() {
+        return requestTimeout;
+    }
+
+    public HttpClientMetrics getMetrics() {
+        return metrics;
+    }
+
+    public RequestTimingListener getRequestTimingListener() {
+        return requestTimingListener;
+    }
+}
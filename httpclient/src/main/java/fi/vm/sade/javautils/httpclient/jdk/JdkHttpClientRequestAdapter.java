@@ -0,0 +1,218 @@
+package fi.vm.sade.javautils.httpclient.jdk;
+
+import fi.vm.sade.javautils.httpclient.*;
+import fi.vm.sade.javautils.httpcommon.metrics.RequestTimingListener;
+import fi.vm.sade.javautils.httpcommon.metrics.RequestTimings;
+
+import java.io.*;
+import java.net.CookieStore;
+import java.net.HttpCookie;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.GZIPOutputStream;
+
+class JdkHttpClientRequestAdapter implements OphHttpClientProxyRequest {
+    private static final String GZIP = "gzip";
+    private final OphRequestParameters requestParameters;
+    private final HttpClient httpClient;
+    private final CookieStore cookieStore;
+    private final Duration requestTimeout;
+    private final RequestTimingListener requestTimingListener;
+    private volatile CompletableFuture<HttpResponse<InputStream>> future;
+    private volatile JdkOphHttpResponse response;
+    private volatile boolean aborted = false;
+
+    JdkHttpClientRequestAdapter(OphRequestParameters requestParameters, HttpClient httpClient, CookieStore cookieStore,
+                                Duration requestTimeout, RequestTimingListener requestTimingListener) {
+        this.requestParameters = requestParameters;
+        this.httpClient = httpClient;
+        this.cookieStore = cookieStore;
+        this.requestTimeout = requestTimeout;
+        this.requestTimingListener = requestTimingListener;
+    }
+
+    @Override
+    public <R> R execute(final OphHttpResponseHandler<? extends R> handler) throws IOException {
+        JdkOphHttpResponse response = send();
+        try {
+            R result = handler.handleResponse(response);
+            response.consume();
+            return result;
+        } finally {
+            response.close();
+        }
+    }
+
+    /**
+     * Should not be used. Use execute() instead because it closes connection automatically.
+     */
+    @Override
+    public OphHttpResponse handleManually() throws IOException {
+        return send();
+    }
+
+    @Override
+    public void abort() {
+        aborted = true;
+        CompletableFuture<HttpResponse<InputStream>> started = future;
+        if(started != null) {
+            started.cancel(true);
+        }
+        JdkOphHttpResponse received = response;
+        if(received != null) {
+            received.close();
+        }
+    }
+
+    private JdkOphHttpResponse send() throws IOException {
+        OutputStreamBodyPublisher streamingBody = requestParameters.spooledBody == null && requestParameters.dataWriter != null
+                ? new OutputStreamBodyPublisher() : null;
+        HttpRequest request = createRequest(streamingBody);
+        RequestTimings timings = new RequestTimings(requestParameters.method, requestParameters.url, requestTimingListener);
+        timings.requestSending();
+        CompletableFuture<HttpResponse<InputStream>> started = httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream());
+        future = started;
+        if(aborted) {
+            started.cancel(true);
+        }
+        if(streamingBody != null) {
+            started.whenComplete((r, e) -> streamingBody.exchangeEnded());
+            writeBody(streamingBody, started);
+        }
+        timings.requestSent();
+        HttpResponse<InputStream> httpResponse = await(started);
+        timings.responseReceived();
+        response = new JdkOphHttpResponse(requestParameters, httpResponse, timings);
+        if(aborted) {
+            response.close();
+        }
+        return response;
+    }
+
+    private void writeBody(OutputStreamBodyPublisher body, CompletableFuture<?> started) throws IOException {
+        try {
+            GZIPOutputStream gzip = requestParameters.compressionLevel != null ? CompressingOutputStream.gzip(body, requestParameters.compressionLevel) : null;
+            Writer writer = new BufferedWriter(new OutputStreamWriter(gzip != null ? gzip : body, requestParameters.dataWriterCharset), 128*1024);
+            requestParameters.dataWriter.writeTo(writer);
+            writer.flush();
+            if(gzip != null) {
+                gzip.finish();
+            }
+            body.close();
+        } catch (IOException e) {
+            if(!started.isDone()) {
+                body.fail(e);
+                started.cancel(true);
+                throw e;
+            }
+            // response came before the whole body was sent (or the request failed), await() returns or throws it
+        } catch (RuntimeException e) {
+            body.fail(e);
+            started.cancel(true);
+            throw e;
+        }
+    }
+
+    private HttpResponse<InputStream> await(CompletableFuture<HttpResponse<InputStream>> started) throws IOException {
+        try {
+            return started.get();
+        } catch (InterruptedException e) {
+            started.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted: " + requestParameters.url);
+        } catch (CancellationException e) {
+            throw new InterruptedIOException("Request aborted: " + requestParameters.url);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof CancellationException) {
+                throw new InterruptedIOException("Request aborted: " + requestParameters.url);
+            }
+            if(cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if(cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Error handling url: " + requestParameters.url, cause);
+        }
+    }
+
+    private HttpRequest createRequest(OutputStreamBodyPublisher streamingBody) {
+        URI uri = URI.create(requestParameters.url);
+        HttpRequest.Builder request = HttpRequest.newBuilder(uri);
+        HttpRequest.BodyPublisher body = HttpRequest.BodyPublishers.noBody();
+        if(requestParameters.spooledBody != null) {
+            SpooledRequestBody spooledBody = requestParameters.spooledBody;
+            if(spooledBody.getLength() > 0) {
+                // known length, sent with Content-Length and resent from the start if the client retries
+                body = HttpRequest.BodyPublishers.fromPublisher(HttpRequest.BodyPublishers.ofInputStream(() -> {
+                    try {
+                        return spooledBody.getContent();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }), spooledBody.getLength());
+            }
+            request.setHeader("Content-Type", requestParameters.contentType + "; charset=" + requestParameters.dataWriterCharset);
+            if(spooledBody.isCompressed()) {
+                request.setHeader("Content-Encoding", GZIP);
+            }
+        } else if(streamingBody != null) {
+            body = streamingBody;
+            request.setHeader("Content-Type", requestParameters.contentType + "; charset=" + requestParameters.dataWriterCharset);
+            if(requestParameters.compressionLevel != null) {
+                request.setHeader("Content-Encoding", GZIP);
+            }
+        }
+        request.method(method(requestParameters.method, requestParameters.url), body);
+        if(requestTimeout != null) {
+            request.timeout(requestTimeout);
+        }
+        if(!OphHttpClient.CSRF_SAFE_VERBS.contains(requestParameters.method)) {
+            ensureCSRFCookie(uri);
+        }
+        if(!requestParameters.headers.containsKey("Accept-Encoding")) {
+            request.setHeader("Accept-Encoding", GZIP);
+        }
+        for(String header : requestParameters.headers.keySet()) {
+            for(String value: requestParameters.headers.get(header)) {
+                request.setHeader(header, value);
+            }
+        }
+        return request.build();
+    }
+
+    private void ensureCSRFCookie(URI uri) {
+        if(cookieStore != null) {
+            synchronized (cookieStore) {
+                if(cookieStore.get(uri).stream().noneMatch(cookie -> "CSRF".equals(cookie.getName()))) {
+                    HttpCookie cookie = new HttpCookie("CSRF", "CSRF");
+                    cookie.setPath("/");
+                    cookie.setVersion(0);
+                    // stored for the host of the uri like BasicClientCookie with a domain
+                    cookieStore.add(uri, cookie);
+                }
+            }
+        }
+    }
+
+    private static String method(String method, String url) {
+        switch (method) {
+            case OphHttpClient.Method.GET:
+            case OphHttpClient.Method.HEAD:
+            case OphHttpClient.Method.OPTIONS:
+            case OphHttpClient.Method.POST:
+            case OphHttpClient.Method.PUT:
+            case OphHttpClient.Method.PATCH:
+            case OphHttpClient.Method.DELETE:
+                return method;
+        }
+        throw new RuntimeException("Unsupported HTTP method: " + method + " for url: " + url);
+    }
+}
@@ -0,0 +1,72 @@
+package fi.vm.sade.javautils.httpclient.jdk;
+
+import fi.vm.sade.javautils.httpclient.*;
+import fi.vm.sade.javautils.httpcommon.metrics.RequestTimingListener;
+import fi.vm.sade.properties.OphProperties;
+
+import java.net.CookieStore;
+import java.net.http.HttpClient;
+import java.time.Duration;
+
+/**
+ * OphHttpClientProxy on java.net.http.HttpClient. HTTP/2 multiplexes concurrent requests to a host over one
+ * connection instead of a connection per request, see JdkHttpClientBuilder. Responses are read as streams like
+ * with ApacheOphHttpClient, the Apache specific caching and connection pool stats are not available.
+ */
+public class JdkOphHttpClient extends OphHttpClientProxy {
+    private static final int DEFAULT_TIMEOUT_IN_MS = 10000;
+
+    private HttpClient httpClient;
+    private CookieStore cookieStore;
+    private Duration requestTimeout;
+    private RequestTimingListener requestTimingListener;
+
+    public JdkOphHttpClient(JdkHttpClientBuilder builder) {
+        httpClient = builder.getHttpBuilder().build();
+        cookieStore = builder.getCookieStore();
+        requestTimeout = builder.getRequestTimeout();
+        requestTimingListener = builder.getRequestTimingListener();
+        setMetrics(builder.getMetrics());
+    }
+
+    public static OphHttpClient createDefaultOphClient(String callerId, OphProperties urlProperties) {
+        return createDefaultOphClient(callerId, urlProperties, DEFAULT_TIMEOUT_IN_MS);
+    }
+
+    public static OphHttpClient createDefaultOphClient(String callerId, OphProperties urlProperties, int timeoutMs) {
+        return new JdkHttpClientBuilder()
+                .setDefaultConfiguration(timeoutMs)
+                .buildOphClient(callerId, urlProperties);
+    }
+
+    public static JdkHttpClientBuilder createCustomBuilder() {
+        return new JdkHttpClientBuilder();
+    }
+
+    public CookieStore getCookieStore() {
+        return this.cookieStore;
+    }
+
+    public HttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    /**
+     * Waits for the requests in progress and closes the connections on Java 21+, where HttpClient is AutoCloseable.
+     * On Java 17 the connections and the client's threads are released when the client is garbage collected.
+     */
+    public void close() {
+        if(httpClient instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) httpClient).close();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public OphHttpClientProxyRequest createRequest(OphRequestParameters requestParameters) {
+        return new JdkHttpClientRequestAdapter(requestParameters, httpClient, cookieStore, requestTimeout, requestTimingListener);
+    }
+}
@@ -0,0 +1,158 @@
+package fi.vm.sade.javautils.httpclient.jdk;
+
+import fi.vm.sade.javautils.httpclient.OphHttpClient;
+import fi.vm.sade.javautils.httpclient.OphHttpResponse;
+import fi.vm.sade.javautils.httpclient.OphRequestParameters;
+import fi.vm.sade.javautils.httpcommon.metrics.RequestTimings;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.http.HttpResponse;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * gzip and deflate bodies are decompressed like Apache's ResponseContentEncoding does, Content-Encoding,
+ * Content-Length and Content-MD5 headers of the compressed body are then hidden.
+ */
+class JdkOphHttpResponse implements OphHttpResponse {
+    private static final List<String> DECODED_HEADERS = Arrays.asList("content-encoding", "content-length", "content-md5");
+
+    private OphRequestParameters requestParameters;
+    private HttpResponse<InputStream> response;
+    private RequestTimings timings;
+    private final String contentEncoding;
+    private final InputStream body;
+    private volatile boolean bodyClosed = false;
+    private InputStream content;
+
+    JdkOphHttpResponse(OphRequestParameters requestParameters, HttpResponse<InputStream> response, RequestTimings timings) {
+        this.requestParameters = requestParameters;
+        this.response = response;
+        this.timings = timings;
+        this.contentEncoding = contentEncoding(requestParameters, response);
+        this.body = new FilterInputStream(response.body()) {
+            @Override
+            public void close() throws IOException {
+                bodyClosed = true;
+                super.close();
+            }
+        };
+    }
+
+    @Override
+    public synchronized InputStream asInputStream() {
+        if(content == null) {
+            try {
+                content = decoded(body);
+            } catch (IOException e) {
+                throw new RuntimeException("Url: " + requestParameters.url, e);
+            }
+        }
+        return content;
+    }
+
+    @Override
+    public String asText() {
+        Charset charset = getCharset();
+        try (InputStream stream = asInputStream()) {
+            return new String(stream.readAllBytes(), charset != null ? charset : Charset.defaultCharset());
+        } catch (IOException e) {
+            throw new RuntimeException("Url: " + requestParameters.url, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            InputStream stream;
+            synchronized (this) {
+                stream = content != null ? content : body;
+            }
+            stream.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Error closing connection: " + requestParameters.url, e);
+        } finally {
+            if(timings != null) {
+                timings.complete();
+            }
+        }
+    }
+
+    /**
+     * Reads the rest of the body so that a HTTP/1.1 connection can be reused, like Apache's EntityUtils.consume().
+     * Closing an unread body closes the connection, or resets the stream on HTTP/2.
+     */
+    void consume() throws IOException {
+        if(!bodyClosed) {
+            body.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+
+    @Override
+    public int getStatusCode() {
+        return response.statusCode();
+    }
+
+    @Override
+    public List<String> getHeaderValues(String key) {
+        if(contentEncoding != null && DECODED_HEADERS.contains(key.toLowerCase(Locale.ROOT))) {
+            return new ArrayList<>();
+        }
+        return new ArrayList<>(response.headers().allValues(key));
+    }
+
+    @Override
+    public List<String> getHeaderKeys() {
+        List<String> ret = new ArrayList<>();
+        for(String key: response.headers().map().keySet()) {
+            if(contentEncoding == null || !DECODED_HEADERS.contains(key.toLowerCase(Locale.ROOT))) {
+                ret.add(key);
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public OphRequestParameters getRequestParameters() {
+        return requestParameters;
+    }
+
+    @Override
+    public RequestTimings getTimings() {
+        return timings;
+    }
+
+    private InputStream decoded(InputStream stream) throws IOException {
+        if(contentEncoding == null) {
+            return stream;
+        }
+        return contentEncoding.equals("deflate") ? new InflaterInputStream(stream) : new GZIPInputStream(stream);
+    }
+
+    /**
+     * @return gzip or deflate if the body is decompressed, otherwise null
+     */
+    private static String contentEncoding(OphRequestParameters requestParameters, HttpResponse<InputStream> response) {
+        int status = response.statusCode();
+        if(OphHttpClient.Method.HEAD.equals(requestParameters.method) || status == 204 || status == 304) {
+            return null;
+        }
+        String encoding = response.headers().firstValue("Content-Encoding").orElse("").trim().toLowerCase(Locale.ROOT);
+        switch (encoding) {
+            case "gzip":
+            case "x-gzip":
+                return "gzip";
+            case "deflate":
+                return "deflate";
+        }
+        return null;
+    }
+}
@@ -0,0 +1,172 @@
+package fi.vm.sade.javautils.httpclient.jdk;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Flow;
+
+/**
+ * Chunked request body of an OphRequestPostWriter. The calling thread writes the body and blocks until the client
+ * has asked for more, so the body is not buffered and no extra thread is needed. Like DataWriterEntity the body
+ * can be sent only once.
+ */
+class OutputStreamBodyPublisher extends OutputStream implements HttpRequest.BodyPublisher {
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    private final Object lock = new Object();
+    private boolean subscribed = false;
+    private Flow.Subscriber<? super ByteBuffer> subscriber;
+    private long demand = 0;
+    private boolean cancelled = false;
+    private boolean exchangeEnded = false;
+    private Throwable failure;
+    private boolean closed = false;
+    private ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+
+    @Override
+    public long contentLength() {
+        return -1;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        Throwable error;
+        synchronized (lock) {
+            error = subscribed ? new IllegalStateException("Streaming request body can't be sent again") : failure;
+            subscribed = true;
+        }
+        if(error != null) {
+            subscriber.onSubscribe(new Subscription());
+            subscriber.onError(error);
+            return;
+        }
+        subscriber.onSubscribe(new Subscription());
+        synchronized (lock) {
+            this.subscriber = subscriber;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Response was received or the request failed, a writer waiting for demand gives up
+     */
+    void exchangeEnded() {
+        synchronized (lock) {
+            exchangeEnded = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Body could not be written, the request fails instead of sending a truncated body
+     */
+    void fail(Throwable e) {
+        Flow.Subscriber<? super ByteBuffer> s;
+        synchronized (lock) {
+            if(closed) {
+                return;
+            }
+            closed = true;
+            failure = e;
+            s = subscriber;
+        }
+        if(s != null) {
+            s.onError(e);
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while(len > 0) {
+            int n = Math.min(len, chunk.remaining());
+            chunk.put(b, off, n);
+            off += n;
+            len -= n;
+            if(!chunk.hasRemaining()) {
+                emit();
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if(chunk.position() > 0) {
+            emit();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        Flow.Subscriber<? super ByteBuffer> s;
+        synchronized (lock) {
+            if(closed) {
+                return;
+            }
+            awaitSubscriber(false);
+            closed = true;
+            s = subscriber;
+        }
+        s.onComplete();
+    }
+
+    private void emit() throws IOException {
+        Flow.Subscriber<? super ByteBuffer> s;
+        synchronized (lock) {
+            if(closed) {
+                throw new IOException("Request body is closed");
+            }
+            awaitSubscriber(true);
+            demand--;
+            s = subscriber;
+        }
+        chunk.flip();
+        // the client may keep the buffer until it has been sent
+        s.onNext(chunk);
+        chunk = ByteBuffer.allocate(CHUNK_SIZE);
+    }
+
+    private void awaitSubscriber(boolean needsDemand) throws IOException {
+        while(subscriber == null || (needsDemand && demand == 0)) {
+            if(cancelled || exchangeEnded) {
+                throw new IOException("Request ended before the body was written");
+            }
+            try {
+                lock.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while writing request body");
+            }
+        }
+        if(cancelled) {
+            throw new IOException("Request ended before the body was written");
+        }
+    }
+
+    private class Subscription implements Flow.Subscription {
+        @Override
+        public void request(long n) {
+            synchronized (lock) {
+                if(n > 0) {
+                    demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                    lock.notifyAll();
+                }
+            }
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (lock) {
+                cancelled = true;
+                lock.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package fi.vm.sade.javautils.httpclient;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import fi.vm.sade.javautils.httpcommon.metrics.RequestTimings;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class AdaptiveConcurrencyLimiterTest {
+    private static final String URL = "http://localhost:1234/test";
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final OphRequestParameters requestParameters = new OphRequestParameters();
+
+    public AdaptiveConcurrencyLimiterTest() {
+        requestParameters.method = "GET";
+        requestParameters.url = URL;
+    }
+
+    @Test
+    public void rejectsRequestsOverLimit() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(2, 1, 10, 2.0, 0);
+        limiter.acquire(requestParameters);
+        limiter.acquire(requestParameters);
+        assertEquals(2, limiter.getActiveRequests(URL));
+        try {
+            limiter.acquire(requestParameters);
+            fail("should not get here");
+        } catch (ConcurrencyLimitExceededException e) {
+            assertEquals("http://localhost:1234", e.getRoute());
+            assertEquals(2, e.getLimit());
+        }
+        assertEquals(1, limiter.getRejectedRequests(URL));
+    }
+
+    @Test
+    public void queuedRequestGetsSlotWhenRequestFinishes() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 1, 10, 2.0, 5000);
+        AdaptiveConcurrencyLimiter.Route route = limiter.acquire(requestParameters);
+        Thread releaser = new Thread(() -> {
+            sleep(100);
+            route.release(FAST, false);
+        });
+        releaser.start();
+        long start = System.nanoTime();
+        limiter.acquire(requestParameters);
+        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("" + waited, waited >= 50 && waited < 5000);
+        releaser.join();
+
+        AdaptiveConcurrencyLimiter deadline = new AdaptiveConcurrencyLimiter(1, 1, 10, 2.0, 100);
+        deadline.acquire(requestParameters);
+        try {
+            deadline.acquire(requestParameters);
+            fail("should not get here");
+        } catch (ConcurrencyLimitExceededException e) {
+            assertEquals(1, deadline.getRejectedRequests(URL));
+        }
+    }
+
+    @Test
+    public void limitGrowsWhileFastAndShrinksWhenSlow() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(10, 2, 20, 2.0, 0);
+        for (int i = 0; i < 200; i++) {
+            runConcurrently(limiter, limiter.getLimit(URL), FAST, false);
+        }
+        assertEquals(20, limiter.getLimit(URL));
+
+        runConcurrently(limiter, 20, SLOW, false);
+        assertEquals(18, limiter.getLimit(URL));
+        for (int i = 0; i < 100; i++) {
+            sleep(1);
+            runConcurrently(limiter, limiter.getLimit(URL), 0, true);
+        }
+        assertEquals(2, limiter.getLimit(URL));
+    }
+
+    @Test
+    public void idleLimitDoesNotGrow() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(10, 2, 20, 2.0, 0);
+        for (int i = 0; i < 1000; i++) {
+            runConcurrently(limiter, 1, FAST, false);
+        }
+        assertEquals(10, limiter.getLimit(URL));
+    }
+
+    @Test
+    public void onlyNetworkExchangeIsSampled() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(10, 2, 20, 2.0, 0);
+        limiter.limit(requestParameters, exchange -> {
+            exchange.sending();
+            exchange.responded(null);
+            return null;
+        });
+
+        // slow handler
+        limiter.limit(requestParameters, exchange -> {
+            exchange.sending();
+            exchange.responded(null);
+            sleep(50);
+            return null;
+        });
+        // slow cached response
+        limiter.limit(requestParameters, exchange -> {
+            exchange.sending();
+            sleep(50);
+            exchange.responded(new RequestTimings("GET", URL, null));
+            return null;
+        });
+        // rejected before sending
+        assertFailsWithIOException(limiter, false);
+        assertEquals(10, limiter.getLimit(URL));
+        assertEquals(0, limiter.getActiveRequests(URL));
+
+        assertFailsWithIOException(limiter, true);
+        assertEquals(9, limiter.getLimit(URL));
+    }
+
+    private void assertFailsWithIOException(AdaptiveConcurrencyLimiter limiter, boolean sent) {
+        try {
+            limiter.limit(requestParameters, exchange -> {
+                if(sent) {
+                    exchange.sending();
+                }
+                throw new RuntimeException(new IOException("Connection reset"));
+            });
+            fail("should not get here");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    private void runConcurrently(AdaptiveConcurrencyLimiter limiter, int count, long latencyNanos, boolean dropped) {
+        List<AdaptiveConcurrencyLimiter.Route> routes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            routes.add(limiter.acquire(requestParameters));
+        }
+        for (AdaptiveConcurrencyLimiter.Route route : routes) {
+            route.release(latencyNanos, dropped);
+        }
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package fi.vm.sade.javautils.httpclient;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import fi.vm.sade.javautils.httpcommon.metrics.CircuitState;
+import fi.vm.sade.javautils.httpcommon.metrics.DefaultHttpClientMetrics;
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+    private final DefaultHttpClientMetrics metrics = new DefaultHttpClientMetrics();
+    private final OphRequestParameters requestParameters = new OphRequestParameters();
+
+    @Test
+    public void keyIsServiceOfUrlKeyOrRoute() {
+        requestParameters.urlKey = "organisaatio-service.organisaatio.byOid";
+        assertEquals("organisaatio-service", CircuitBreaker.key(requestParameters));
+        requestParameters.urlKey = null;
+        requestParameters.url = "https://virkailija.opintopolku.fi/organisaatio-service/rest";
+        assertEquals("https://virkailija.opintopolku.fi", CircuitBreaker.key(requestParameters));
+    }
+
+    @Test
+    public void opensWhenFailureRateIsExceededAndClosesAfterSuccessfulTrials() throws Exception {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(10, 0.5, 4, 100, 2);
+        call(circuitBreaker, true);
+        call(circuitBreaker, false);
+        call(circuitBreaker, false);
+        assertEquals(CircuitState.CLOSED, circuitBreaker.getState("svc"));
+        call(circuitBreaker, false);
+        assertEquals(CircuitState.OPEN, circuitBreaker.getState("svc"));
+        assertRejected(circuitBreaker);
+
+        Thread.sleep(150);
+        call(circuitBreaker, false);
+        assertEquals(CircuitState.OPEN, circuitBreaker.getState("svc"));
+        assertRejected(circuitBreaker);
+
+        Thread.sleep(150);
+        long first = circuitBreaker.acquire("svc", requestParameters, metrics);
+        long second = circuitBreaker.acquire("svc", requestParameters, metrics);
+        assertEquals(CircuitState.HALF_OPEN, circuitBreaker.getState("svc"));
+        assertRejected(circuitBreaker);
+        circuitBreaker.record("svc", first, true, metrics);
+        circuitBreaker.record("svc", second, true, metrics);
+        assertEquals(CircuitState.CLOSED, circuitBreaker.getState("svc"));
+
+        assertEquals(CircuitState.CLOSED, metrics.getCircuitBreakerStates().get("svc"));
+        assertEquals(2, metrics.getCircuitBreakerOpenings("svc"));
+    }
+
+    @Test
+    public void slidingWindowForgetsOldFailures() {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(4, 0.5, 4, 100, 1);
+        call(circuitBreaker, false);
+        for (int i = 0; i < 10; i++) {
+            call(circuitBreaker, true);
+            call(circuitBreaker, true);
+            call(circuitBreaker, true);
+            call(circuitBreaker, false);
+        }
+        assertEquals(CircuitState.CLOSED, circuitBreaker.getState("svc"));
+        call(circuitBreaker, false);
+        assertEquals(CircuitState.OPEN, circuitBreaker.getState("svc"));
+    }
+
+    @Test
+    public void resultsOfRequestsStartedBeforeStateChangeAreIgnored() throws Exception {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(4, 0.5, 2, 100, 2);
+        long slowSuccess = circuitBreaker.acquire("svc", requestParameters, metrics);
+        long slowFailure = circuitBreaker.acquire("svc", requestParameters, metrics);
+        call(circuitBreaker, false);
+        call(circuitBreaker, false);
+        assertEquals(CircuitState.OPEN, circuitBreaker.getState("svc"));
+
+        Thread.sleep(150);
+        long trial = circuitBreaker.acquire("svc", requestParameters, metrics);
+        assertEquals(CircuitState.HALF_OPEN, circuitBreaker.getState("svc"));
+        circuitBreaker.record("svc", slowSuccess, true, metrics);
+        circuitBreaker.record("svc", trial, true, metrics);
+        assertEquals(CircuitState.HALF_OPEN, circuitBreaker.getState("svc"));
+        circuitBreaker.record("svc", slowFailure, false, metrics);
+        assertEquals(CircuitState.HALF_OPEN, circuitBreaker.getState("svc"));
+
+        call(circuitBreaker, true);
+        assertEquals(CircuitState.CLOSED, circuitBreaker.getState("svc"));
+    }
+
+    private void call(CircuitBreaker circuitBreaker, boolean success) {
+        long generation = circuitBreaker.acquire("svc", requestParameters, metrics);
+        circuitBreaker.record("svc", generation, success, metrics);
+    }
+
+    private void assertRejected(CircuitBreaker circuitBreaker) {
+        try {
+            circuitBreaker.acquire("svc", requestParameters, metrics);
+            fail("should not get here");
+        } catch (CircuitBreakerOpenException e) {
+            assertEquals("svc", e.getKey());
+        }
+    }
+}
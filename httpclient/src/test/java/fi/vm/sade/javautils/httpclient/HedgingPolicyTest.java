@@ -0,0 +1,167 @@
+package fi.vm.sade.javautils.httpclient;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class HedgingPolicyTest {
+    private final OphRequestParameters requestParameters = new OphRequestParameters();
+    private final FakeClient client = new FakeClient();
+
+    public HedgingPolicyTest() {
+        requestParameters.method = "GET";
+        requestParameters.url = "http://localhost/test";
+    }
+
+    @Test
+    public void slowRequestIsHedgedAndLoserAborted() throws Exception {
+        HedgingPolicy policy = new HedgingPolicy(90, 50, 1);
+        warmUp(policy);
+        assertEquals(50, policy.getDelayMs("test"));
+
+        client.latenciesMs.add(5000L);
+        client.latenciesMs.add(0L);
+        long start = System.nanoTime();
+        FakeResponse response = (FakeResponse) policy.send("test", requestParameters, client);
+        long tookMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("" + tookMs, tookMs >= 50 && tookMs < 2000);
+        assertEquals(client.requests.size(), response.request);
+        FakeRequest loser = client.requests.get(client.requests.size() - 2);
+        assertTrue(loser.aborted.await(1, TimeUnit.SECONDS));
+        response.close();
+    }
+
+    @Test
+    public void fastRequestIsNotHedged() {
+        HedgingPolicy policy = new HedgingPolicy(90, 50, 1);
+        warmUp(policy);
+        int requests = client.requests.size();
+        policy.send("test", requestParameters, client).getStatusCode();
+        assertEquals(requests + 1, client.requests.size());
+    }
+
+    @Test
+    public void budgetLimitsHedges() {
+        HedgingPolicy policy = new HedgingPolicy(90, 10, 0);
+        warmUp(policy);
+        int requests = client.requests.size();
+        client.latenciesMs.add(100L);
+        policy.send("test", requestParameters, client);
+        assertEquals(requests + 1, client.requests.size());
+    }
+
+    @Test
+    public void onlyGetAndHeadAreHedged() {
+        assertTrue(HedgingPolicy.canHedge("GET"));
+        assertTrue(HedgingPolicy.canHedge("HEAD"));
+        assertFalse(HedgingPolicy.canHedge("POST"));
+        assertFalse(HedgingPolicy.canHedge("PUT"));
+    }
+
+    private void warmUp(HedgingPolicy policy) {
+        assertEquals(-1, policy.getDelayMs("test"));
+        for (int i = 0; i < 20; i++) {
+            policy.send("test", requestParameters, client);
+        }
+    }
+
+    private static class FakeClient extends OphHttpClientProxy {
+        final List<Long> latenciesMs = new CopyOnWriteArrayList<>();
+        final List<FakeRequest> requests = new CopyOnWriteArrayList<>();
+
+        @Override
+        public OphHttpClientProxyRequest createRequest(OphRequestParameters requestParameters) {
+            FakeRequest request = new FakeRequest(requests.size() + 1, latenciesMs.isEmpty() ? 0 : latenciesMs.remove(0));
+            requests.add(request);
+            return request;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class FakeRequest implements OphHttpClientProxyRequest {
+        final int number;
+        final long latencyMs;
+        final CountDownLatch aborted = new CountDownLatch(1);
+
+        FakeRequest(int number, long latencyMs) {
+            this.number = number;
+            this.latencyMs = latencyMs;
+        }
+
+        @Override
+        public <R> R execute(OphHttpResponseHandler<? extends R> handler) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public OphHttpResponse handleManually() {
+            try {
+                if (aborted.await(latencyMs, TimeUnit.MILLISECONDS)) {
+                    throw new RuntimeException("Aborted " + number);
+                }
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return new FakeResponse(number);
+        }
+
+        @Override
+        public void abort() {
+            aborted.countDown();
+        }
+    }
+
+    private static class FakeResponse implements OphHttpResponse {
+        final int request;
+
+        FakeResponse(int request) {
+            this.request = request;
+        }
+
+        @Override
+        public InputStream asInputStream() {
+            return null;
+        }
+
+        @Override
+        public String asText() {
+            return "" + request;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return 200;
+        }
+
+        @Override
+        public List<String> getHeaderValues(String key) {
+            return new ArrayList<>();
+        }
+
+        @Override
+        public List<String> getHeaderKeys() {
+            return new ArrayList<>();
+        }
+
+        @Override
+        public OphRequestParameters getRequestParameters() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
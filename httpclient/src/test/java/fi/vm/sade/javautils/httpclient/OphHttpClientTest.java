@@ -8,10 +8,12 @@ import static org.hamcrest.CoreMatchers.instanceOf;
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 import static org.mockserver.model.HttpRequest.request;
 import static org.mockserver.model.HttpResponse.response;
 
 import fi.vm.sade.javautils.httpclient.apache.ApacheOphHttpClient;
+import fi.vm.sade.javautils.httpcommon.metrics.RequestTimings;
 import fi.vm.sade.properties.OphProperties;
 import org.junit.Assert;
 import org.junit.Before;
@@ -19,10 +21,19 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.mockserver.client.MockServerClient;
 import org.mockserver.junit.MockServerRule;
+import org.mockserver.matchers.Times;
+import org.mockserver.verify.VerificationTimes;
 
 import java.io.IOException;
 import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -260,6 +271,132 @@ public class OphHttpClientTest {
         }
     }
 
+    @Test
+    public void retryPolicyRetriesUnavailableIdempotentRequests() {
+        MockServerClient mockServer = new MockServerClient("localhost", mockServerRule.getPort());
+        mockServer.when(
+                request().withPath("/test"),
+                Times.exactly(2)
+        ).respond(response()
+                .withStatusCode(503)
+                .withHeader("Retry-After", "0")
+        );
+        mockServer.when(
+                request().withPath("/test")
+        ).respond(response()
+                .withStatusCode(200)
+                .withHeader("Content-Type", TEXT)
+                .withBody("OK!")
+        );
+
+        RetryPolicy retryPolicy = new ExponentialBackoffRetryPolicy(3, 10, 1000);
+        try {
+            client.post("local.test").retryPolicy(retryPolicy).execute(responseAsText);
+            throw new RuntimeException("should not get here");
+        } catch (RuntimeException retryException) {
+            assertContains(retryException.getMessage(), "Tried 1 times POST http://localhost:", "/test");
+        }
+        assertEquals("OK!", client.get("local.test").retryPolicy(retryPolicy).execute(responseAsText));
+        mockServer.verify(request().withPath("/test"), VerificationTimes.exactly(3));
+    }
+
+    @Test
+    public void executeAsyncLimitsConcurrentRequestsPerRoute() throws Exception {
+        new MockServerClient("localhost", mockServerRule.getPort()).when(
+                request()
+                        .withMethod("GET")
+                        .withPath("/test")
+        ).respond(response()
+                .withStatusCode(200)
+                .withHeader("Content-Type", TEXT)
+                .withBody("OK!")
+                .withDelay(TimeUnit.MILLISECONDS, 50)
+        );
+
+        try (OphRequestExecutor executor = new OphRequestExecutor(Executors.newFixedThreadPool(8), 2)) {
+            AtomicInteger maxActive = new AtomicInteger();
+            List<CompletableFuture<String>> responses = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                responses.add(client.get("local.test").executeWith(executor).accept(TEXT).executeAsync(response -> {
+                    maxActive.accumulateAndGet(executor.getActiveRequests(response.getRequestParameters().url), Math::max);
+                    return response.asText();
+                }));
+            }
+            for (CompletableFuture<String> response : responses) {
+                assertEquals("OK!", response.get(10, TimeUnit.SECONDS));
+            }
+            assertEquals(2, maxActive.get());
+            assertEquals(0, executor.getActiveRequests("http://localhost:" + mockServerRule.getPort() + "/test"));
+        }
+    }
+
+    @Test
+    public void identicalConcurrentRequestsShareOneRequest() throws Exception {
+        MockServerClient mockServer = new MockServerClient("localhost", mockServerRule.getPort());
+        mockServer.when(
+                request()
+                        .withMethod("GET")
+                        .withPath("/test")
+        ).respond(response()
+                .withStatusCode(200)
+                .withHeader("Content-Type", TEXT)
+                .withBody("OK!")
+                .withDelay(TimeUnit.MILLISECONDS, 500)
+        );
+
+        client.coalesceIdenticalRequests();
+        try (OphRequestExecutor executor = new OphRequestExecutor(Executors.newFixedThreadPool(8), 8)) {
+            List<CompletableFuture<String>> responses = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                responses.add(client.get("local.test").executeWith(executor).accept(TEXT).executeAsync(responseAsText));
+            }
+            for (CompletableFuture<String> response : responses) {
+                assertEquals("OK!", response.get(10, TimeUnit.SECONDS));
+            }
+        }
+        mockServer.verify(request().withMethod("GET").withPath("/test"), VerificationTimes.exactly(1));
+    }
+
+    @Test
+    public void requestTimingsAreRecorded() {
+        new MockServerClient("localhost", mockServerRule.getPort()).when(
+                request()
+                        .withMethod("GET")
+                        .withPath("/test")
+        ).respond(response()
+                .withStatusCode(200)
+                .withHeader("Content-Type", TEXT)
+                .withBody("OK!")
+                .withDelay(TimeUnit.MILLISECONDS, 200)
+        );
+
+        List<RequestTimings> completed = new CopyOnWriteArrayList<>();
+        OphHttpClient timedClient = ApacheOphHttpClient.createCustomBuilder()
+                .createClosableClient()
+                .setDefaultConfiguration(1000, 1000)
+                .setRequestTimingListener(completed::add)
+                .buildOphClient("TESTCLIENT", properties);
+        for (int i = 0; i < 2; i++) {
+            RequestTimings timings = timedClient.get("local.test").accept(TEXT).execute(OphHttpResponse::getTimings);
+            assertEquals(i == 1, timings.isConnectionReused());
+            assertTrue(timings.getTimeToFirstByteNanos() >= TimeUnit.MILLISECONDS.toNanos(200));
+            assertTrue(timings.getTotalNanos() >= timings.getTimeToFirstByteNanos() + timings.getBodyNanos());
+            assertEquals(i == 0, timings.getConnectNanos() >= 0);
+        }
+        assertEquals(2, completed.size());
+        assertTrue(completed.get(0).getUri().endsWith("/test"));
+    }
+
+    @Test
+    public void executeAsyncRequiresExecutor() {
+        try {
+            client.get("local.test").executeAsync();
+            throw new RuntimeException("should not get here");
+        } catch (RuntimeException e) {
+            assertEquals("executeAsync() requires an executor, see executeWith()", e.getMessage());
+        }
+    }
+
     private void wrappedGetWithVarArgs(String... args) {
         assertEquals("OK!", client.get("local.test", (Object[])args)
                 .accept(TEXT)
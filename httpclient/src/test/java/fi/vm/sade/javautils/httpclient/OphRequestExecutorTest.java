@@ -0,0 +1,29 @@
+package fi.vm.sade.javautils.httpclient;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class OphRequestExecutorTest {
+
+    @Test
+    public void virtualThreadsAreUsedWhenSupported() throws Exception {
+        boolean java21 = Runtime.version().feature() >= 21;
+        assertEquals(java21, OphRequestExecutor.isVirtualThreadsSupported());
+        if (!java21) {
+            try {
+                OphRequestExecutor.virtualThreads(1);
+                throw new RuntimeException("should not get here");
+            } catch (UnsupportedOperationException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("Virtual threads require Java 21 or newer"));
+            }
+            return;
+        }
+        try (OphRequestExecutor executor = OphRequestExecutor.virtualThreads(1)) {
+            Thread thread = executor.submit(Thread::currentThread).get();
+            assertEquals(true, Thread.class.getMethod("isVirtual").invoke(thread));
+            assertTrue(thread.getName(), thread.getName().startsWith("OphHttpRequest-"));
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package fi.vm.sade.javautils.httpclient;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class RetryPolicyTest {
+    private final OphRequestParameters get = new OphRequestParameters();
+    private final RuntimeException error = new RuntimeException("Thrown for testing");
+
+    @Test
+    public void exponentialBackoffUsesFullJitterUpToMaxDelay() {
+        ExponentialBackoffRetryPolicy policy = new ExponentialBackoffRetryPolicy(10, 100, 1000);
+        for (int attempt = 1; attempt < 10; attempt++) {
+            long cap = Math.min(1000, 100L << (attempt - 1));
+            long max = 0;
+            for (int i = 0; i < 1000; i++) {
+                long delay = policy.retryDelayMs(get, attempt, null, error);
+                assertTrue(attempt + ": " + delay, delay >= 0 && delay <= cap);
+                max = Math.max(max, delay);
+            }
+            assertTrue(attempt + ": " + max, max > cap / 2);
+        }
+        assertEquals(RetryPolicy.NO_RETRY, policy.retryDelayMs(get, 10, null, error));
+    }
+
+    @Test
+    public void exponentialBackoffRetriesOnlyConfiguredStatuses() {
+        ExponentialBackoffRetryPolicy policy = new ExponentialBackoffRetryPolicy(3, 0, 1000);
+        assertEquals(0, policy.retryDelayMs(get, 1, response(503), error));
+        assertEquals(0, policy.retryDelayMs(get, 1, response(502), error));
+        assertEquals(RetryPolicy.NO_RETRY, policy.retryDelayMs(get, 1, response(500), error));
+        assertEquals(RetryPolicy.NO_RETRY, policy.retryDelayMs(get, 1, response(200), error));
+
+        policy.retryOnStatus(429);
+        assertEquals(0, policy.retryDelayMs(get, 1, response(429), error));
+        assertEquals(RetryPolicy.NO_RETRY, policy.retryDelayMs(get, 1, response(503), error));
+    }
+
+    @Test
+    public void exponentialBackoffHonoursRetryAfter() {
+        ExponentialBackoffRetryPolicy policy = new ExponentialBackoffRetryPolicy(3, 0, 5000);
+        assertEquals(2000, policy.retryDelayMs(get, 1, response(503, "2"), error));
+        assertEquals(RetryPolicy.NO_RETRY, policy.retryDelayMs(get, 1, response(503, "10"), error));
+        assertEquals(0, policy.retryDelayMs(get, 1, response(503, "Thu, 01 Jan 2015 00:00:00 GMT"), error));
+        assertEquals(0, policy.retryDelayMs(get, 1, response(503, "soon"), error));
+    }
+
+    @Test
+    public void retryBudgetCapsRetriesToRatioOfRequests() {
+        RetryBudget budget = new RetryBudget(0.1, 0);
+        assertFalse(budget.tryRetry());
+        for (int i = 0; i < 100; i++) {
+            budget.requestStarted();
+        }
+        int allowed = 0;
+        for (int i = 0; i < 100; i++) {
+            if (budget.tryRetry()) {
+                allowed++;
+            }
+        }
+        assertEquals(10, allowed);
+
+        RetryBudget lowTraffic = new RetryBudget(0.1, 1);
+        allowed = 0;
+        for (int i = 0; i < 100; i++) {
+            if (lowTraffic.tryRetry()) {
+                allowed++;
+            }
+        }
+        assertEquals(10, allowed);
+    }
+
+    private static OphHttpResponse response(int statusCode, String... retryAfter) {
+        return new OphHttpResponse() {
+            @Override
+            public InputStream asInputStream() {
+                return null;
+            }
+
+            @Override
+            public int getStatusCode() {
+                return statusCode;
+            }
+
+            @Override
+            public List<String> getHeaderValues(String key) {
+                return "Retry-After".equalsIgnoreCase(key) ? Arrays.asList(retryAfter) : new ArrayList<>();
+            }
+
+            @Override
+            public List<String> getHeaderKeys() {
+                return retryAfter.length > 0 ? Collections.singletonList("Retry-After") : new ArrayList<>();
+            }
+
+            @Override
+            public OphRequestParameters getRequestParameters() {
+                return null;
+            }
+
+            @Override
+            public String asText() {
+                return "";
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+}
@@ -0,0 +1,134 @@
+package fi.vm.sade.javautils.httpclient;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+public class SpooledRequestBodyTest {
+    @Test
+    public void smallBodyIsKeptInMemory() throws IOException {
+        try (SpooledRequestBody body = SpooledRequestBody.spool(parameters(1000, "k\u00e4\u00e4k"))) {
+            assertTrue(body.isInMemory());
+            assertEquals(6, body.getLength());
+            assertArrayEquals("k\u00e4\u00e4k".getBytes(StandardCharsets.UTF_8), write(body));
+            assertArrayEquals(write(body), read(body));
+        }
+    }
+
+    @Test
+    public void largeBodyOverflowsToFile() throws IOException {
+        String content = text(300 * 1000);
+        SpooledRequestBody body = SpooledRequestBody.spool(parameters(100 * 1000, content));
+        try {
+            assertFalse(body.isInMemory());
+            assertEquals(content.length(), body.getLength());
+            assertArrayEquals(content.getBytes(StandardCharsets.UTF_8), write(body));
+            assertArrayEquals(content.getBytes(StandardCharsets.UTF_8), write(body));
+            assertArrayEquals(write(body), read(body));
+        } finally {
+            body.close();
+        }
+    }
+
+    @Test
+    public void bodySpanningChunksIsCopiedInOrder() throws IOException {
+        String first = text(200 * 1000);
+        try (SpooledRequestBody body = SpooledRequestBody.spool(parameters(1000 * 1000, first))) {
+            assertTrue(body.isInMemory());
+            assertArrayEquals(first.getBytes(StandardCharsets.UTF_8), write(body));
+        }
+        // chunks are reused from the pool and must not leak the previous body
+        try (SpooledRequestBody body = SpooledRequestBody.spool(parameters(1000 * 1000, "short"))) {
+            assertArrayEquals("short".getBytes(StandardCharsets.UTF_8), write(body));
+            assertArrayEquals("short".getBytes(StandardCharsets.UTF_8), read(body));
+        }
+    }
+
+    @Test
+    public void failingWriterDeletesSpool() {
+        OphRequestParameters requestParameters = parameters(10, null);
+        requestParameters.dataWriter = out -> {
+            out.write(text(1000));
+            throw new IOException("Thrown for testing");
+        };
+        try {
+            SpooledRequestBody.spool(requestParameters);
+            fail("should not get here");
+        } catch (IOException e) {
+            assertEquals("Thrown for testing", e.getMessage());
+        }
+    }
+
+    @Test
+    public void compressedBodyIsGzippedAboveMinSize() throws IOException {
+        String content = text(100 * 1000);
+        OphRequestParameters requestParameters = parameters(1000 * 1000, content);
+        requestParameters.compressionLevel = 6;
+        requestParameters.compressionMinSize = 1000;
+        try (SpooledRequestBody body = SpooledRequestBody.spool(requestParameters)) {
+            assertTrue(body.isCompressed());
+            assertTrue(body.getLength() < content.length());
+            assertArrayEquals(content.getBytes(StandardCharsets.UTF_8), gunzip(write(body)));
+        }
+        requestParameters.dataWriter = out -> out.write("short");
+        try (SpooledRequestBody body = SpooledRequestBody.spool(requestParameters)) {
+            assertFalse(body.isCompressed());
+            assertArrayEquals("short".getBytes(StandardCharsets.UTF_8), write(body));
+        }
+    }
+
+    private static OphRequestParameters parameters(int spoolThreshold, String content) {
+        OphRequestParameters requestParameters = new OphRequestParameters();
+        requestParameters.spoolThreshold = spoolThreshold;
+        requestParameters.dataWriterCharset = "UTF-8";
+        requestParameters.dataWriter = out -> out.write(content);
+        return requestParameters;
+    }
+
+    private static String text(int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) ('a' + i % 26);
+        }
+        return new String(chars);
+    }
+
+    private static byte[] write(SpooledRequestBody body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        body.writeTo(out);
+        return out.toByteArray();
+    }
+
+    private static byte[] read(SpooledRequestBody body) throws IOException {
+        try (InputStream in = body.getContent()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[1000];
+            for (int n; (n = in.read(buf)) != -1; ) {
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static byte[] gunzip(byte[] gzipped) throws IOException {
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped))) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[1000];
+            for (int n; (n = in.read(buf)) != -1; ) {
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+}
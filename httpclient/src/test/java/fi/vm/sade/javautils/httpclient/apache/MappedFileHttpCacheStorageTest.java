@@ -0,0 +1,163 @@
+package fi.vm.sade.javautils.httpclient.apache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.impl.client.cache.HeapResource;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.stream.Stream;
+
+public class MappedFileHttpCacheStorageTest {
+    private static final int MB = 1024 * 1024;
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("http-cache").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory.toPath())) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void entriesSurviveRestart() throws IOException {
+        byte[] body = body(100 * 1024);
+        try (MappedFileHttpCacheStorage storage = new MappedFileHttpCacheStorage(directory, 4 * MB)) {
+            storage.putEntry("http://localhost/koodi", entry(body));
+            storage.putEntry("http://localhost/removed", entry(body(10)));
+            storage.removeEntry("http://localhost/removed");
+        }
+        try (MappedFileHttpCacheStorage storage = new MappedFileHttpCacheStorage(directory, 4 * MB)) {
+            assertEquals(1, storage.size());
+            assertNull(storage.getEntry("http://localhost/removed"));
+            HttpCacheEntry entry = storage.getEntry("http://localhost/koodi");
+            assertNotNull(entry);
+            assertEquals(200, entry.getStatusCode());
+            assertEquals("application/json", entry.getFirstHeader("Content-Type").getValue());
+            assertEquals("GET", entry.getRequestMethod());
+            assertEquals(Collections.singletonMap("{Accept=json}", "{Accept=json}http://localhost/koodi"), entry.getVariantMap());
+            assertArrayEquals(body, read(entry));
+        }
+    }
+
+    @Test
+    public void oldestSegmentIsDroppedWhenMaxBytesIsExceeded() throws IOException {
+        try (MappedFileHttpCacheStorage storage = new MappedFileHttpCacheStorage(directory, 4 * MB, MB)) {
+            for (int i = 0; i < 100; i++) {
+                storage.putEntry("http://localhost/koodi/" + i, entry(body(100 * 1024)));
+                assertTrue(storage.getSegmentBytes() <= 4 * MB);
+            }
+            assertNull(storage.getEntry("http://localhost/koodi/0"));
+            assertNotNull(storage.getEntry("http://localhost/koodi/99"));
+            assertTrue(storage.size() >= 27);
+        }
+    }
+
+    @Test
+    public void entryLargerThanSegmentIsNotStored() throws IOException {
+        try (MappedFileHttpCacheStorage storage = new MappedFileHttpCacheStorage(directory, 4 * MB, MB)) {
+            storage.putEntry("http://localhost/large", entry(body(2 * MB)));
+            assertNull(storage.getEntry("http://localhost/large"));
+        }
+    }
+
+    @Test
+    public void updateReplacesEntry() throws Exception {
+        try (MappedFileHttpCacheStorage storage = new MappedFileHttpCacheStorage(directory, 4 * MB)) {
+            storage.putEntry("http://localhost/koodi", entry(body(10)));
+            storage.updateEntry("http://localhost/koodi", existing -> entry(body(20)));
+            assertEquals(20, storage.getEntry("http://localhost/koodi").getResource().length());
+            assertEquals(1, storage.size());
+        }
+    }
+
+    @Test
+    public void indexLogIsCompactedWhileOpen() throws IOException {
+        try (MappedFileHttpCacheStorage storage = new MappedFileHttpCacheStorage(directory, 4 * MB)) {
+            storage.putEntry("http://localhost/other", entry(body(10)));
+            for (int i = 0; i < 3000; i++) {
+                storage.putEntry("http://localhost/koodi", entry(body(100)));
+                assertTrue(storage.getIndexLogRecords() <= 1003);
+            }
+            assertEquals(2, storage.size());
+        }
+        try (MappedFileHttpCacheStorage storage = new MappedFileHttpCacheStorage(directory, 4 * MB)) {
+            assertEquals(2, storage.size());
+            assertArrayEquals(body(100), read(storage.getEntry("http://localhost/koodi")));
+            assertArrayEquals(body(10), read(storage.getEntry("http://localhost/other")));
+        }
+    }
+
+    @Test
+    public void corruptedEntryIsDropped() throws IOException {
+        try (MappedFileHttpCacheStorage storage = new MappedFileHttpCacheStorage(directory, 4 * MB, MB)) {
+            storage.putEntry("http://localhost/koodi", entry(body(1000)));
+        }
+        File segment = new File(directory, "segment-0.dat");
+        byte[] bytes = Files.readAllBytes(segment.toPath());
+        byte[] pattern = Arrays.copyOfRange(body(1000), 500, 520);
+        for (int i = 0; i < bytes.length - pattern.length; i++) {
+            if (Arrays.equals(pattern, Arrays.copyOfRange(bytes, i, i + pattern.length))) {
+                bytes[i] ^= 1;
+                break;
+            }
+        }
+        Files.write(segment.toPath(), bytes);
+
+        try (MappedFileHttpCacheStorage storage = new MappedFileHttpCacheStorage(directory, 4 * MB, MB)) {
+            assertNull(storage.getEntry("http://localhost/koodi"));
+            assertEquals(0, storage.size());
+        }
+    }
+
+    private static byte[] body(int size) {
+        byte[] body = new byte[size];
+        for (int i = 0; i < size; i++) {
+            body[i] = (byte) i;
+        }
+        return body;
+    }
+
+    private static HttpCacheEntry entry(byte[] body) {
+        Date now = new Date();
+        return new HttpCacheEntry(now, now, new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK"),
+                new BasicHeader[]{new BasicHeader("Content-Type", "application/json")}, new HeapResource(body),
+                Collections.singletonMap("{Accept=json}", "{Accept=json}http://localhost/koodi"), "GET");
+    }
+
+    private static byte[] read(HttpCacheEntry entry) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = entry.getResource().getInputStream()) {
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                out.write(buf, 0, n);
+            }
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,180 @@
+package fi.vm.sade.javautils.httpclient.codec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import fi.vm.sade.javautils.httpclient.OphHttpResponse;
+import fi.vm.sade.javautils.httpclient.OphRequestParameters;
+import fi.vm.sade.javautils.httpcommon.codec.BodyCodec;
+import fi.vm.sade.javautils.httpcommon.codec.ElementIterator;
+import fi.vm.sade.javautils.httpcommon.codec.TypeRef;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.Type;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+public class BodyCodecTest {
+    private final OphRequestParameters requestParameters = new OphRequestParameters();
+
+    public BodyCodecTest() {
+        requestParameters.url = "http://localhost/test";
+    }
+
+    @Test
+    public void typeRefKeepsGenericType() {
+        assertEquals("java.util.List<java.util.Map<java.lang.String, java.lang.Integer>>",
+                new TypeRef<List<Map<String, Integer>>>() {}.getType().getTypeName());
+        assertEquals(String.class, TypeRef.of(String.class).getType());
+    }
+
+    @Test
+    public void responseIsDecodedFromStreamWithCharset() {
+        RecordingCodec codec = new RecordingCodec();
+        requestParameters.codec = codec;
+        FakeResponse response = new FakeResponse("application/json; charset=ISO-8859-1", "k\u00e4\u00e4k");
+        assertEquals("k\u00e4\u00e4k", response.as(String.class));
+        assertEquals(StandardCharsets.ISO_8859_1, codec.charset);
+        assertEquals(String.class, codec.type);
+        assertTrue(response.streamClosed);
+
+        List<String> decoded = new FakeResponse("application/json", "list").mapTo(new TypeRef<List<String>>() {});
+        assertEquals(Collections.singletonList("list"), decoded);
+        assertNull(codec.charset);
+    }
+
+    @Test
+    public void missingCodecFails() {
+        try {
+            new FakeResponse("application/json", "{}").as(String.class);
+            fail("should not get here");
+        } catch (IllegalStateException e) {
+            assertEquals("No codec set for url: http://localhost/test, use codec()", e.getMessage());
+        }
+        FakeResponse response = new FakeResponse("application/json", "[]");
+        try {
+            response.asStream(String.class);
+            fail("should not get here");
+        } catch (IllegalStateException e) {
+            assertTrue(response.closed);
+        }
+    }
+
+    @Test
+    public void elementsAreStreamedAndResponseClosedAfterLast() {
+        requestParameters.codec = new RecordingCodec();
+        FakeResponse response = new FakeResponse("application/x-ndjson", "a\nb\nc");
+        try (Stream<String> elements = response.asStream(String.class)) {
+            Iterator<String> iterator = elements.iterator();
+            assertEquals("a", iterator.next());
+            assertFalse(response.closed);
+            assertEquals("b", iterator.next());
+            assertEquals("c", iterator.next());
+            assertFalse(iterator.hasNext());
+            assertTrue(response.streamClosed);
+            assertTrue(response.closed);
+        }
+    }
+
+    @Test
+    public void closingIteratorReleasesResponseWithoutReadingRest() {
+        requestParameters.codec = new RecordingCodec();
+        FakeResponse response = new FakeResponse("application/x-ndjson", "a\nb");
+        try (ElementIterator<String> elements = response.asIterator(String.class)) {
+            assertEquals("a", elements.next());
+        }
+        assertFalse(response.streamClosed);
+        assertTrue(response.closed);
+    }
+
+    private static class RecordingCodec implements BodyCodec {
+        Charset charset;
+        Type type;
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> T decode(InputStream in, Charset charset, Type type) throws IOException {
+            this.charset = charset;
+            this.type = type;
+            String text = new String(in.readAllBytes(), charset != null ? charset : StandardCharsets.UTF_8);
+            return (T) (type == String.class ? text : Collections.singletonList(text));
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> Iterator<T> decodeElements(InputStream in, Charset charset, Type elementType) throws IOException {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            return (Iterator<T>) reader.lines().iterator();
+        }
+    }
+
+    private class FakeResponse implements OphHttpResponse {
+        final String contentType;
+        final byte[] body;
+        boolean streamClosed = false;
+        boolean closed = false;
+
+        FakeResponse(String contentType, String body) {
+            this.contentType = contentType;
+            this.body = body.getBytes(StandardCharsets.ISO_8859_1);
+        }
+
+        @Override
+        public InputStream asInputStream() {
+            return new ByteArrayInputStream(body) {
+                @Override
+                public void close() {
+                    streamClosed = true;
+                }
+            };
+        }
+
+        @Override
+        public String asText() {
+            return new String(body, StandardCharsets.ISO_8859_1);
+        }
+
+        @Override
+        public int getStatusCode() {
+            return 200;
+        }
+
+        @Override
+        public List<String> getHeaderValues(String key) {
+            List<String> ret = new ArrayList<>();
+            if(key.equalsIgnoreCase("Content-Type")) {
+                ret.add(contentType);
+            }
+            return ret;
+        }
+
+        @Override
+        public List<String> getHeaderKeys() {
+            return Collections.singletonList("Content-Type");
+        }
+
+        @Override
+        public OphRequestParameters getRequestParameters() {
+            return requestParameters;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
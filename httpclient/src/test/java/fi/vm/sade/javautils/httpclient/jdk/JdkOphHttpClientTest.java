@@ -0,0 +1,176 @@
+package fi.vm.sade.javautils.httpclient.jdk;
+
+import static fi.vm.sade.javautils.httpclient.OphHttpClient.JSON;
+import static fi.vm.sade.javautils.httpclient.OphHttpClient.TEXT;
+import static fi.vm.sade.javautils.httpclient.OphHttpClient.UTF8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockserver.model.HttpRequest.request;
+import static org.mockserver.model.HttpResponse.response;
+
+import fi.vm.sade.javautils.httpclient.OphHttpClient;
+import fi.vm.sade.javautils.httpclient.OphHttpClientProxyRequest;
+import fi.vm.sade.javautils.httpclient.OphHttpResponse;
+import fi.vm.sade.javautils.httpclient.OphHttpResponseHandler;
+import fi.vm.sade.properties.OphProperties;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockserver.client.MockServerClient;
+import org.mockserver.junit.MockServerRule;
+import org.mockserver.model.Delay;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+public class JdkOphHttpClientTest {
+
+    @Rule
+    public MockServerRule mockServerRule = new MockServerRule(this);
+
+    private OphProperties properties;
+    private JdkOphHttpClient proxy;
+    private OphHttpClient client;
+    private OphHttpResponseHandler<String> responseAsText = OphHttpResponse::asText;
+
+    @Before
+    public void setUp() {
+        properties = new OphProperties();
+        Logger.getLogger("io.netty").setLevel(Level.OFF);
+        properties.addDefault("local.test", "/test");
+        properties.addDefault("baseUrl", "http://localhost:" + mockServerRule.getPort());
+        proxy = new JdkHttpClientBuilder().setDefaultConfiguration(1000).build();
+        client = new OphHttpClient(proxy, "TESTCLIENT", properties);
+    }
+
+    @After
+    public void tearDown() {
+        proxy.close();
+    }
+
+    @Test
+    public void getSendsCallerId() {
+        new MockServerClient("localhost", mockServerRule.getPort()).when(
+                request()
+                        .withMethod("GET")
+                        .withPath("/test")
+                        .withHeader("Caller-Id", "TESTCLIENT")
+        ).respond(response()
+                .withStatusCode(200)
+                .withHeader("Content-Type", TEXT)
+                .withBody("OK!")
+        );
+
+        assertEquals("OK!", client.get("local.test")
+                .accept(TEXT)
+                .execute(responseAsText));
+    }
+
+    @Test
+    public void postSendsCallerIdAndCSRFAndContentTypeAndEncoding() {
+        new MockServerClient("localhost", mockServerRule.getPort()).when(
+                request()
+                        .withMethod("POST")
+                        .withPath("/test")
+                        .withHeader("Caller-Id", "TESTCLIENT")
+                        .withHeader("Content-Type", "application/json; charset=UTF-8")
+                        .withHeader("CSRF", "CSRF")
+                        .withCookie("CSRF", "CSRF")
+                        .withBody("POW!!", StandardCharsets.UTF_8)
+        ).respond(response().
+                withStatusCode(200).
+                withHeader("Content-Type", TEXT).
+                withBody("OK!")
+        );
+
+        assertEquals("OK!", client.post("local.test")
+                .dataWriter(JSON, UTF8, outstream -> outstream.write("POW!!")).accept(TEXT)
+                .execute(responseAsText));
+        // spooled body is sent with Content-Length
+        assertEquals("OK!", client.post("local.test")
+                .spoolRequestBody(1024)
+                .dataWriter(JSON, UTF8, outstream -> outstream.write("POW!!")).accept(TEXT)
+                .execute(responseAsText));
+    }
+
+    @Test
+    public void gzipResponseIsDecompressed() throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write("OK!".getBytes(StandardCharsets.UTF_8));
+        }
+        new MockServerClient("localhost", mockServerRule.getPort()).when(
+                request()
+                        .withMethod("GET")
+                        .withPath("/test")
+                        .withHeader("Accept-Encoding", "gzip")
+        ).respond(response()
+                .withStatusCode(200)
+                .withHeader("Content-Type", TEXT)
+                .withHeader("Content-Encoding", "gzip")
+                .withBody(compressed.toByteArray())
+        );
+
+        assertEquals("OK! []", client.get("local.test")
+                .execute(response -> response.asText() + " " + response.getHeaderValues("Content-Encoding")));
+    }
+
+    @Test
+    public void responseStatusCodeIsVerified() {
+        new MockServerClient("localhost", mockServerRule.getPort()).when(
+                request()
+                        .withMethod("GET")
+                        .withPath("/test")
+        ).respond(response()
+                .withStatusCode(404)
+                .withHeader("Content-Type", TEXT)
+                .withBody("NOT OK!")
+        );
+
+        try {
+            client.get("local.test").execute(responseAsText);
+            throw new RuntimeException("should not get here");
+        } catch (RuntimeException e) {
+            assertEquals("Unexpected response status: 404 Expected: any 2xx code Url: http://localhost:" + mockServerRule.getPort() + "/test",
+                    e.getMessage());
+        }
+    }
+
+    @Test
+    public void abortCancelsRequestInProgress() {
+        new MockServerClient("localhost", mockServerRule.getPort()).when(
+                request()
+                        .withMethod("GET")
+                        .withPath("/test")
+        ).respond(response()
+                .withStatusCode(200)
+                .withDelay(Delay.seconds(5))
+                .withBody("OK!")
+        );
+
+        OphHttpClient clientPlainUrls = new OphHttpClient(proxy, "TESTCLIENT", null);
+        OphHttpClientProxyRequest request = proxy.createRequest(
+                clientPlainUrls.get("http://localhost:" + mockServerRule.getPort() + "/test").getRequestParameters());
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        executor.schedule(request::abort, 100, TimeUnit.MILLISECONDS);
+        long start = System.nanoTime();
+        try {
+            request.execute(responseAsText);
+            throw new RuntimeException("should not get here");
+        } catch (IOException e) {
+            assertTrue(e instanceof InterruptedIOException);
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(4));
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
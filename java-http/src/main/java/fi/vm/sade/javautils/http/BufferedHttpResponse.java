@@ -0,0 +1,48 @@
+package fi.vm.sade.javautils.http;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.entity.DeflateDecompressingEntity;
+import org.apache.http.client.entity.GzipDecompressingEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Async client response with the body already in memory, so that it can be handled with OphHttpResponseImpl.
+ * A gzip or deflate body is decompressed while it is read, like HttpClientBuilder's clients do.
+ */
+class BufferedHttpResponse extends BasicHttpResponse implements CloseableHttpResponse {
+    BufferedHttpResponse(HttpResponse response) {
+        super(response.getStatusLine());
+        setHeaders(response.getAllHeaders());
+        setEntity(decompress(response.getEntity()));
+    }
+
+    private HttpEntity decompress(HttpEntity entity) {
+        Header contentEncoding = entity != null && entity.getContentLength() != 0 ? getFirstHeader(HttpHeaders.CONTENT_ENCODING) : null;
+        if (contentEncoding == null) {
+            return entity;
+        }
+        String codec = contentEncoding.getValue().trim().toLowerCase();
+        HttpEntity decompressed;
+        if (codec.equals("gzip") || codec.equals("x-gzip")) {
+            decompressed = new GzipDecompressingEntity(entity);
+        } else if (codec.equals("deflate")) {
+            decompressed = new DeflateDecompressingEntity(entity);
+        } else {
+            return entity;
+        }
+        removeHeaders(HttpHeaders.CONTENT_ENCODING);
+        removeHeaders(HttpHeaders.CONTENT_LENGTH);
+        removeHeaders("Content-MD5");
+        return decompressed;
+    }
+
+    @Override
+    public void close() {
+        EntityUtils.consumeQuietly(getEntity());
+    }
+}
@@ -3,19 +3,33 @@ package fi.vm.sade.javautils.http;
 import static org.apache.http.HttpStatus.SC_UNAUTHORIZED;
 
 import fi.vm.sade.javautils.http.auth.Authenticator;
+import fi.vm.sade.javautils.httpcommon.cache.StaleWhileRevalidate;
+import fi.vm.sade.javautils.httpcommon.codec.BodyCodec;
+import fi.vm.sade.javautils.httpcommon.codec.BufferPool;
+import fi.vm.sade.javautils.httpcommon.metrics.HttpClientMetrics;
+import fi.vm.sade.javautils.httpcommon.metrics.RequestTimingInstrumentation;
+import fi.vm.sade.javautils.httpcommon.metrics.RequestTimingListener;
+import fi.vm.sade.javautils.httpcommon.metrics.RequestTimings;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.ConnectionReuseStrategy;
+import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
 import org.apache.http.ProtocolException;
 import org.apache.http.client.CookieStore;
 import org.apache.http.client.RedirectStrategy;
+import org.apache.http.client.cache.HttpCacheStorage;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.protocol.RequestAcceptEncoding;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.config.SocketConfig;
 import org.apache.http.conn.ConnectionKeepAliveStrategy;
 import org.apache.http.conn.HttpClientConnectionManager;
@@ -30,12 +44,20 @@ import org.apache.http.impl.client.cache.CacheConfig;
 import org.apache.http.impl.client.cache.CachingHttpClientBuilder;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.impl.cookie.BasicClientCookie;
+import org.apache.http.impl.execchain.ClientExecChain;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
 import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.HttpContext;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.URI;
 import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -44,7 +66,7 @@ import java.util.concurrent.TimeUnit;
  */
 @Getter
 @Slf4j
-public class OphHttpClient {
+public class OphHttpClient implements Closeable {
     private static final int MAX_CACHE_ENTRIES = 20; // max = 20 * 10MB = 200MB
     private static final int MAX_OBJECT_SIZE = 10 * 1024 * 1024; // 10MB (oppilaitosnumero-koodisto is ~7,5MB)
     private static final String CSRF = "CachingRestClient";
@@ -56,9 +78,19 @@ public class OphHttpClient {
 
     private final LogUtil logUtil;
     private final CloseableHttpClient cachingClient;
+    @Getter(AccessLevel.NONE)
+    private final HttpAsyncClientBuilder asyncClientBuilder;
+    // built and started on first executeAsync()
+    private volatile CloseableHttpAsyncClient asyncClient;
+    @Getter(AccessLevel.NONE)
+    private boolean closed;
+    private final Executor asyncExecutor;
     private final CookieStore cookieStore;
     private final Authenticator authenticator;
+    private final HttpClientMetrics metrics;
     private final String callerId;
+    private final BodyCodec codec;
+    private final BufferPool bufferPool;
 
     private final ThreadLocal<HttpContext> localContext = ThreadLocal.withInitial(BasicHttpContext::new);
     private HashMap<String, Boolean> csrfCookiesCreateForHost = new HashMap<>();
@@ -68,6 +100,12 @@ public class OphHttpClient {
         authenticator = builder.authenticator;
         cookieStore = builder.cookieStore;
         callerId = builder.callerId;
+        codec = builder.codec;
+        bufferPool = builder.bufferPool;
+        metrics = builder.metrics;
+        if (builder.connectionManager instanceof PoolingHttpClientConnectionManager) {
+            metrics.connectionPool((PoolingHttpClientConnectionManager) builder.connectionManager);
+        }
         RequestConfig requestConfig = RequestConfig.custom()
                 .setConnectTimeout(builder.connectionTimeoutMs)
                 .build();
@@ -75,9 +113,20 @@ public class OphHttpClient {
                 .setSoTimeout(builder.socketTimeoutMs)
                 .build();
 
-        HttpClientBuilder clientBuilder = builder.cacheConfig == null
-                ? HttpClientBuilder.create()
-                : CachingHttpClientBuilder.create().setCacheConfig(builder.cacheConfig);
+        HttpClientBuilder clientBuilder;
+        if (builder.cacheStorage != null) {
+            clientBuilder = createCachingClientBuilder(builder.staleWhileRevalidate)
+                    .setCacheConfig(builder.cacheConfig != null
+                            ? builder.cacheConfig
+                            : Builder.customCacheConfig().setMaxObjectSize(MAX_OBJECT_SIZE).build())
+                    .setHttpCacheStorage(builder.cacheStorage);
+        } else if (builder.cacheConfig != null) {
+            clientBuilder = createCachingClientBuilder(builder.staleWhileRevalidate).setCacheConfig(builder.cacheConfig);
+        } else if (builder.staleWhileRevalidate != null) {
+            throw new IllegalStateException("staleWhileRevalidate() requires cache(), useDefaultCache() or cacheStorage()");
+        } else {
+            clientBuilder = HttpClientBuilder.create();
+        }
 
         clientBuilder
                 .setDefaultRequestConfig(requestConfig)
@@ -89,7 +138,60 @@ public class OphHttpClient {
                 .setConnectionReuseStrategy(builder.reuseStrategy)
                 .setConnectionTimeToLive(builder.connectionTTLSec, TimeUnit.SECONDS);
 
+        RequestTimingInstrumentation.install(clientBuilder, builder.requestTimingListener);
         cachingClient = clientBuilder.build();
+
+        asyncExecutor = builder.asyncExecutor;
+        asyncClientBuilder = HttpAsyncClientBuilder.create()
+                .setDefaultRequestConfig(RequestConfig.copy(requestConfig)
+                        .setSocketTimeout(builder.socketTimeoutMs)
+                        .build())
+                .setDefaultIOReactorConfig(IOReactorConfig.custom()
+                        .setConnectTimeout(builder.connectionTimeoutMs)
+                        .setSoTimeout(builder.socketTimeoutMs)
+                        .build())
+                .setMaxConnPerRoute(builder.asyncMaxConnPerRoute)
+                .setMaxConnTotal(builder.asyncMaxConnTotal)
+                .setKeepAliveStrategy(builder.keepAliveStrategy)
+                .setDefaultCookieStore(cookieStore)
+                .setRedirectStrategy(builder.redirectStrategy)
+                .setConnectionReuseStrategy(builder.reuseStrategy)
+                .setThreadFactory(runnable -> {
+                    Thread thread = new Thread(runnable, "OphHttpClient-async-io");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        // HttpClientBuilder adds Accept-Encoding and decompresses responses by default, the async builder doesn't.
+        // Responses are decompressed in BufferedHttpResponse.
+        asyncClientBuilder.addInterceptorLast(new RequestAcceptEncoding());
+        // The async client has no request executor or socket factory hooks, only the start and the response headers
+        // are recorded. The timings are completed when the body has been buffered.
+        asyncClientBuilder.addInterceptorFirst(RequestTimingInstrumentation.startInterceptor(builder.requestTimingListener));
+        asyncClientBuilder.addInterceptorLast((HttpResponseInterceptor) (response, context) -> {
+            RequestTimings timings = RequestTimingInstrumentation.timings(context);
+            if (timings != null) {
+                timings.responseReceived();
+            }
+        });
+    }
+
+    /**
+     * Closes the connection pool and stops the I/O reactor threads of executeAsync()
+     */
+    @Override
+    public void close() throws IOException {
+        CloseableHttpAsyncClient started;
+        synchronized (asyncClientBuilder) {
+            closed = true;
+            started = asyncClient;
+        }
+        try {
+            cachingClient.close();
+        } finally {
+            if (started != null) {
+                started.close();
+            }
+        }
     }
 
     /**
@@ -99,11 +201,66 @@ public class OphHttpClient {
      * @return Configuration chain.
      */
     public <T> OphHttpResponse<T> execute(OphHttpRequest request) {
-        CloseableHttpResponse httpResponse = execute(request.getHttpUriRequest(), true);
-        return new OphHttpResponseImpl<>(httpResponse);
+        CloseableHttpResponse httpResponse = execute(request.getHttpUriRequest(), metricsKey(request), true);
+        return new OphHttpResponseImpl<>(httpResponse, RequestTimingInstrumentation.timings(localContext.get()), codec, bufferPool);
+    }
+
+    /**
+     * Non-blocking version of execute(). Request is sent with a separate async client sharing the cookie store,
+     * CAS authentication and CSRF handling with the blocking client, but not its cache. The whole response body
+     * is buffered in memory before the future completes. CAS ticket retrieval, response handling and completion of
+     * the returned future happen in the async executor (ForkJoinPool.commonPool() by default), not in the I/O threads.
+     * @param request User defined request send to server.
+     * @param <T> Type of returned object.
+     * @return Configuration chain, when the response has been received.
+     */
+    public <T> CompletableFuture<OphHttpResponse<T>> executeAsync(OphHttpRequest request) {
+        HttpContext context = new BasicHttpContext();
+        return executeAsync(request.getHttpUriRequest(), metricsKey(request), context, true)
+                .thenApply(response -> new OphHttpResponseImpl<>(response, RequestTimingInstrumentation.timings(context), codec, bufferPool));
+    }
+
+    /**
+     * urlKey of the request or scheme://host:port, to keep the number of distinct metric keys low
+     */
+    private static String metricsKey(OphHttpRequest request) {
+        if (request.getUrlKey() != null) {
+            return request.getUrlKey();
+        }
+        HttpHost host = URIUtils.extractHost(request.getHttpUriRequest().getURI());
+        return host != null ? host.toURI() : "unknown";
     }
 
-    private CloseableHttpResponse execute(HttpUriRequest request, boolean retry) {
+    private CloseableHttpResponse execute(HttpUriRequest request, String urlKey, boolean retry) {
+        prepareRequest(request);
+        String ticketUsed = authenticate(request, retry);
+
+        CloseableHttpResponse response = performRequest(request, urlKey);
+
+        if (shouldRetry(request, response, localContext.get(), retry, ticketUsed)) {
+            metrics.requestRetried(urlKey, request.getMethod());
+            return execute(request, urlKey, false);
+        }
+        return response;
+    }
+
+    private CompletableFuture<CloseableHttpResponse> executeAsync(HttpUriRequest request, String urlKey, HttpContext context, boolean retry) {
+        return CompletableFuture
+                .supplyAsync(() -> {
+                    prepareRequest(request);
+                    return authenticate(request, retry);
+                }, asyncExecutor)
+                .thenCompose(ticketUsed -> performRequestAsync(request, urlKey, context)
+                        .thenComposeAsync(response -> {
+                            if (shouldRetry(request, response, context, retry, ticketUsed)) {
+                                metrics.requestRetried(urlKey, request.getMethod());
+                                return executeAsync(request, urlKey, context, false);
+                            }
+                            return CompletableFuture.completedFuture(response);
+                        }, asyncExecutor));
+    }
+
+    private void prepareRequest(HttpUriRequest request) {
         ensureCSRFCookie(request.getURI().getHost());
         request.addHeader(Headers.CSRF, CSRF);
 
@@ -111,14 +268,17 @@ public class OphHttpClient {
                 && request.getFirstHeader(Headers.CALLER_ID) == null) {
             request.addHeader(Headers.CALLER_ID, this.callerId);
         }
+    }
 
-        boolean wasJustAuthenticated = authenticate(request, retry);
-
-        CloseableHttpResponse response = performRequest(request);
-
+    /**
+     * @param ticketUsed from authenticate(), null if the request was not authenticated
+     * @return true if CAS session was cleared and the request should be sent again. Response is closed in that case.
+     */
+    private boolean shouldRetry(HttpUriRequest request, CloseableHttpResponse response, HttpContext context, boolean retry, String ticketUsed) {
+        boolean wasJustAuthenticated = ticketUsed != null;
         // logging
         boolean isRedirCas = CasUtil.isRedirectToCas(response); // this response is 302 with location header pointing to cas
-        boolean wasRedirCas = CasUtil.wasRedirectedToCas(localContext.get()); // this response is from cas after 302 redirect
+        boolean wasRedirCas = CasUtil.wasRedirectedToCas(context); // this response is from cas after 302 redirect
         if (log.isDebugEnabled()) {
             log.debug(logUtil.info(request, response, isRedirCas, wasRedirCas, retry));
         }
@@ -135,13 +295,19 @@ public class OphHttpClient {
             if (retry) {
                 log.warn("Redirected to CAS or 401 unauthorized, retrieving ticket again and retrying request");
                 log.debug("Set redirected_to_cas=false");
-                localContext.get().removeAttribute(CasUtil.getCasAttributeName());
-                this.authenticator.clearSession();
-                cookieStore.clear();
-                csrfCookiesCreateForHost = new HashMap<>();
+                context.removeAttribute(CasUtil.getCasAttributeName());
+                // a session refreshed by another request after this one was sent is kept with its cookies
+                if (this.authenticator.clearSession(ticketUsed)) {
+                    cookieStore.clear();
+                    csrfCookiesCreateForHost = new HashMap<>();
+                }
 
                 try { response.close(); } catch (IOException e) { throw new RuntimeException(e); }
-                return execute(request, false);
+                RequestTimings timings = RequestTimingInstrumentation.timings(context);
+                if (timings != null) {
+                    timings.complete();
+                }
+                return true;
             } else {
                 logUtil.error(request, response, "Was redirected to CAS or received 401 unauthorized error.");
             }
@@ -149,7 +315,7 @@ public class OphHttpClient {
 
         logUtil.logResponse(request, response);
 
-        return response;
+        return false;
     }
 
     private synchronized void ensureCSRFCookie(String host) {
@@ -162,14 +328,17 @@ public class OphHttpClient {
         }
     }
 
-    private boolean authenticate(HttpUriRequest request, boolean retry) {
+    /**
+     * @return ticket used for the request, null if it was not authenticated
+     */
+    private String authenticate(HttpUriRequest request, boolean retry) {
         try {
-            return authenticator.authenticate(request, this.cookieStore);
+            return authenticator.authenticateWithTicket(request, this.cookieStore);
         } catch (Exception e) {
             if (retry) {
                 log.warn("Failed to CAS authenticate. Renewing proxy ticket.");
                 log.debug("Failed to CAS authenticate. Renewing proxy ticket.", e);
-                return false;
+                return null;
             } else {
                 log.warn("Failed second time to CAS authenticate");
                 log.debug("Failed second time to CAS authenticate", e);
@@ -178,15 +347,84 @@ public class OphHttpClient {
         }
     }
 
-    private CloseableHttpResponse performRequest(HttpUriRequest request) {
+    private CloseableHttpResponse performRequest(HttpUriRequest request, String urlKey) {
+        long start = System.nanoTime();
         try {
-            return cachingClient.execute(request, localContext.get());
+            CloseableHttpResponse response = cachingClient.execute(request, localContext.get());
+            metrics.requestCompleted(urlKey, request.getMethod(), response.getStatusLine().getStatusCode(), System.nanoTime() - start);
+            return response;
         } catch (IOException e) {
+            metrics.requestFailed(urlKey, request.getMethod(), e, System.nanoTime() - start);
             log.error("Failed to execute request: {}", request, e);
             throw new RuntimeException("Internal error calling " + request.getMethod() + "/" + request.getURI() + " (check logs): " + e.getMessage());
         }
     }
 
+    private CompletableFuture<CloseableHttpResponse> performRequestAsync(HttpUriRequest request, String urlKey, HttpContext context) {
+        CompletableFuture<CloseableHttpResponse> future = new CompletableFuture<>();
+        long start = System.nanoTime();
+        startAsyncClient().execute(request, context, new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse response) {
+                metrics.requestCompleted(urlKey, request.getMethod(), response.getStatusLine().getStatusCode(), System.nanoTime() - start);
+                // body has been buffered
+                RequestTimings timings = RequestTimingInstrumentation.timings(context);
+                if (timings != null) {
+                    timings.complete();
+                }
+                future.complete(new BufferedHttpResponse(response));
+            }
+
+            @Override
+            public void failed(Exception e) {
+                metrics.requestFailed(urlKey, request.getMethod(), e, System.nanoTime() - start);
+                log.error("Failed to execute request: {}", request, e);
+                future.completeExceptionally(new RuntimeException("Internal error calling " + request.getMethod() + "/" + request.getURI() + " (check logs): " + e.getMessage()));
+            }
+
+            @Override
+            public void cancelled() {
+                future.cancel(false);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * The async client is built on first use, so that clients that don't use executeAsync() don't open an I/O reactor
+     */
+    private CloseableHttpAsyncClient startAsyncClient() {
+        CloseableHttpAsyncClient started = asyncClient;
+        if (started == null) {
+            synchronized (asyncClientBuilder) {
+                if (closed) {
+                    throw new IllegalStateException("OphHttpClient is closed");
+                }
+                started = asyncClient;
+                if (started == null) {
+                    started = asyncClientBuilder.build();
+                    started.start();
+                    asyncClient = started;
+                }
+            }
+        }
+        return started;
+    }
+
+    private static CachingHttpClientBuilder createCachingClientBuilder(StaleWhileRevalidate staleWhileRevalidate) {
+        if (staleWhileRevalidate == null) {
+            return CachingHttpClientBuilder.create();
+        }
+        CachingHttpClientBuilder clientBuilder = new CachingHttpClientBuilder() {
+            @Override
+            protected ClientExecChain decorateMainExec(ClientExecChain mainExec) {
+                return super.decorateMainExec(staleWhileRevalidate.decorate(mainExec));
+            }
+        };
+        clientBuilder.setSchedulingStrategy(staleWhileRevalidate);
+        return clientBuilder;
+    }
+
     public static final class Builder {
         int connectionTimeoutMs;
         int socketTimeoutMs;
@@ -195,11 +433,20 @@ public class OphHttpClient {
         String callerId;
         Authenticator authenticator;
         CacheConfig cacheConfig;
+        HttpCacheStorage cacheStorage;
+        StaleWhileRevalidate staleWhileRevalidate;
         RedirectStrategy redirectStrategy;
         ConnectionKeepAliveStrategy keepAliveStrategy;
         HttpClientConnectionManager connectionManager;
         ConnectionReuseStrategy reuseStrategy;
         CookieStore cookieStore;
+        Executor asyncExecutor;
+        int asyncMaxConnPerRoute;
+        int asyncMaxConnTotal;
+        HttpClientMetrics metrics;
+        RequestTimingListener requestTimingListener;
+        BodyCodec codec;
+        BufferPool bufferPool;
 
         /**
          * OphHttpClient builder
@@ -219,6 +466,10 @@ public class OphHttpClient {
             redirectStrategy = createRedirectStrategy();
             reuseStrategy = new DefaultConnectionReuseStrategy();
             cacheConfig = null;
+            asyncExecutor = ForkJoinPool.commonPool();
+            asyncMaxConnPerRoute = 100;
+            asyncMaxConnTotal = 1000;
+            metrics = HttpClientMetrics.NONE;
         }
 
         /**
@@ -240,6 +491,24 @@ public class OphHttpClient {
             return this;
         }
 
+        /**
+         * Enables http request caching with the given storage, e.g. WTinyLfuHttpCacheStorage to limit the cache by
+         * bytes instead of entries. Uses cache config set with cache() or the default max object size of 10MB.
+         */
+        public Builder cacheStorage(HttpCacheStorage cacheStorage) {
+            this.cacheStorage = cacheStorage;
+            return this;
+        }
+
+        /**
+         * Serve stale cached responses while they are revalidated in the background. Requires cache(),
+         * useDefaultCache() or cacheStorage(). Keep a reference to staleWhileRevalidate to read its refresh counters.
+         */
+        public Builder staleWhileRevalidate(StaleWhileRevalidate staleWhileRevalidate) {
+            this.staleWhileRevalidate = staleWhileRevalidate;
+            return this;
+        }
+
         /**
          * Convenience method for creating custom cache configuration
          */
@@ -281,12 +550,70 @@ public class OphHttpClient {
             return this;
         }
 
+        /**
+         * Connection pool limits of executeAsync(), default 100 per route and 1000 in total
+         */
+        public Builder asyncConnectionLimits(int maxPerRoute, int maxTotal) {
+            if (maxPerRoute <= 0 || maxTotal <= 0) throw new IllegalArgumentException("connection limits must be positive");
+            this.asyncMaxConnPerRoute = maxPerRoute;
+            this.asyncMaxConnTotal = maxTotal;
+            return this;
+        }
+
         public Builder authenticator(Authenticator authenticator) {
             if (authenticator == null) throw new NullPointerException("Authenticator == null");
             this.authenticator = authenticator;
             return this;
         }
 
+        /**
+         * Executor for CAS authentication and response handling of executeAsync() requests.
+         */
+        public Builder asyncExecutor(Executor asyncExecutor) {
+            if (asyncExecutor == null) throw new NullPointerException("Executor == null");
+            this.asyncExecutor = asyncExecutor;
+            return this;
+        }
+
+        /**
+         * Report connection pool stats, request latencies, status codes and CAS retries to metrics,
+         * e.g. DefaultHttpClientMetrics
+         */
+        public Builder metrics(HttpClientMetrics metrics) {
+            if (metrics == null) throw new NullPointerException("HttpClientMetrics == null");
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * Receive pool wait, connect, TLS handshake, time to first byte and body timings of every request, e.g. for
+         * slow call logging. Timings are also available from OphHttpResponse.getTimings().
+         */
+        public Builder requestTimingListener(RequestTimingListener requestTimingListener) {
+            if (requestTimingListener == null) throw new NullPointerException("RequestTimingListener == null");
+            this.requestTimingListener = requestTimingListener;
+            return this;
+        }
+
+        /**
+         * Codec for OphHttpResponseHandler.as() and mapTo(), e.g. JacksonBodyCodec or GsonBodyCodec.
+         */
+        public Builder codec(BodyCodec codec) {
+            if (codec == null) throw new NullPointerException("BodyCodec == null");
+            this.codec = codec;
+            return this;
+        }
+
+        /**
+         * Read text bodies that fit in the pooled buffers into buffers shared by all request threads, e.g.
+         * new BufferPool(64 * 1024, 16). By default every body is read into a buffer of its own.
+         */
+        public Builder bufferPool(BufferPool bufferPool) {
+            if (bufferPool == null) throw new NullPointerException("BufferPool == null");
+            this.bufferPool = bufferPool;
+            return this;
+        }
+
         public OphHttpClient build() {
             return new OphHttpClient(this);
         }
@@ -315,7 +642,8 @@ public class OphHttpClient {
         }
 
         private static HttpClientConnectionManager createConnectionManager() {
-            PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+            // socket factories record connect and TLS handshake times, see RequestTimingInstrumentation
+            PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(RequestTimingInstrumentation.socketFactoryRegistry());
             connectionManager.setDefaultMaxPerRoute(100); // default 2
             connectionManager.setMaxTotal(1000); // default 20
             return connectionManager;
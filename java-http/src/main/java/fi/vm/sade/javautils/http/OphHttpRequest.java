@@ -14,9 +14,11 @@ import org.apache.http.entity.StringEntity;
 public class OphHttpRequest {
 
     private HttpUriRequest httpUriRequest;
+    private String urlKey;
 
     private OphHttpRequest(Builder builder) {
         httpUriRequest = builder.requestBuilder.build();
+        urlKey = builder.urlKey;
     }
 
     void addHeader(String name, String value) {
@@ -27,9 +29,14 @@ public class OphHttpRequest {
         return httpUriRequest;
     }
 
+    String getUrlKey() {
+        return urlKey;
+    }
+
     public static final class Builder {
 
         private RequestBuilder requestBuilder;
+        private String urlKey;
 
         public Builder(String method, String url) {
             requestBuilder = RequestBuilder.create(method).setUri(url);
@@ -56,6 +63,14 @@ public class OphHttpRequest {
             return this;
         }
 
+        /**
+         * Name for this kind of request in metrics, e.g. the url property key. Use a fixed set of values, not urls with ids.
+         */
+        public Builder urlKey(String urlKey) {
+            this.urlKey = urlKey;
+            return this;
+        }
+
         public Builder setEntity(OphHttpEntity entity) {
             requestBuilder.setEntity(new StringEntity(entity.getContent(), entity.getContentType()));
             return this;
@@ -1,5 +1,7 @@
 package fi.vm.sade.javautils.http;
 
+import fi.vm.sade.javautils.httpcommon.metrics.RequestTimings;
+
 /**
  * Provides user interface to handle errorous status codes from server and expected status codes.
  * @param <T> Expected type of the object returned at the end of a succesful server request.
@@ -19,4 +21,13 @@ public interface OphHttpResponse<T> {
      */
     OphHttpResponseHandler<T> expectedStatus(int... status);
 
+    /**
+     * Phase timings of the request: pool wait, connect, TLS handshake, time to first byte and body.
+     * Body time and total are known after the response has been handled.
+     * @return null if the client doesn't record timings
+     */
+    default RequestTimings getTimings() {
+        return null;
+    }
+
 }
@@ -1,11 +1,14 @@
 package fi.vm.sade.javautils.http;
 
 import fi.vm.sade.javautils.http.exceptions.UnhandledHttpStatusCodeException;
+import fi.vm.sade.javautils.httpcommon.codec.ElementIterator;
+import fi.vm.sade.javautils.httpcommon.codec.TypeRef;
 
 import java.io.InputStream;
 import java.util.Optional;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.stream.Stream;
 
 /**
  * Terminates the response chain. Allows user to map and ignore response as whole. Allows also consuming the response
@@ -22,6 +25,37 @@ public interface OphHttpResponseHandler<T> {
      */
     Optional<T> mapWith(Function<String, T> handler);
 
+    /**
+     * Decodes the response with the codec of the client (OphHttpClient.Builder.codec()) straight from the response
+     * stream, without reading it into a String first. Status codes are handled as in mapWith().
+     * @param type Class of the response object
+     * @return Optional object of type T. In case response status is 204 or 404 Optional.empty is returned.
+     * @throws IllegalStateException if the client has no codec
+     */
+    Optional<T> as(Class<T> type);
+
+    /**
+     * Like as() for generic types, e.g. mapTo(new TypeRef&lt;List&lt;HenkiloDto&gt;&gt;() {})
+     */
+    Optional<T> mapTo(TypeRef<T> type);
+
+    /**
+     * Decodes the elements of a JSON array or NDJSON response lazily with the codec of the client, so that large
+     * results can be processed in constant memory. The response is closed after the last element or when the stream
+     * is closed. Unexpected status codes are handled as in mapWith(), 204 and 404 give an empty stream.
+     * @param elementType Class of the array elements
+     */
+    Stream<T> asStream(Class<T> elementType);
+
+    Stream<T> asStream(TypeRef<T> elementType);
+
+    /**
+     * Like asStream(), close the iterator if you may stop before the last element
+     */
+    ElementIterator<T> asIterator(Class<T> elementType);
+
+    ElementIterator<T> asIterator(TypeRef<T> elementType);
+
     /**
      * Convenience method for no input expected.
      */
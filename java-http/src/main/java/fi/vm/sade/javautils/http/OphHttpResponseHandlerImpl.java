@@ -1,27 +1,43 @@
 package fi.vm.sade.javautils.http;
 
 import fi.vm.sade.javautils.http.exceptions.UnhandledHttpStatusCodeException;
+import fi.vm.sade.javautils.httpcommon.codec.BodyCodec;
+import fi.vm.sade.javautils.httpcommon.codec.BufferPool;
+import fi.vm.sade.javautils.httpcommon.codec.ElementIterator;
+import fi.vm.sade.javautils.httpcommon.codec.ResponseBodies;
+import fi.vm.sade.javautils.httpcommon.codec.TypeRef;
+import fi.vm.sade.javautils.httpcommon.metrics.RequestTimings;
+import org.apache.http.HttpEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Optional;
 import java.util.Set;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.apache.http.HttpStatus.SC_NOT_FOUND;
 import static org.apache.http.HttpStatus.SC_NO_CONTENT;
 
 public class OphHttpResponseHandlerImpl<T> implements OphHttpResponseHandler<T> {
     private CloseableHttpResponse response;
+    private RequestTimings timings;
+    private BodyCodec codec;
+    private BufferPool bufferPool;
     private Set<Integer> allowedStatusCodes;
     private Set<OphHttpOnErrorCallBackImpl<T>> ophHttpCallBackSet;
 
-    OphHttpResponseHandlerImpl(CloseableHttpResponse response, int[] allowedStatusCodes, Set<OphHttpOnErrorCallBackImpl<T>> ophHttpCallBackSet) {
+    OphHttpResponseHandlerImpl(CloseableHttpResponse response, RequestTimings timings, BodyCodec codec, BufferPool bufferPool,
+                               int[] allowedStatusCodes, Set<OphHttpOnErrorCallBackImpl<T>> ophHttpCallBackSet) {
         this.response = response;
+        this.timings = timings;
+        this.codec = codec;
+        this.bufferPool = bufferPool;
         this.allowedStatusCodes = Arrays.stream(allowedStatusCodes).boxed().collect(Collectors.toSet());
         this.ophHttpCallBackSet = ophHttpCallBackSet;
     }
@@ -35,6 +51,56 @@ public class OphHttpResponseHandlerImpl<T> implements OphHttpResponseHandler<T>
         return this.notExpectedStatusCodeHandling(true);
     }
 
+    @Override
+    public Optional<T> as(Class<T> type) {
+        return this.mapTo(TypeRef.of(type));
+    }
+
+    @Override
+    public Optional<T> mapTo(TypeRef<T> type) {
+        this.requireCodec();
+        if (this.allowedStatusCodes.stream().anyMatch(status -> status == this.response.getStatusLine().getStatusCode()) ) {
+            return Optional.ofNullable(this.decodeAndClose(type));
+        }
+        return this.notExpectedStatusCodeHandling(true);
+    }
+
+    @Override
+    public Stream<T> asStream(Class<T> elementType) {
+        return this.asIterator(TypeRef.of(elementType)).stream();
+    }
+
+    @Override
+    public Stream<T> asStream(TypeRef<T> elementType) {
+        return this.asIterator(elementType).stream();
+    }
+
+    @Override
+    public ElementIterator<T> asIterator(Class<T> elementType) {
+        return this.asIterator(TypeRef.of(elementType));
+    }
+
+    @Override
+    public ElementIterator<T> asIterator(TypeRef<T> elementType) {
+        this.requireCodec();
+        if (this.allowedStatusCodes.stream().noneMatch(status -> status == this.response.getStatusLine().getStatusCode()) ) {
+            Optional<T> handled = this.notExpectedStatusCodeHandling(true);
+            return new ElementIterator<>(handled.map(Collections::singletonList).orElse(Collections.emptyList()).iterator(), null, () -> {});
+        }
+        HttpEntity entity = this.response.getEntity();
+        if (entity == null) {
+            return new ElementIterator<>(Collections.emptyIterator(), null, this::close);
+        }
+        InputStream inputStream;
+        try {
+            inputStream = entity.getContent();
+        } catch (IOException e) {
+            this.close();
+            throw new RuntimeException("Error decoding " + elementType + " elements", e);
+        }
+        return ElementIterator.decode(this.codec, inputStream, ResponseBodies.charset(entity), elementType, null, this::close);
+    }
+
     @Override
     public void ignoreResponse() {
         if (this.allowedStatusCodes.stream().noneMatch(status -> status == this.response.getStatusLine().getStatusCode()) ) {
@@ -78,9 +144,32 @@ public class OphHttpResponseHandlerImpl<T> implements OphHttpResponseHandler<T>
         }
     }
 
+    private void requireCodec() {
+        if (this.codec == null) {
+            this.close();
+            throw new IllegalStateException("OphHttpClient has no codec, set one with OphHttpClient.Builder.codec()");
+        }
+    }
+
+    private T decodeAndClose(TypeRef<T> type) {
+        HttpEntity entity = this.response.getEntity();
+        try {
+            if (entity == null) {
+                return null;
+            }
+            try (InputStream inputStream = entity.getContent()) {
+                return this.codec.decode(inputStream, ResponseBodies.charset(entity), type.getType());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Error decoding " + type, e);
+        } finally {
+            this.close();
+        }
+    }
+
     private String asTextAndClose() {
-        try (InputStream inputStream = this.response.getEntity().getContent()) {
-            return OphHttpResponseImpl.toString(inputStream);
+        try {
+            return ResponseBodies.toString(this.response.getEntity(), this.bufferPool);
         } catch (IOException e) {
             throw new RuntimeException(e);
         } finally {
@@ -93,6 +182,10 @@ public class OphHttpResponseHandlerImpl<T> implements OphHttpResponseHandler<T>
             this.response.close();
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
+        } finally {
+            if (this.timings != null) {
+                this.timings.complete();
+            }
         }
     }
 
@@ -1,11 +1,10 @@
 package fi.vm.sade.javautils.http;
 
+import fi.vm.sade.javautils.httpcommon.codec.BodyCodec;
+import fi.vm.sade.javautils.httpcommon.codec.BufferPool;
+import fi.vm.sade.javautils.httpcommon.metrics.RequestTimings;
 import org.apache.http.client.methods.CloseableHttpResponse;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -13,10 +12,31 @@ public class OphHttpResponseImpl<T> implements OphHttpResponse<T> {
 
     private final CloseableHttpResponse response;
 
+    private final RequestTimings timings;
+
+    private final BodyCodec codec;
+
+    private final BufferPool bufferPool;
+
     private Set<OphHttpOnErrorCallBackImpl<T>> ophHttpCallBackSet;
 
     public OphHttpResponseImpl(CloseableHttpResponse response) {
+        this(response, null);
+    }
+
+    public OphHttpResponseImpl(CloseableHttpResponse response, RequestTimings timings) {
+        this(response, timings, null);
+    }
+
+    public OphHttpResponseImpl(CloseableHttpResponse response, RequestTimings timings, BodyCodec codec) {
+        this(response, timings, codec, null);
+    }
+
+    public OphHttpResponseImpl(CloseableHttpResponse response, RequestTimings timings, BodyCodec codec, BufferPool bufferPool) {
         this.response = response;
+        this.timings = timings;
+        this.codec = codec;
+        this.bufferPool = bufferPool;
         this.ophHttpCallBackSet = new HashSet<>();
     }
 
@@ -32,20 +52,11 @@ public class OphHttpResponseImpl<T> implements OphHttpResponse<T> {
 
     @Override
     public OphHttpResponseHandler<T> expectedStatus(int... statusArray) {
-        return new OphHttpResponseHandlerImpl<>(this.response, statusArray, this.ophHttpCallBackSet);
+        return new OphHttpResponseHandlerImpl<>(this.response, this.timings, this.codec, this.bufferPool, statusArray, this.ophHttpCallBackSet);
     }
 
-    static String toString(InputStream stream) throws IOException { // IO
-        try(BufferedInputStream bis = new BufferedInputStream(stream);
-            ByteArrayOutputStream buf = new ByteArrayOutputStream()) {
-            int result;
-            result = bis.read();
-            while(result != -1) {
-                buf.write((byte) result);
-                result = bis.read();
-            }
-            return buf.toString();
-        }
+    @Override
+    public RequestTimings getTimings() {
+        return this.timings;
     }
-
 }
@@ -25,8 +25,27 @@ public interface Authenticator {
 
     void clearSession();
 
+    /**
+     * Clears the session only if it still has ticketUsed, so that a late 401 to a request sent with an old ticket
+     * doesn't throw away a session that was refreshed after the request was sent.
+     * @param ticketUsed from authenticateWithTicket(), null clears any completed session
+     * @return false if the session was already refreshed and kept, so its cookies must be kept too
+     */
+    default boolean clearSession(String ticketUsed) {
+        clearSession();
+        return true;
+    }
+
     boolean authenticate(HttpUriRequest request, CookieStore cookieStore);
 
+    /**
+     * Like authenticate(), but returns the ticket that was used for the request, for clearSession(String).
+     * Null if the request was not authenticated, empty if the authenticator doesn't have tickets.
+     */
+    default String authenticateWithTicket(HttpUriRequest request, CookieStore cookieStore) {
+        return authenticate(request, cookieStore) ? "" : null;
+    }
+
     String getUrlPrefix();
 
 }
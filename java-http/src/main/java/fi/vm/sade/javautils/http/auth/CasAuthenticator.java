@@ -1,5 +1,6 @@
 package fi.vm.sade.javautils.http.auth;
 
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
@@ -7,6 +8,10 @@ import org.apache.http.client.CookieStore;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.cookie.Cookie;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicReference;
+
 @Slf4j
 @Getter
 @Setter
@@ -25,8 +30,20 @@ public class CasAuthenticator implements Authenticator {
     private boolean addSpringSecSuffix;
     private String sessionCookieName;
 
-    private String serviceAsAUserTicket;
-    private Cookie sessionCookieValue;
+    // completed future = current session, incomplete = refresh in progress, null = no session
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private final AtomicReference<CompletableFuture<Session>> session = new AtomicReference<>();
+
+    private static class Session {
+        private final String serviceAsAUserTicket;
+        private final Cookie sessionCookieValue;
+
+        Session(String serviceAsAUserTicket, Cookie sessionCookieValue) {
+            this.serviceAsAUserTicket = serviceAsAUserTicket;
+            this.sessionCookieValue = sessionCookieValue;
+        }
+    }
 
     public CasAuthenticator(Builder builder) {
         webCasUrl = builder.webCasUrl;
@@ -51,34 +68,140 @@ public class CasAuthenticator implements Authenticator {
 
     @Override
     public void clearSession() {
-        serviceAsAUserTicket = null;
-        sessionCookieValue = null;
+        // refresh in progress is fetching a new ticket, only a completed (possibly stale) session is cleared
+        session.updateAndGet(current -> current != null && !current.isDone() ? current : null);
     }
 
     @Override
-    public synchronized boolean authenticate(final HttpUriRequest req, CookieStore cookieStore) {
-        if (serviceAsAUserTicket == null) {
-            checkNotNull(getUsername(), "username");
-            checkNotNull(getPassword(), "password");
-            checkNotNull(getWebCasUrl(), "webCasUrl");
-            checkNotNull(getCasServiceUrl(), "casService");
-            this.serviceAsAUserTicket = obtainNewCasServiceAsAUserTicket();
-            log.info("got new serviceAsAUser ticket, service: " + getCasServiceUrl() + ", ticket: " + getServiceAsAUserTicket());
+    public boolean clearSession(String ticketUsed) {
+        if (ticketUsed == null) {
+            clearSession();
+            return true;
         }
+        CompletableFuture<Session> current = session.get();
+        Session completed = completedSession(current);
+        return completed != null && completed.serviceAsAUserTicket.equals(ticketUsed) && session.compareAndSet(current, null);
+    }
+
+    @Override
+    public boolean authenticate(final HttpUriRequest req, CookieStore cookieStore) {
+        authenticateWithTicket(req, cookieStore);
+        return true;
+    }
 
-        if(sessionCookieName != null && sessionCookieValue == null) {
-            this.sessionCookieValue = this.initCookieSessionToService(serviceAsAUserTicket);
-            log.info("got new serviceSessionCookie, cookie: " + sessionCookieValue);
-            cookieStore.addCookie(sessionCookieValue);
+    /**
+     * Sets the cached ticket to the request without locking. If there is no session, one thread fetches a new ticket
+     * (and session cookie) and other threads wait for it.
+     */
+    @Override
+    public String authenticateWithTicket(final HttpUriRequest req, CookieStore cookieStore) {
+        Session current = currentSession();
+        if (current == null) {
+            current = refreshSession(cookieStore);
         }
 
-        if(sessionCookieValue == null) {
-            req.setHeader(CAS_SECURITY_TICKET, serviceAsAUserTicket);
+        if(current.sessionCookieValue == null) {
+            req.setHeader(CAS_SECURITY_TICKET, current.serviceAsAUserTicket);
         }
 
         setKayttajaHeaders(req, getUsername(), getUsername());
-        log.debug("set serviceAsAUser ticket to header, service: " + getCasServiceUrl() + ", ticket: " + getServiceAsAUserTicket() + ", currentUser: " + getUsername() + ", callAsUser: " + getUsername());
-        return true;
+        log.debug("set serviceAsAUser ticket to header, service: " + getCasServiceUrl() + ", ticket: " + current.serviceAsAUserTicket + ", currentUser: " + getUsername() + ", callAsUser: " + getUsername());
+        return current.serviceAsAUserTicket;
+    }
+
+    public String getServiceAsAUserTicket() {
+        Session current = currentSession();
+        return current == null ? null : current.serviceAsAUserTicket;
+    }
+
+    public Cookie getSessionCookieValue() {
+        Session current = currentSession();
+        return current == null ? null : current.sessionCookieValue;
+    }
+
+    /**
+     * @deprecated the ticket is fetched by authenticate(), use clearSession() to fetch a new one
+     */
+    @Deprecated
+    public void setServiceAsAUserTicket(String serviceAsAUserTicket) {
+        session.updateAndGet(current -> {
+            if (serviceAsAUserTicket == null) {
+                return null;
+            }
+            Session completed = completedSession(current);
+            return CompletableFuture.completedFuture(new Session(serviceAsAUserTicket, completed == null ? null : completed.sessionCookieValue));
+        });
+    }
+
+    /**
+     * @deprecated the session cookie is fetched by authenticate(), use clearSession() to fetch a new one
+     */
+    @Deprecated
+    public void setSessionCookieValue(Cookie sessionCookieValue) {
+        session.updateAndGet(current -> {
+            Session completed = completedSession(current);
+            if (completed == null) {
+                // without a ticket authenticate() fetches a new session anyway
+                return current;
+            }
+            return CompletableFuture.completedFuture(new Session(completed.serviceAsAUserTicket, sessionCookieValue));
+        });
+    }
+
+    private Session currentSession() {
+        return completedSession(session.get());
+    }
+
+    private static Session completedSession(CompletableFuture<Session> session) {
+        return session != null && session.isDone() && !session.isCompletedExceptionally() ? session.join() : null;
+    }
+
+    private Session refreshSession(CookieStore cookieStore) {
+        while (true) {
+            CompletableFuture<Session> current = session.get();
+            if (current == null) {
+                CompletableFuture<Session> refresh = new CompletableFuture<>();
+                if (session.compareAndSet(null, refresh)) {
+                    return fetchSession(refresh, cookieStore);
+                }
+            } else {
+                try {
+                    return current.join();
+                } catch (CompletionException e) {
+                    // the fetching thread failed and removed its refresh, it got the same exception
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
+                    }
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private Session fetchSession(CompletableFuture<Session> refresh, CookieStore cookieStore) {
+        try {
+            checkNotNull(getUsername(), "username");
+            checkNotNull(getPassword(), "password");
+            checkNotNull(getWebCasUrl(), "webCasUrl");
+            checkNotNull(getCasServiceUrl(), "casService");
+            String serviceAsAUserTicket = obtainNewCasServiceAsAUserTicket();
+            log.info("got new serviceAsAUser ticket, service: " + getCasServiceUrl() + ", ticket: " + serviceAsAUserTicket);
+
+            Cookie sessionCookieValue = null;
+            if(sessionCookieName != null) {
+                sessionCookieValue = this.initCookieSessionToService(serviceAsAUserTicket);
+                log.info("got new serviceSessionCookie, cookie: " + sessionCookieValue);
+                cookieStore.addCookie(sessionCookieValue);
+            }
+
+            Session fetched = new Session(serviceAsAUserTicket, sessionCookieValue);
+            refresh.complete(fetched);
+            return fetched;
+        } catch (RuntimeException | Error e) {
+            session.compareAndSet(refresh, null);
+            refresh.completeExceptionally(e);
+            throw e;
+        }
     }
 
     @Override
@@ -3,26 +3,36 @@ package fi.vm.sade.javautils.http.auth;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.Header;
 import org.apache.http.NameValuePair;
-import org.apache.http.client.CookieStore;
-import org.apache.http.client.HttpClient;
+import org.apache.http.NoHttpResponseException;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.cookie.Cookie;
 import org.apache.http.impl.client.BasicCookieStore;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 public final class CasClient {
@@ -36,12 +46,48 @@ public final class CasClient {
       .setSocketTimeout(10 * 1000)
       .build();
 
+  // shared by all calls, cookies are kept in a per call context
+  private static final CloseableHttpClient client = HttpClientBuilder.create()
+      .setDefaultRequestConfig(config)
+      .setConnectionManager(connectionManager())
+      .evictExpiredConnections()
+      .evictIdleConnections(30, TimeUnit.SECONDS)
+      .build();
+
+  // key is [server, username, password hash], incomplete future = TGT is being fetched
+  private static final ConcurrentHashMap<List<String>, CompletableFuture<TicketGrantingTicket>> ticketGrantingTickets = new ConcurrentHashMap<>();
+  private static volatile long ticketGrantingTicketLifetimeMs = TimeUnit.HOURS.toMillis(1);
+
+  private static class TicketGrantingTicket {
+    private final String ticket;
+    private final long expires;
+
+    TicketGrantingTicket(String ticket, long expires) {
+      this.ticket = ticket;
+      this.expires = expires;
+    }
+  }
+
   private CasClient() {
     // static-only access
   }
 
   /**
-   * get cas service ticket, throws runtime exception if fails
+   * How long a TGT is used for getting service tickets for the same server, username and password. Should be
+   * shorter than CAS's TGT timeout. 0 disables caching. Default 1 hour.
+   */
+  public static void setTicketGrantingTicketLifetime(long lifetime, TimeUnit unit) {
+    ticketGrantingTicketLifetimeMs = unit.toMillis(lifetime);
+    clearTicketGrantingTickets();
+  }
+
+  public static void clearTicketGrantingTickets() {
+    ticketGrantingTickets.clear();
+  }
+
+  /**
+   * get cas service ticket, throws runtime exception if fails.
+   * Service ticket is requested with a cached TGT if there is one. If CAS doesn't accept the TGT, a new TGT is fetched.
    */
   public static String getTicket(String server, final String username, final String password, String service, boolean addSuffix) {
 
@@ -57,27 +103,29 @@ public final class CasClient {
       service = checkUrl(service, SERVICE_URL_SUFFIX);
     }
 
-    try (CloseableHttpClient client = HttpClientBuilder.create()
-        .setDefaultRequestConfig(config)
-        .setConnectionTimeToLive(60, TimeUnit.SECONDS)
-        .build()) {
-      return getServiceTicket(server, username, password, service, client);
+    try {
+      // with the password in the key a client with wrong credentials can't get another client's TGT
+      List<String> key = Arrays.asList(server, username, passwordHash(password));
+      String ticketGrantingTicket = getCachedTicketGrantingTicket(key, password);
+      String serviceTicket = getServiceTicket(server, ticketGrantingTicket, service, ticketGrantingTicketLifetimeMs > 0);
+      if (serviceTicket == null) {
+        logger.info("CAS didn't accept cached TGT, getting a new TGT, server: {}, user: {}", server, username);
+        removeTicketGrantingTicket(key, ticketGrantingTicket);
+        serviceTicket = getServiceTicket(server, getCachedTicketGrantingTicket(key, password), service, false);
+      }
+      return serviceTicket;
     } catch (final Exception e) {
       throw new RuntimeException("failed to get CAS service ticket, server: " + server + ", service: " + service + ", cause: " + e, e);
     }
   }
 
   public static Cookie initServiceSession(String casServiceSessionInitUrl, String serviceTicket, String cookieName) {
-    CookieStore httpCookieStore = new BasicCookieStore();
+    HttpClientContext context = createContext();
     HttpGet httpGet = new HttpGet(casServiceSessionInitUrl + "?" + "ticket=" + serviceTicket);
     setRequiredHeaders(httpGet);
-    try (CloseableHttpClient client = HttpClientBuilder.create()
-                .setDefaultRequestConfig(config)
-                .setConnectionTimeToLive(60, TimeUnit.SECONDS)
-                .setDefaultCookieStore(httpCookieStore)
-                .build();
-         CloseableHttpResponse response = (CloseableHttpResponse) client.execute(httpGet)) {
-      for (Cookie cookie : httpCookieStore.getCookies()) {
+    try (CloseableHttpResponse response = execute(httpGet, context)) {
+      EntityUtils.consumeQuietly(response.getEntity());
+      for (Cookie cookie : context.getCookieStore().getCookies()) {
         if (cookieName.equals(cookie.getName())) {
           return cookie;
         }
@@ -88,15 +136,96 @@ public final class CasClient {
     }
   }
 
+  private static PoolingHttpClientConnectionManager connectionManager() {
+    PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(60, TimeUnit.SECONDS);
+    connectionManager.setDefaultMaxPerRoute(20);
+    connectionManager.setMaxTotal(100);
+    // CAS may close an idle keep-alive connection at any time, check it before reuse
+    connectionManager.setValidateAfterInactivity(1000);
+    return connectionManager;
+  }
+
+  /**
+   * HttpClient doesn't retry POSTs, so a request sent over a pooled connection that the server had already closed
+   * is retried here once.
+   */
+  private static CloseableHttpResponse execute(HttpRequestBase request, HttpClientContext context) throws IOException {
+    try {
+      return client.execute(request, context);
+    } catch (NoHttpResponseException e) {
+      logger.debug("no response from {}, retrying: {}", request.getURI(), e.toString());
+      return client.execute(request, context);
+    }
+  }
+
+  private static HttpClientContext createContext() {
+    HttpClientContext context = HttpClientContext.create();
+    context.setCookieStore(new BasicCookieStore());
+    return context;
+  }
+
   private static void setRequiredHeaders(HttpRequestBase request) {
     request.addHeader("Caller-Id", "CasClient");
     request.addHeader("CSRF", "CSRF");
     request.addHeader("Cookie", "CSRF=CSRF");
   }
 
-  private static String getServiceTicket(final String server, String username, String password, final String service, HttpClient client) throws UnsupportedEncodingException {
-    final String ticketGrantingTicket = getTicketGrantingTicket(server, username, password, client);
+  /**
+   * Returns cached TGT or fetches a new one. Concurrent callers with the same key wait for the same fetch.
+   */
+  private static String getCachedTicketGrantingTicket(List<String> key, String password) throws UnsupportedEncodingException {
+    long lifetimeMs = ticketGrantingTicketLifetimeMs;
+    if (lifetimeMs <= 0) {
+      return getTicketGrantingTicket(key.get(0), key.get(1), password);
+    }
+    while (true) {
+      CompletableFuture<TicketGrantingTicket> current = ticketGrantingTickets.get(key);
+      if (current == null) {
+        CompletableFuture<TicketGrantingTicket> fetch = new CompletableFuture<>();
+        if (ticketGrantingTickets.putIfAbsent(key, fetch) == null) {
+          try {
+            String ticket = getTicketGrantingTicket(key.get(0), key.get(1), password);
+            fetch.complete(new TicketGrantingTicket(ticket, System.currentTimeMillis() + lifetimeMs));
+            return ticket;
+          } catch (RuntimeException | Error | UnsupportedEncodingException e) {
+            ticketGrantingTickets.remove(key, fetch);
+            fetch.completeExceptionally(e);
+            throw e;
+          }
+        }
+      } else {
+        TicketGrantingTicket ticketGrantingTicket;
+        try {
+          ticketGrantingTicket = current.join();
+        } catch (CompletionException e) {
+          // the fetching thread failed and removed its fetch, it got the same exception
+          if (e.getCause() instanceof RuntimeException) {
+            throw (RuntimeException) e.getCause();
+          }
+          throw e;
+        }
+        if (ticketGrantingTicket.expires > System.currentTimeMillis()) {
+          return ticketGrantingTicket.ticket;
+        }
+        ticketGrantingTickets.remove(key, current);
+      }
+    }
+  }
+
+  private static String passwordHash(String password) throws NoSuchAlgorithmException {
+    byte[] hash = MessageDigest.getInstance("SHA-256").digest(password.getBytes(StandardCharsets.UTF_8));
+    return Base64.getEncoder().encodeToString(hash);
+  }
+
+  private static void removeTicketGrantingTicket(List<String> key, String ticket) {
+    ticketGrantingTickets.computeIfPresent(key, (k, current) ->
+        current.isDone() && !current.isCompletedExceptionally() && current.join().ticket.equals(ticket) ? null : current);
+  }
 
+  /**
+   * @param allowInvalidTgt return null instead of throwing if CAS responds 400 or 404, i.e. the TGT is not valid
+   */
+  private static String getServiceTicket(final String server, final String ticketGrantingTicket, final String service, boolean allowInvalidTgt) throws UnsupportedEncodingException {
     logger.debug("getServiceTicket: server:'{}', ticketGrantingTicket:'{}', service:'{}'", server, ticketGrantingTicket, service);
 
     HttpPost httpPost = new HttpPost(server + "/" + ticketGrantingTicket);
@@ -105,22 +234,26 @@ public final class CasClient {
     params.add(new BasicNameValuePair("service", service));
     httpPost.setEntity(new UrlEncodedFormEntity(params, "UTF-8"));
 
-    try (CloseableHttpResponse response = (CloseableHttpResponse) client.execute(httpPost)) {
-      switch (response.getStatusLine().getStatusCode()) {
+    try (CloseableHttpResponse response = execute(httpPost, createContext())) {
+      int statusCode = response.getStatusLine().getStatusCode();
+      switch (statusCode) {
         case 200:
           logger.debug("serviceTicket found: {}", response);
           return EntityUtils.toString(response.getEntity(), "UTF-8");
         default:
-          logger.warn("Invalid response code ({}) from CAS server!", response.getStatusLine().getStatusCode());
-          logger.debug("Response (1k): " + response.getEntity().getContent().toString());
-          throw new RuntimeException("failed to get CAS service ticket, response code: " + response.getStatusLine().getStatusCode()+ ", server: " + server + ", tgt: " + ticketGrantingTicket + ", service: " + service);
+          EntityUtils.consumeQuietly(response.getEntity());
+          if (allowInvalidTgt && (statusCode == 400 || statusCode == 404)) {
+            return null;
+          }
+          logger.warn("Invalid response code ({}) from CAS server!", statusCode);
+          throw new RuntimeException("failed to get CAS service ticket, response code: " + statusCode + ", server: " + server + ", tgt: " + ticketGrantingTicket + ", service: " + service);
       }
     } catch (final Exception e) {
       throw new RuntimeException("failed to get CAS service ticket, server: " + server + ", tgt: " + ticketGrantingTicket + ", service: " + service + ", cause: " + e, e);
     }
   }
 
-  private static String getTicketGrantingTicket(final String server, final String username, final String password, HttpClient client) throws UnsupportedEncodingException {
+  private static String getTicketGrantingTicket(final String server, final String username, final String password) throws UnsupportedEncodingException {
     logger.debug("getTicketGrantingTicket: server:'{}', user:'{}'", new Object[]{server, username});
 
     HttpPost httpPost = new HttpPost(server);
@@ -130,7 +263,8 @@ public final class CasClient {
     params.add(new BasicNameValuePair("password", password));
     httpPost.setEntity(new UrlEncodedFormEntity(params, "UTF-8"));
 
-    try (CloseableHttpResponse response = (CloseableHttpResponse) client.execute(httpPost)) {
+    try (CloseableHttpResponse response = execute(httpPost, createContext())) {
+      EntityUtils.consumeQuietly(response.getEntity());
       switch (response.getStatusLine().getStatusCode()) {
         case 201: {
           Header[] locationHeaders = response.getHeaders("Location");
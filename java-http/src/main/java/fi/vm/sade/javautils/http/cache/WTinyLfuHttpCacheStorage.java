@@ -0,0 +1,294 @@
+package fi.vm.sade.javautils.http.cache;
+
+import org.apache.http.Header;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheStorage;
+import org.apache.http.client.cache.HttpCacheUpdateCallback;
+import org.apache.http.client.cache.Resource;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HttpCacheStorage bounded by the total size of cached responses (body + headers) instead of the number of entries.
+ *
+ * Uses W-TinyLFU: new entries go to a small LRU window (1% of maxBytes). Entries falling out of the window are admitted
+ * to the main area only if they have been requested more often than the entries they would evict, so a burst of
+ * one-off requests can't flush a large, often used response. Main area is a segmented LRU where entries that are hit
+ * again move from probation to protected (80% of the main area).
+ *
+ * Entries for urls starting with a prefix given to Builder.ttl() are dropped after the ttl even if they would still be
+ * fresh. See OphHttpClient.Builder.cacheStorage().
+ */
+public class WTinyLfuHttpCacheStorage implements HttpCacheStorage {
+    private static final int ENTRY_OVERHEAD = 256;
+
+    private final long maxBytes;
+    private final long maxWindowBytes;
+    private final long maxProtectedBytes;
+    private final TreeMap<String, Long> ttlMsByUrlPrefix;
+    private final FrequencySketch sketch;
+
+    // insertion order = LRU order, accessed entries are moved to the end
+    private final LinkedHashMap<String, Node> window = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Node> probation = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Node> protectedArea = new LinkedHashMap<>();
+    private long windowBytes;
+    private long probationBytes;
+    private long protectedBytes;
+
+    private static class Node {
+        private final String key;
+        private HttpCacheEntry entry;
+        private long weight;
+        private long expires;
+        private Map<String, Node> area;
+
+        Node(String key) {
+            this.key = key;
+        }
+    }
+
+    private WTinyLfuHttpCacheStorage(Builder builder) {
+        maxBytes = builder.maxBytes;
+        maxWindowBytes = Math.max(1, maxBytes / 100);
+        maxProtectedBytes = (maxBytes - maxWindowBytes) * 8 / 10;
+        ttlMsByUrlPrefix = new TreeMap<>(builder.ttlMsByUrlPrefix);
+        sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE, maxBytes / 4096));
+    }
+
+    @Override
+    public synchronized void putEntry(String key, HttpCacheEntry entry) {
+        sketch.increment(key);
+        Node node = remove(key);
+        if (node == null) {
+            node = new Node(key);
+        }
+        node.entry = entry;
+        node.weight = weigh(key, entry);
+        node.expires = expires(key);
+        if (node.weight > maxBytes) {
+            return;
+        }
+        add(window, node);
+        evict();
+    }
+
+    @Override
+    public synchronized HttpCacheEntry getEntry(String key) {
+        sketch.increment(key);
+        Node node = find(key);
+        if (node == null) {
+            return null;
+        }
+        if (node.expires <= System.currentTimeMillis()) {
+            remove(key);
+            return null;
+        }
+        onHit(node);
+        return node.entry;
+    }
+
+    @Override
+    public synchronized void removeEntry(String key) {
+        remove(key);
+    }
+
+    @Override
+    public synchronized void updateEntry(String key, HttpCacheUpdateCallback callback) throws IOException {
+        Node node = find(key);
+        HttpCacheEntry updated = callback.update(node == null ? null : node.entry);
+        if (updated == null) {
+            remove(key);
+            return;
+        }
+        if (node == null) {
+            putEntry(key, updated);
+            return;
+        }
+        // keep the entry in its current area
+        long weight = weigh(key, updated);
+        if (weight > maxBytes) {
+            remove(key);
+            return;
+        }
+        addBytes(node.area, weight - node.weight);
+        node.entry = updated;
+        node.weight = weight;
+        node.expires = expires(key);
+        rebalanceProtected();
+        evict();
+    }
+
+    /**
+     * @return total size of cached entries in bytes
+     */
+    public synchronized long getWeightedSize() {
+        return windowBytes + probationBytes + protectedBytes;
+    }
+
+    public synchronized int size() {
+        return window.size() + probation.size() + protectedArea.size();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    private Node find(String key) {
+        Node node = window.get(key);
+        if (node == null) {
+            node = probation.get(key);
+        }
+        if (node == null) {
+            node = protectedArea.get(key);
+        }
+        return node;
+    }
+
+    private void onHit(Node node) {
+        if (node.area == probation) {
+            take(node);
+            add(protectedArea, node);
+            rebalanceProtected();
+        } else {
+            take(node);
+            add(node.area, node);
+        }
+    }
+
+    private void rebalanceProtected() {
+        Iterator<Node> lru = protectedArea.values().iterator();
+        while (protectedBytes > maxProtectedBytes && lru.hasNext()) {
+            Node demoted = lru.next();
+            lru.remove();
+            protectedBytes -= demoted.weight;
+            add(probation, demoted);
+        }
+    }
+
+    private void evict() {
+        Iterator<Node> windowLru = window.values().iterator();
+        while (windowBytes > maxWindowBytes && windowLru.hasNext()) {
+            Node candidate = windowLru.next();
+            windowLru.remove();
+            windowBytes -= candidate.weight;
+            if (admit(candidate)) {
+                add(probation, candidate);
+            }
+        }
+    }
+
+    /**
+     * Evicts main area entries that are used less often than the candidate if that makes room for it. Victims are
+     * picked in LRU order, probation first, and nothing is evicted if any of them is used at least as often.
+     */
+    private boolean admit(Node candidate) {
+        long maxMainBytes = maxBytes - maxWindowBytes;
+        if (candidate.weight > maxMainBytes) {
+            return false;
+        }
+        long needed = probationBytes + protectedBytes + candidate.weight - maxMainBytes;
+        if (needed <= 0) {
+            return true;
+        }
+        int candidateFrequency = sketch.frequency(candidate.key);
+        List<Node> victims = new ArrayList<>();
+        for (Map<String, Node> area : Arrays.asList(probation, protectedArea)) {
+            for (Iterator<Node> lru = area.values().iterator(); needed > 0 && lru.hasNext(); ) {
+                Node victim = lru.next();
+                if (candidateFrequency <= sketch.frequency(victim.key)) {
+                    return false;
+                }
+                victims.add(victim);
+                needed -= victim.weight;
+            }
+        }
+        for (Node victim : victims) {
+            take(victim);
+        }
+        return true;
+    }
+
+    private void add(Map<String, Node> area, Node node) {
+        node.area = area;
+        area.put(node.key, node);
+        addBytes(area, node.weight);
+    }
+
+    private void take(Node node) {
+        node.area.remove(node.key);
+        addBytes(node.area, -node.weight);
+    }
+
+    private Node remove(String key) {
+        Node node = find(key);
+        if (node != null) {
+            take(node);
+        }
+        return node;
+    }
+
+    private void addBytes(Map<String, Node> area, long bytes) {
+        if (area == window) {
+            windowBytes += bytes;
+        } else if (area == probation) {
+            probationBytes += bytes;
+        } else {
+            protectedBytes += bytes;
+        }
+    }
+
+    private long expires(String key) {
+        String url = key.startsWith("{") ? key.substring(key.indexOf('}') + 1) : key; // variant entries: {variant}url
+        Map.Entry<String, Long> ttl = ttlMsByUrlPrefix.floorEntry(url);
+        while (ttl != null && !url.startsWith(ttl.getKey())) {
+            ttl = ttlMsByUrlPrefix.lowerEntry(ttl.getKey());
+        }
+        return ttl == null ? Long.MAX_VALUE : System.currentTimeMillis() + ttl.getValue();
+    }
+
+    private static long weigh(String key, HttpCacheEntry entry) {
+        long weight = ENTRY_OVERHEAD + 2L * key.length();
+        Resource resource = entry.getResource();
+        if (resource != null) {
+            weight += resource.length();
+        }
+        for (Header header : entry.getAllHeaders()) {
+            weight += 2L * (header.getName().length() + header.getValue().length());
+        }
+        return weight;
+    }
+
+    public static final class Builder {
+        long maxBytes;
+        Map<String, Long> ttlMsByUrlPrefix = new TreeMap<>();
+
+        /**
+         * @param maxBytes Max total size of cached responses
+         */
+        public Builder(long maxBytes) {
+            if (maxBytes <= 0) throw new IllegalArgumentException("maxBytes <= 0");
+            this.maxBytes = maxBytes;
+        }
+
+        /**
+         * Drop cached responses of urls starting with urlPrefix after ttl. The longest matching prefix is used.
+         */
+        public Builder ttl(String urlPrefix, long ttl, TimeUnit unit) {
+            ttlMsByUrlPrefix.put(urlPrefix, unit.toMillis(ttl));
+            return this;
+        }
+
+        public WTinyLfuHttpCacheStorage build() {
+            return new WTinyLfuHttpCacheStorage(this);
+        }
+    }
+}
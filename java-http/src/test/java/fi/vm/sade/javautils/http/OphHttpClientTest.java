@@ -1,20 +1,46 @@
 package fi.vm.sade.javautils.http;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
 
 import fi.vm.sade.javautils.http.auth.CasAuthenticator;
+import fi.vm.sade.javautils.http.auth.CasClient;
+import fi.vm.sade.javautils.httpcommon.cache.StaleWhileRevalidate;
+import fi.vm.sade.javautils.httpcommon.metrics.RequestTimings;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.stubbing.Scenario.STARTED;
 
 public class OphHttpClientTest {
     @Rule
     public WireMockRule wireMockRule = new WireMockRule(8089);
 
+    @Before
+    public void setUp() {
+        CasClient.clearTicketGrantingTickets();
+    }
+
     @Test
     public void authenticatesWithCas() {
         stubFor(post("/v1/tickets")
@@ -60,4 +86,272 @@ public class OphHttpClientTest {
             .withHeader("CasSecurityTicket", matching("ST-123155124-134252345-3245345")));
         assertEquals("responsee", response);
     }
+
+    @Test
+    public void executeAsyncRetriesWithNewTicketOn401() throws Exception {
+        stubFor(post("/v1/tickets")
+            .willReturn(created()
+                .withHeader("Location", "http://localhost:8089/cas/login/TGT-123452-123412-34")));
+        stubFor(post("/v1/tickets/TGT-123452-123412-34")
+            .willReturn(ok()
+                .withBody("ST-123155124-134252345-3245345")));
+        stubFor(get("/requestpath").inScenario("session").whenScenarioStateIs(STARTED)
+            .willReturn(unauthorized())
+            .willSetStateTo("authenticated"));
+        stubFor(get("/requestpath").inScenario("session").whenScenarioStateIs("authenticated")
+            .willReturn(ok()
+                .withBody("responsee")));
+
+        CasAuthenticator authenticator = new CasAuthenticator.Builder()
+                .username("casuser")
+                .password("cassword")
+                .webCasUrl("http://localhost:8089")
+                .casServiceUrl("http://myservice")
+                .build();
+
+        OphHttpClient client = new OphHttpClient.Builder("callerid").authenticator(authenticator).build();
+        OphHttpRequest request = OphHttpRequest.Builder.get("http://localhost:8089/requestpath").build();
+        String response = client.<String>executeAsync(request)
+                .thenApply(ophHttpResponse -> ophHttpResponse
+                        .expectedStatus(200)
+                        .mapWith(body -> body)
+                        .orElseThrow())
+                .get(10, TimeUnit.SECONDS);
+
+        verify(2, postRequestedFor(urlEqualTo("/v1/tickets/TGT-123452-123412-34")));
+        verify(2, getRequestedFor(urlEqualTo("/requestpath"))
+            .withHeader("Caller-id", matching("callerid"))
+            .withHeader("Cookie", matching("CSRF=CachingRestClient")));
+        assertEquals("responsee", response);
+    }
+
+    @Test
+    public void concurrentRequestsShareOneServiceTicket() throws Exception {
+        stubFor(post("/v1/tickets")
+            .willReturn(created()
+                .withHeader("Location", "http://localhost:8089/cas/login/TGT-123452-123412-34")));
+        stubFor(post("/v1/tickets/TGT-123452-123412-34")
+            .willReturn(ok()
+                .withBody("ST-123155124-134252345-3245345")
+                .withFixedDelay(200)));
+        stubFor(get("/requestpath")
+            .willReturn(ok()
+                .withBody("responsee")));
+
+        CasAuthenticator authenticator = new CasAuthenticator.Builder()
+                .username("casuser")
+                .password("cassword")
+                .webCasUrl("http://localhost:8089")
+                .casServiceUrl("http://myservice")
+                .build();
+
+        OphHttpClient client = new OphHttpClient.Builder("callerid").authenticator(authenticator).build();
+        ExecutorService executor = Executors.newFixedThreadPool(10);
+        try {
+            List<Future<String>> responses = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                responses.add(executor.submit(() -> client.<String>execute(OphHttpRequest.Builder.get("http://localhost:8089/requestpath").build())
+                        .expectedStatus(200)
+                        .mapWith(body -> body)
+                        .orElseThrow()));
+            }
+            for (Future<String> response : responses) {
+                assertEquals("responsee", response.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        verify(1, postRequestedFor(urlEqualTo("/v1/tickets/TGT-123452-123412-34")));
+        verify(10, getRequestedFor(urlEqualTo("/requestpath"))
+            .withHeader("CasSecurityTicket", matching("ST-123155124-134252345-3245345")));
+    }
+
+    @Test
+    public void reusesTicketGrantingTicketAndRenewsItWhenCasRejectsIt() {
+        stubFor(post("/v1/tickets")
+            .willReturn(created()
+                .withHeader("Location", "http://localhost:8089/cas/login/TGT-1")));
+        stubFor(post("/v1/tickets/TGT-1")
+            .willReturn(ok()
+                .withBody("ST-1")));
+        stubFor(get("/requestpath")
+            .willReturn(ok()
+                .withBody("responsee")));
+
+        CasAuthenticator authenticator = new CasAuthenticator.Builder()
+                .username("casuser")
+                .password("cassword")
+                .webCasUrl("http://localhost:8089")
+                .casServiceUrl("http://myservice")
+                .build();
+        OphHttpClient client = new OphHttpClient.Builder("callerid").authenticator(authenticator).build();
+        OphHttpRequest request = OphHttpRequest.Builder.get("http://localhost:8089/requestpath").build();
+
+        client.<String>execute(request).expectedStatus(200).mapWith(body -> body);
+        authenticator.clearSession();
+        client.<String>execute(request).expectedStatus(200).mapWith(body -> body);
+        verify(1, postRequestedFor(urlEqualTo("/v1/tickets")));
+        verify(2, postRequestedFor(urlEqualTo("/v1/tickets/TGT-1")));
+
+        // CAS has forgotten TGT-1
+        stubFor(post("/v1/tickets")
+            .willReturn(created()
+                .withHeader("Location", "http://localhost:8089/cas/login/TGT-2")));
+        stubFor(post("/v1/tickets/TGT-1")
+            .willReturn(notFound()));
+        stubFor(post("/v1/tickets/TGT-2")
+            .willReturn(ok()
+                .withBody("ST-2")));
+        authenticator.clearSession();
+        client.<String>execute(request).expectedStatus(200).mapWith(body -> body);
+
+        verify(2, postRequestedFor(urlEqualTo("/v1/tickets")));
+        verify(getRequestedFor(urlEqualTo("/requestpath"))
+            .withHeader("CasSecurityTicket", matching("ST-2")));
+    }
+
+    @Test
+    public void cachedTicketGrantingTicketRequiresSamePassword() {
+        stubFor(post("/v1/tickets").withRequestBody(containing("password=cassword"))
+            .willReturn(created()
+                .withHeader("Location", "http://localhost:8089/cas/login/TGT-1")));
+        stubFor(post("/v1/tickets").withRequestBody(containing("password=wrong"))
+            .willReturn(unauthorized()));
+        stubFor(post("/v1/tickets/TGT-1")
+            .willReturn(ok()
+                .withBody("ST-1")));
+
+        CasAuthenticator.Builder builder = new CasAuthenticator.Builder()
+                .username("casuser")
+                .webCasUrl("http://localhost:8089")
+                .casServiceUrl("http://myservice");
+        assertEquals("ST-1", builder.password("cassword").build()
+                .authenticateWithTicket(new HttpGet("http://localhost:8089/requestpath"), new BasicCookieStore()));
+        try {
+            builder.password("wrong").build()
+                    .authenticateWithTicket(new HttpGet("http://localhost:8089/requestpath"), new BasicCookieStore());
+            throw new AssertionError("should not get here");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Invalid response code from CAS server: 401"));
+        }
+        verify(2, postRequestedFor(urlEqualTo("/v1/tickets")));
+        verify(1, postRequestedFor(urlEqualTo("/v1/tickets/TGT-1")));
+    }
+
+    @Test
+    public void lateUnauthorizedKeepsRefreshedTicket() {
+        stubFor(post("/v1/tickets")
+            .willReturn(created()
+                .withHeader("Location", "http://localhost:8089/cas/login/TGT-1")));
+        stubFor(post("/v1/tickets/TGT-1")
+            .willReturn(ok()
+                .withBody("ST-1")));
+
+        CasAuthenticator authenticator = new CasAuthenticator.Builder()
+                .username("casuser")
+                .password("cassword")
+                .webCasUrl("http://localhost:8089")
+                .casServiceUrl("http://myservice")
+                .build();
+        String ticketUsed = authenticator.authenticateWithTicket(new HttpGet("http://localhost:8089/requestpath"), new BasicCookieStore());
+        assertEquals("ST-1", ticketUsed);
+
+        // another request got 401 and refreshed the session before this one got its 401
+        assertTrue(authenticator.clearSession(ticketUsed));
+        stubFor(post("/v1/tickets/TGT-1")
+            .willReturn(ok()
+                .withBody("ST-2")));
+        assertEquals("ST-2", authenticator.authenticateWithTicket(new HttpGet("http://localhost:8089/requestpath"), new BasicCookieStore()));
+        assertFalse(authenticator.clearSession(ticketUsed));
+        assertEquals("ST-2", authenticator.getServiceAsAUserTicket());
+
+        assertTrue(authenticator.clearSession("ST-2"));
+        assertNull(authenticator.getServiceAsAUserTicket());
+    }
+
+    @Test
+    public void servesStaleResponseWhileRevalidatingInBackground() throws Exception {
+        stubFor(get("/cached")
+            .willReturn(ok()
+                .withHeader("Cache-Control", "max-age=1")
+                .withBody("v1")));
+        StaleWhileRevalidate staleWhileRevalidate = new StaleWhileRevalidate(60);
+        OphHttpClient client = new OphHttpClient.Builder("callerid")
+                .useDefaultCache()
+                .staleWhileRevalidate(staleWhileRevalidate)
+                .build();
+        OphHttpRequest request = OphHttpRequest.Builder.get("http://localhost:8089/cached").build();
+
+        assertEquals("v1", client.<String>execute(request).expectedStatus(200).mapWith(body -> body).orElseThrow());
+        Thread.sleep(1500);
+        stubFor(get("/cached")
+            .willReturn(ok()
+                .withHeader("Cache-Control", "max-age=1")
+                .withBody("v2")));
+
+        assertEquals("v1", client.<String>execute(request).expectedStatus(200).mapWith(body -> body).orElseThrow());
+        for (int i = 0; i < 50 && staleWhileRevalidate.getRefreshSuccesses() == 0; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(1, staleWhileRevalidate.getRefreshSuccesses());
+        assertEquals("v2", client.<String>execute(request).expectedStatus(200).mapWith(body -> body).orElseThrow());
+        verify(2, getRequestedFor(urlEqualTo("/cached")));
+    }
+
+    @Test
+    public void recordsRequestTimings() {
+        stubFor(get("/slow")
+            .willReturn(ok()
+                .withBody("slow")
+                .withFixedDelay(200)));
+        List<RequestTimings> completed = new CopyOnWriteArrayList<>();
+        OphHttpClient client = new OphHttpClient.Builder("callerid")
+                .requestTimingListener(completed::add)
+                .build();
+        OphHttpRequest request = OphHttpRequest.Builder.get("http://localhost:8089/slow").build();
+
+        for (int i = 0; i < 2; i++) {
+            OphHttpResponse<String> response = client.execute(request);
+            assertEquals("slow", response.expectedStatus(200).mapWith(body -> body).orElseThrow());
+            RequestTimings timings = response.getTimings();
+            assertTrue(timings.isCompleted());
+            assertEquals(i == 1, timings.isConnectionReused());
+            assertEquals(i == 0, timings.getConnectNanos() >= 0);
+            assertTrue(timings.getPoolWaitNanos() >= 0);
+            assertTrue(timings.getRequestSendNanos() >= 0);
+            assertTrue(timings.getTimeToFirstByteNanos() >= 0);
+            assertTrue(timings.getBodyNanos() >= 0);
+            // phases follow each other, the server's delay is not asserted against the wall clock
+            assertTrue(timings.getTotalNanos() >= timings.getPoolWaitNanos() + Math.max(0, timings.getConnectNanos())
+                    + timings.getRequestSendNanos() + timings.getTimeToFirstByteNanos() + timings.getBodyNanos());
+        }
+        assertEquals(2, completed.size());
+        assertEquals("GET", completed.get(0).getMethod());
+    }
+
+    @Test
+    public void executeAsyncDecompressesGzipResponse() throws Exception {
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(gzipped)) {
+            out.write("compressed response".getBytes(StandardCharsets.UTF_8));
+        }
+        stubFor(get("/gzipped")
+            .willReturn(ok()
+                .withHeader("Content-Encoding", "gzip")
+                .withBody(gzipped.toByteArray())));
+
+        OphHttpClient client = new OphHttpClient.Builder("callerid").build();
+        OphHttpRequest request = OphHttpRequest.Builder.get("http://localhost:8089/gzipped").build();
+        String response = client.<String>executeAsync(request)
+                .thenApply(ophHttpResponse -> ophHttpResponse
+                        .expectedStatus(200)
+                        .mapWith(body -> body)
+                        .orElseThrow())
+                .get(10, TimeUnit.SECONDS);
+
+        verify(getRequestedFor(urlEqualTo("/gzipped"))
+            .withHeader("Accept-Encoding", containing("gzip")));
+        assertEquals("compressed response", response);
+    }
 }
@@ -12,13 +12,18 @@ import com.google.gson.reflect.TypeToken;
 
 import fi.vm.sade.javautils.http.exceptions.UnhandledHttpStatusCodeException;
 import fi.vm.sade.javautils.http.mappers.GsonConfiguration;
+import fi.vm.sade.javautils.httpcommon.codec.ElementIterator;
+import fi.vm.sade.javautils.httpcommon.codec.GsonBodyCodec;
+import fi.vm.sade.javautils.httpcommon.codec.TypeRef;
 import lombok.Getter;
 import lombok.Setter;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.StatusLine;
 import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.entity.BasicHttpEntity;
 import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
 import org.apache.http.message.BasicHeader;
 import org.junit.Test;
 import org.mockito.Mockito;
@@ -27,12 +32,14 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
 public class OphHttpResponseImplTest {
     @Test
@@ -152,6 +159,79 @@ public class OphHttpResponseImplTest {
         verify(httpResponse, times(1)).close();
     }
 
+    @Test
+    public void testJsonObjectWithCodec() throws Exception {
+        String json = "{\"value\":\"stringvalue\", \"localDate\": \"1971-02-10\"}";
+        CloseableHttpResponse httpResponse = this.mockResponse(json, 200, ContentType.APPLICATION_JSON.getMimeType());
+        OphHttpResponse<TestObject> ophHttpResponse = new OphHttpResponseImpl<>(httpResponse, null, new GsonBodyCodec(new GsonConfiguration().getGson()));
+        TestObject testObject = ophHttpResponse.expectedStatus(200)
+                .as(TestObject.class)
+                .orElseThrow(RuntimeException::new);
+        assertThat(testObject)
+                .extracting(TestObject::getValue, TestObject::getLocalDate)
+                .containsExactly("stringvalue", LocalDate.parse("1971-02-10"));
+        verify(httpResponse, times(1)).close();
+    }
+
+    @Test
+    public void testJsonCollectionWithCodec() throws Exception {
+        CloseableHttpResponse httpResponse = this.mockResponse("[\"value1\",\"value2\"]", 200, ContentType.APPLICATION_JSON.getMimeType());
+        OphHttpResponse<List<String>> ophHttpResponse = new OphHttpResponseImpl<>(httpResponse, null, new GsonBodyCodec());
+        List<String> stringList = ophHttpResponse.expectedStatus(200)
+                .mapTo(new TypeRef<List<String>>() {})
+                .orElseThrow(RuntimeException::new);
+        assertThat(stringList).containsExactly("value1", "value2");
+        verify(httpResponse, times(1)).close();
+    }
+
+    @Test
+    public void testCodecNotFoundOnServer() throws Exception {
+        CloseableHttpResponse httpResponse = this.mockResponse("{\"value\":\"stringvalue\"}", 404, ContentType.APPLICATION_JSON.getMimeType());
+        OphHttpResponse<TestObject> ophHttpResponse = new OphHttpResponseImpl<>(httpResponse, null, new GsonBodyCodec(new GsonConfiguration().getGson()));
+        Optional<TestObject> testObject = ophHttpResponse.expectedStatus(200).as(TestObject.class);
+        assertThat(testObject).isNotPresent();
+        verify(httpResponse, times(1)).close();
+    }
+
+    @Test
+    public void testJsonArrayAsStream() throws Exception {
+        CloseableHttpResponse httpResponse = this.mockResponse("[{\"value\":\"value1\"},{\"value\":\"value2\"}]", 200, ContentType.APPLICATION_JSON.getMimeType());
+        OphHttpResponse<TestObject> ophHttpResponse = new OphHttpResponseImpl<>(httpResponse, null, new GsonBodyCodec(new GsonConfiguration().getGson()));
+        List<String> values = ophHttpResponse.expectedStatus(200)
+                .asStream(TestObject.class)
+                .map(TestObject::getValue)
+                .collect(Collectors.toList());
+        assertThat(values).containsExactly("value1", "value2");
+        verify(httpResponse, times(1)).close();
+    }
+
+    @Test
+    public void testNdjsonIteratorClosedEarly() throws Exception {
+        CloseableHttpResponse httpResponse = this.mockResponse("{\"value\":\"value1\"}\n{\"value\":\"value2\"}\n", 200, "application/x-ndjson");
+        OphHttpResponse<TestObject> ophHttpResponse = new OphHttpResponseImpl<>(httpResponse, null, new GsonBodyCodec(new GsonConfiguration().getGson()));
+        try (ElementIterator<TestObject> iterator = ophHttpResponse.expectedStatus(200).asIterator(TestObject.class)) {
+            assertThat(iterator.next().getValue()).isEqualTo("value1");
+            verify(httpResponse, times(0)).close();
+        }
+        verify(httpResponse, times(1)).close();
+    }
+
+    @Test
+    public void testStreamNotFoundOnServer() throws Exception {
+        CloseableHttpResponse httpResponse = this.mockResponse("[]", 404, ContentType.APPLICATION_JSON.getMimeType());
+        OphHttpResponse<TestObject> ophHttpResponse = new OphHttpResponseImpl<>(httpResponse, null, new GsonBodyCodec(new GsonConfiguration().getGson()));
+        assertThat(ophHttpResponse.expectedStatus(200).asStream(TestObject.class)).isEmpty();
+        verify(httpResponse, times(1)).close();
+    }
+
+    @Test
+    public void testNoCodec() throws Exception {
+        CloseableHttpResponse httpResponse = this.mockResponse("{}", 200, ContentType.APPLICATION_JSON.getMimeType());
+        OphHttpResponse<TestObject> ophHttpResponse = new OphHttpResponseImpl<>(httpResponse);
+        assertThatThrownBy(() -> ophHttpResponse.expectedStatus(200).as(TestObject.class))
+                .isInstanceOf(IllegalStateException.class);
+    }
+
     @Test
     public void testNoResponseText() throws Exception {
         CloseableHttpResponse httpResponse = this.mockResponse("\"value\"", 201, ContentType.TEXT_PLAIN.getMimeType());
@@ -206,6 +286,37 @@ public class OphHttpResponseImplTest {
         verify(httpResponse, times(1)).close();
     }
 
+    @Test
+    public void testCharsetFromContentType() throws Exception {
+        CloseableHttpResponse httpResponse = this.mockResponse("", 200, ContentType.TEXT_PLAIN.getMimeType());
+        given(httpResponse.getEntity()).willReturn(new StringEntity("\u00e4\u00f6", ContentType.create("text/plain", StandardCharsets.ISO_8859_1)));
+        OphHttpResponse<String> ophHttpResponse = new OphHttpResponseImpl<>(httpResponse);
+        String string = ophHttpResponse.expectedStatus(200)
+                .mapWith(text -> text)
+                .orElseThrow(RuntimeException::new);
+        assertThat(string).isEqualTo("\u00e4\u00f6");
+        verify(httpResponse, times(1)).close();
+    }
+
+    @Test
+    public void testLargeResponseWithoutContentLength() throws Exception {
+        StringBuilder json = new StringBuilder();
+        while (json.length() < 1024 * 1024) {
+            json.append("{\"value\":\"\u00e4\u20ac\"},");
+        }
+        BasicHttpEntity entity = new BasicHttpEntity();
+        entity.setContent(new ByteArrayInputStream(json.toString().getBytes(StandardCharsets.UTF_8)));
+        entity.setContentType(ContentType.APPLICATION_JSON.toString());
+        CloseableHttpResponse httpResponse = this.mockResponse("", 200, ContentType.APPLICATION_JSON.getMimeType());
+        given(httpResponse.getEntity()).willReturn(entity);
+        OphHttpResponse<String> ophHttpResponse = new OphHttpResponseImpl<>(httpResponse);
+        String string = ophHttpResponse.expectedStatus(200)
+                .mapWith(text -> text)
+                .orElseThrow(RuntimeException::new);
+        assertThat(string).isEqualTo(json.toString());
+        verify(httpResponse, times(1)).close();
+    }
+
     @Getter
     @Setter
     static class TestObject {
@@ -0,0 +1,110 @@
+package fi.vm.sade.javautils.http.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.http.Header;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.impl.client.cache.HeapResource;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+public class WTinyLfuHttpCacheStorageTest {
+    private static final int MB = 1024 * 1024;
+
+    @Test
+    public void totalSizeStaysWithinMaxBytes() {
+        WTinyLfuHttpCacheStorage storage = new WTinyLfuHttpCacheStorage.Builder(MB).build();
+        for (int i = 0; i < 1000; i++) {
+            storage.putEntry("http://localhost/koodi/" + i, entry(10 * 1024));
+            assertTrue(storage.getWeightedSize() <= MB);
+        }
+        assertTrue(storage.size() > 50);
+        assertNull(storage.getEntry("http://localhost/koodi/missing"));
+    }
+
+    @Test
+    public void frequentlyUsedLargeEntryIsNotEvictedByOneOffEntries() {
+        WTinyLfuHttpCacheStorage storage = new WTinyLfuHttpCacheStorage.Builder(10 * MB).build();
+        String oppilaitosnumero = "http://localhost/koodisto-service/rest/json/oppilaitosnumero/koodi";
+        storage.putEntry(oppilaitosnumero, entry(7 * MB + MB / 2));
+        for (int i = 0; i < 5; i++) {
+            assertNotNull(storage.getEntry(oppilaitosnumero));
+        }
+        for (int i = 0; i < 2000; i++) {
+            String url = "http://localhost/koodisto-service/rest/json/kunta/koodi/" + i;
+            storage.putEntry(url, entry(20 * 1024));
+            storage.getEntry(url);
+        }
+        assertNotNull(storage.getEntry(oppilaitosnumero));
+        assertTrue(storage.getWeightedSize() <= 10 * MB);
+    }
+
+    @Test
+    public void rejectedCandidateDoesNotEvictAnything() {
+        WTinyLfuHttpCacheStorage storage = new WTinyLfuHttpCacheStorage.Builder(10 * MB).build();
+        String rarelyUsed = "http://localhost/koodisto-service/rest/json/kunta/koodi";
+        String oftenUsed = "http://localhost/koodisto-service/rest/json/oppilaitosnumero/koodi";
+        String candidate = "http://localhost/koodisto-service/rest/json/posti/koodi";
+        storage.putEntry(rarelyUsed, entry(4 * MB));
+        storage.putEntry(oftenUsed, entry(5 * MB));
+        for (int i = 0; i < 5; i++) {
+            assertNotNull(storage.getEntry(oftenUsed));
+        }
+        // used more often than rarelyUsed but less than oftenUsed, and needs the room of both
+        storage.getEntry(candidate);
+        storage.getEntry(candidate);
+        storage.putEntry(candidate, entry(5 * MB + MB / 2));
+
+        assertNull(storage.getEntry(candidate));
+        assertNotNull(storage.getEntry(rarelyUsed));
+        assertNotNull(storage.getEntry(oftenUsed));
+    }
+
+    @Test
+    public void entryLargerThanMaxBytesIsNotCached() {
+        WTinyLfuHttpCacheStorage storage = new WTinyLfuHttpCacheStorage.Builder(MB).build();
+        storage.putEntry("http://localhost/large", entry(2 * MB));
+        assertNull(storage.getEntry("http://localhost/large"));
+        assertEquals(0, storage.getWeightedSize());
+    }
+
+    @Test
+    public void ttlOverrideUsesLongestMatchingUrlPrefix() throws Exception {
+        WTinyLfuHttpCacheStorage storage = new WTinyLfuHttpCacheStorage.Builder(MB)
+                .ttl("http://localhost/", 1, TimeUnit.HOURS)
+                .ttl("http://localhost/organisaatio-service/", 0, TimeUnit.MILLISECONDS)
+                .build();
+        storage.putEntry("http://localhost/koodisto-service/koodi", entry(100));
+        storage.putEntry("http://localhost/organisaatio-service/organisaatio", entry(100));
+        storage.putEntry("{Accept-Encoding=gzip}http://localhost/organisaatio-service/organisaatio", entry(100));
+        assertNotNull(storage.getEntry("http://localhost/koodisto-service/koodi"));
+        assertNull(storage.getEntry("http://localhost/organisaatio-service/organisaatio"));
+        assertNull(storage.getEntry("{Accept-Encoding=gzip}http://localhost/organisaatio-service/organisaatio"));
+        assertEquals(1, storage.size());
+    }
+
+    @Test
+    public void updateAndRemoveEntry() throws Exception {
+        WTinyLfuHttpCacheStorage storage = new WTinyLfuHttpCacheStorage.Builder(MB).build();
+        storage.putEntry("http://localhost/koodi", entry(100));
+        HttpCacheEntry updated = entry(200);
+        storage.updateEntry("http://localhost/koodi", existing -> updated);
+        assertEquals(updated, storage.getEntry("http://localhost/koodi"));
+        storage.removeEntry("http://localhost/koodi");
+        assertNull(storage.getEntry("http://localhost/koodi"));
+        assertEquals(0, storage.getWeightedSize());
+    }
+
+    private static HttpCacheEntry entry(int bodySize) {
+        return new HttpCacheEntry(new Date(), new Date(), new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK"),
+                new Header[]{new BasicHeader("Content-Type", "application/json")}, new HeapResource(new byte[bodySize]));
+    }
+}
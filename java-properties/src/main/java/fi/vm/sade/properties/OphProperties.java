@@ -3,6 +3,8 @@ package fi.vm.sade.properties;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import static fi.vm.sade.properties.UrlUtils.joinUrl;
 
@@ -12,14 +14,26 @@ import static fi.vm.sade.properties.UrlUtils.joinUrl;
  * Collects configuration to be used at front (application code can configure separately which files are loaded and which system properties prefixes are used for front).
  */
 public class OphProperties implements PropertyResolver {
+    private static final int MAX_CACHED_TEMPLATES = 50 * 1000;
+    private static final Object[] NO_PARAMS = new Object[0];
+
     public final PropertyConfig config = new PropertyConfig();
     public final PropertyConfig frontConfig = new PropertyConfig();
-    public Properties ophProperties = null;
-    public Properties frontProperties = null;
+    // replaced by reload() only after they have been fully built
+    public volatile Properties ophProperties = null;
+    public volatile Properties frontProperties = null;
 
     public final Properties defaults = new Properties();
     public final Properties overrides = new Properties();
     private final ParamReplacer replacer = new ParamReplacer();
+    // parsed property values, keyed by the raw value so that changes to the Properties above never see stale templates
+    private final Map<String, UrlTemplate> templates = new ConcurrentHashMap<>();
+    private UrlResolver urlResolver = null;
+    private boolean snapshotMode = false;
+    // snapshotMode: defaults, ophProperties and overrides merged in resolve order. Replaced as a whole, never modified
+    private volatile Map<Object, Object> snapshot = null;
+    private final List<PropertiesChangedListener> changeListeners = new CopyOnWriteArrayList<>();
+    private PropertyFileWatcher fileWatcher = null;
     private boolean debug = System.getProperty("OphProperties.debug", null) != null;
 
     public OphProperties(String... files) {
@@ -39,15 +53,39 @@ public class OphProperties implements PropertyResolver {
     }
 
     public OphProperties reload() {
+        return reload(null);
+    }
+
+    /**
+     * @param changedFiles files to read again, null reads all
+     */
+    private synchronized OphProperties reload(Collection<String> changedFiles) {
         try {
-            ophProperties = merge(new Properties(), config.load(), System.getProperties());
-            merge(ophProperties, getPropertiesWithPrefix(ophProperties, "url."));
-            frontProperties = merge(new Properties(),
+            Map<String, String> previousValues = changeListeners.isEmpty() || ophProperties == null ? null : resolvedValues();
+            Properties loaded = config.load(changedFiles);
+            Properties frontLoaded = frontConfig.load(changedFiles);
+            Properties newOphProperties = merge(new Properties(), loaded, System.getProperties());
+            merge(newOphProperties, getPropertiesWithPrefix(newOphProperties, "url."));
+            Properties newFrontProperties = merge(new Properties(),
                     getPropertiesWithPrefix(defaults, "url.", "front."),
-                    getPropertiesWithPrefix(ophProperties, "url.", "front."),
+                    getPropertiesWithPrefix(newOphProperties, "url.", "front."),
                     getPropertiesWithPrefix(overrides, "url.", "front."),
-                    frontConfig.load(),
+                    frontLoaded,
                     getPropertiesWithPrefix(System.getProperties(), "url.", "front."));
+            // lookups read ophProperties once, frontPropertiesToJson() holds the lock to see both from the same reload
+            templates.clear();
+            ophProperties = newOphProperties;
+            frontProperties = newFrontProperties;
+            if (snapshotMode) {
+                publishSnapshot();
+            }
+            if (fileWatcher != null) {
+                fileWatcher.watch(config.filesystemPaths());
+                fileWatcher.watch(frontConfig.filesystemPaths());
+            }
+            if (previousValues != null) {
+                notifyChangeListeners(previousValues, resolvedValues());
+            }
             return this;
         } catch(Exception e) {
             debug("reload threw exception:", e.getMessage());
@@ -55,12 +93,135 @@ public class OphProperties implements PropertyResolver {
         }
     }
 
-    private synchronized void ensureLoad() {
-        if (ophProperties == null) {
-            reload();
+    private void ensureLoad() {
+        if (snapshot == null) {
+            synchronized (this) {
+                if (ophProperties == null) {
+                    reload();
+                }
+            }
         }
     }
 
+    /**
+     * Resolve keys from an immutable snapshot of defaults, ophProperties and overrides. Lookups don't need locks.
+     * Snapshot is replaced by reload(), addDefault() and addOverride(). Changes made directly to defaults or overrides
+     * are visible only after reload(). ophProperties should not be modified directly in this mode.
+     */
+    public OphProperties snapshotMode() {
+        snapshotMode = true;
+        return reload();
+    }
+
+    private synchronized void publishSnapshot() {
+        Map<Object, Object> merged = new HashMap<>();
+        merge(merged, defaults, ophProperties, overrides);
+        snapshot = Collections.unmodifiableMap(merged);
+    }
+
+    /**
+     * Reload property files from filesystem when they change. Changes are detected with WatchService, changes within
+     * debounceMs are handled together and only the changed files are read again. Files in classpath are not watched.
+     */
+    public synchronized OphProperties watchFiles(long debounceMs) {
+        stopWatchingFiles();
+        fileWatcher = new PropertyFileWatcher(debounceMs, this::reload);
+        fileWatcher.watch(config.filesystemPaths());
+        fileWatcher.watch(frontConfig.filesystemPaths());
+        return this;
+    }
+
+    public OphProperties watchFiles() {
+        return watchFiles(500);
+    }
+
+    public synchronized OphProperties stopWatchingFiles() {
+        if (fileWatcher != null) {
+            fileWatcher.close();
+            fileWatcher = null;
+        }
+        return this;
+    }
+
+    /**
+     * Listener is called after reload() with the keys whose resolved values changed.
+     */
+    public OphProperties addChangeListener(PropertiesChangedListener listener) {
+        changeListeners.add(listener);
+        return this;
+    }
+
+    public OphProperties removeChangeListener(PropertiesChangedListener listener) {
+        changeListeners.remove(listener);
+        return this;
+    }
+
+    /**
+     * Values of all keys with ${references} resolved, so that a change to a referenced key is seen in the keys using it
+     */
+    private Map<String, String> resolvedValues() {
+        Map[] properties = lookupOrder();
+        Map<Object, Object> rawValues = new HashMap<>();
+        for (int i = properties.length - 1; i >= 0; i--) {
+            merge(rawValues, properties[i]);
+        }
+        Map<String, String> values = new HashMap<>();
+        for (Map.Entry<Object, Object> entry : rawValues.entrySet()) {
+            String key = entry.getKey().toString();
+            String value;
+            try {
+                value = resolveProperty(key, null, NO_PARAMS, replacer, false, properties);
+            } catch (RuntimeException e) {
+                // reference to a missing key, compare the value as it is
+                value = String.valueOf(entry.getValue());
+            }
+            values.put(key, value);
+        }
+        return values;
+    }
+
+    private void notifyChangeListeners(Map<String, String> previousValues, Map<String, String> values) {
+        Set<String> changedKeys = new HashSet<>();
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            if (!Objects.equals(entry.getValue(), previousValues.get(entry.getKey()))) {
+                changedKeys.add(entry.getKey());
+            }
+        }
+        for (String key : previousValues.keySet()) {
+            if (!values.containsKey(key)) {
+                changedKeys.add(key);
+            }
+        }
+        if (!changedKeys.isEmpty()) {
+            Set<String> unmodifiableKeys = Collections.unmodifiableSet(changedKeys);
+            for (PropertiesChangedListener listener : changeListeners) {
+                listener.propertiesChanged(unmodifiableKeys);
+            }
+        }
+    }
+
+    /**
+     * Resolve order: overrides, ophProperties, defaults
+     */
+    private Map[] lookupOrder() {
+        Map<Object, Object> current = snapshot;
+        if (current != null) {
+            return new Map[]{current};
+        }
+        return new Map[]{overrides, ophProperties, defaults};
+    }
+
+    /**
+     * Resolve order: first, overrides, ophProperties, defaults
+     */
+    private Map[] lookupOrder(Map first) {
+        Map<Object, Object> current = snapshot;
+        if (current != null) {
+            return first.isEmpty() ? new Map[]{current} : new Map[]{first, current};
+        }
+        return new Map[]{first, overrides, ophProperties, defaults};
+    }
+
     private Properties getPropertiesWithPrefix(Properties props, String... prefixes) {
         Properties dest = new Properties();
         for (String prefix : prefixes) {
@@ -75,11 +236,11 @@ public class OphProperties implements PropertyResolver {
 
     @Override
     public String require(String key, Object... params) {
-        return requireProperty(key, params, replacer, true, overrides, ophProperties, defaults);
+        return requireProperty(key, params, replacer, true, lookupOrder());
     }
 
     public String requireWithoutDebugPrint(String key, Object... params) {
-        return requireProperty(key, params, replacer, false, overrides, ophProperties, defaults);
+        return requireProperty(key, params, replacer, false, lookupOrder());
     }
 
     @Override
@@ -97,22 +258,29 @@ public class OphProperties implements PropertyResolver {
      */
     @Override
     public String getOrElse(String key, String defaultValue, Object... params) {
-        return resolveProperty(key, defaultValue, params, replacer, true, overrides, ophProperties, defaults);
+        return resolveProperty(key, defaultValue, params, replacer, true, lookupOrder());
     }
 
-    private String resolveProperty(String key, String defaultValue, Object[] params, ParamReplacer replacer, boolean printDebug, Properties... properties) {
-        for(Properties props: properties) {
-            if(props.containsKey(key)) {
-                return replaceParams((String) props.get(key), params, replacer, properties, key, printDebug);
+    private String resolveProperty(String key, String defaultValue, Object[] params, ParamReplacer replacer, boolean printDebug, Map... properties) {
+        for(Map props: properties) {
+            Object value = props.get(key);
+            if(value != null) {
+                return replaceParams((String) value, params, replacer, properties, key, printDebug);
             }
         }
         return replaceParams(defaultValue, params, replacer, properties, key, printDebug);
     }
 
-    private String replaceParams(String value, Object[] params, ParamReplacer replacer, Properties[] properties, String key, boolean printDebug) {
+    private String replaceParams(String value, Object[] params, ParamReplacer replacer, Map[] properties, String key, boolean printDebug) {
         if (value != null) {
-            value = replacer.replaceParams(value, convertParams(params));
-            value = resolveRecursiveReferences(value, properties);
+            Object[] convertedParams = convertParams(params);
+            String rendered = template(value).render(convertedParams, replacer, (referenceKey, defaultValue) -> defaultValue != null
+                    ? resolveProperty(referenceKey, defaultValue, NO_PARAMS, this.replacer, false, properties)
+                    : requireProperty(referenceKey, NO_PARAMS, this.replacer, false, properties));
+            if (rendered == null) {
+                rendered = resolveRecursiveReferences(replacer.replaceParams(value, convertedParams), properties);
+            }
+            value = rendered;
         }
         if(printDebug) {
             debug(key, "->", value);
@@ -120,14 +288,26 @@ public class OphProperties implements PropertyResolver {
         return value;
     }
 
+    private UrlTemplate template(String value) {
+        UrlTemplate template = templates.get(value);
+        if (template == null) {
+            template = UrlTemplate.compile(value);
+            if (templates.size() < MAX_CACHED_TEMPLATES) {
+                templates.put(value, template);
+            }
+        }
+        return template;
+    }
+
     /**
+     * Fallback for values UrlTemplate can't render.
      * note: replaces the first "${" and the first  "}" pair with property lookup.
      * implementation is not recursive but replaces everything because it repeats until no more pairs.
      * @param value
      * @param properties
      * @return
      */
-    private String resolveRecursiveReferences(String value, Properties[] properties) {
+    private String resolveRecursiveReferences(String value, Map[] properties) {
         int start,end;
         while((start=value.indexOf("${"))!=-1) {
             end = value.indexOf("}", start+2);
@@ -148,11 +328,11 @@ public class OphProperties implements PropertyResolver {
         return value;
     }
 
-    private String requireProperty(String key, Object[] params, ParamReplacer replacer, boolean printDebug, Properties... properties) {
-        for(Properties props: properties) {
-            if(props.containsKey(key)) {
-                String value = (String) props.get(key);
-                return replaceParams(value, params, replacer, properties, key, printDebug);
+    private String requireProperty(String key, Object[] params, ParamReplacer replacer, boolean printDebug, Map... properties) {
+        for(Map props: properties) {
+            Object value = props.get(key);
+            if(value != null) {
+                return replaceParams((String) value, params, replacer, properties, key, printDebug);
             }
         }
         throw new RuntimeException("\"" + key + "\" not defined.");
@@ -166,7 +346,11 @@ public class OphProperties implements PropertyResolver {
      */
     @Override
     public String url(String key, Object... params) {
-        return new UrlResolver().url(key, params);
+        ensureLoad();
+        if (urlResolver == null) {
+            urlResolver = new UrlResolver();
+        }
+        return urlResolver.url(key, params);
     }
 
     @Override
@@ -218,7 +402,7 @@ public class OphProperties implements PropertyResolver {
             String key = o.toString();
             String value = frontProperties.getProperty(key);
             if(value.contains("${")) {
-                resolvedFrontProperties.put(o, requireProperty(key, new Object[]{}, replacer, true, this.frontProperties, overrides, ophProperties, defaults));
+                resolvedFrontProperties.put(o, requireProperty(key, new Object[]{}, replacer, true, lookupOrder(this.frontProperties)));
             } else {
                 resolvedFrontProperties.put(o, value);
             }
@@ -226,17 +410,20 @@ public class OphProperties implements PropertyResolver {
         return resolvedFrontProperties;
     }
 
-    public String frontPropertiesToJson() {
+    public synchronized String frontPropertiesToJson() {
         return mapToJson(resolveRecursiveFrontProperties(frontProperties));
     }
 
     public class UrlResolver extends ParamReplacer implements PropertyResolver {
         private final Properties urlsConfig = new Properties();
+        // copy of urlsConfig for snapshotMode
+        private volatile Map<Object, Object> urlsConfigSnapshot = Collections.emptyMap();
         private boolean encode = true;
 
         public UrlResolver(Properties urlsConfig) {
             this();
             merge(this.urlsConfig, urlsConfig);
+            urlsConfigSnapshot = new HashMap<>(this.urlsConfig);
         }
 
         public UrlResolver() {
@@ -245,6 +432,7 @@ public class OphProperties implements PropertyResolver {
 
         public UrlResolver baseUrl(String baseUrl) {
             urlsConfig.put("baseUrl", baseUrl);
+            urlsConfigSnapshot = new HashMap<>(urlsConfig);
             return this;
         }
 
@@ -253,13 +441,17 @@ public class OphProperties implements PropertyResolver {
             return this;
         }
 
+        private Map[] urlLookupOrder() {
+            return lookupOrder(snapshot != null ? urlsConfigSnapshot : urlsConfig);
+        }
+
         @Override
         public String require(String key, Object... params) {
-            return requireProperty(key, params, this, true, urlsConfig, overrides, ophProperties, defaults);
+            return requireProperty(key, params, this, true, urlLookupOrder());
         }
 
         public String requireWithoutDebugPrint(String key, Object... params) {
-            return requireProperty(key, params, this, false, urlsConfig, overrides, ophProperties, defaults);
+            return requireProperty(key, params, this, false, urlLookupOrder());
         }
 
         @Override
@@ -269,11 +461,11 @@ public class OphProperties implements PropertyResolver {
 
         @Override
         public String getOrElse(String key, String defaultValue, Object... params) {
-            return resolveProperty(key, defaultValue, params, this, true, urlsConfig, overrides, ophProperties, defaults);
+            return resolveProperty(key, defaultValue, params, this, true, urlLookupOrder());
         }
 
         private String getOrElseWithoutDebugPrint(String key, String defaultValue, Object... params) {
-            return resolveProperty(key, defaultValue, params, this, false, urlsConfig, overrides, ophProperties, defaults);
+            return resolveProperty(key, defaultValue, params, this, false, urlLookupOrder());
         }
 
         @Override
@@ -380,11 +572,17 @@ public class OphProperties implements PropertyResolver {
 
     public OphProperties addDefault(String key, String value) {
         defaults.put(key, value);
+        if (snapshotMode) {
+            publishSnapshot();
+        }
         return this;
     }
 
     public OphProperties addOverride(String key, String value) {
         overrides.put(key, value);
+        if (snapshotMode) {
+            publishSnapshot();
+        }
         return this;
     }
 
@@ -30,7 +30,7 @@ public class ParamReplacer {
         return url + queryString;
     }
 
-    private List ensureValueIsList(Object value) {
+    static List ensureValueIsList(Object value) {
         if(value instanceof List) {
             return (List)value;
         } else if(value instanceof Object[]) {
@@ -0,0 +1,11 @@
+package fi.vm.sade.properties;
+
+import java.util.Set;
+
+public interface PropertiesChangedListener {
+    /**
+     * Called after reload when resolved values have changed. New values are already in use.
+     * @param changedKeys added, removed and modified keys
+     */
+    void propertiesChanged(Set<String> changedKeys);
+}
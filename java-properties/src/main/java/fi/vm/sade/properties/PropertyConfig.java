@@ -5,8 +5,11 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 public class PropertyConfig {
@@ -21,42 +24,79 @@ public class PropertyConfig {
     }
     private List<PropertyFile> filePaths = new ArrayList<PropertyFile>();
     private List<String> systemPropertyFileKeys = new ArrayList<String>();
+    private final Map<String, Properties> loadedFiles = new HashMap<>();
 
     public Properties load() {
+        return load(null);
+    }
+
+    /**
+     * Reads only the changed files again, other files use the values from previous load.
+     * @param changedPaths paths as they were added to config, null reads all files
+     */
+    public synchronized Properties load(Collection<String> changedPaths) {
         Properties dest = new Properties();
         for (PropertyFile file : filePaths) {
-            OphProperties.merge(dest, loadPropertiesFromPath(file.path, file.throwError));
+            OphProperties.merge(dest, loadPropertiesFromPath(file.path, file.throwError, changedPaths));
+        }
+        for (String path : systemPropertyFilePaths()) {
+            OphProperties.merge(dest, loadPropertiesFromPath(path, true, changedPaths));
+        }
+        return dest;
+    }
+
+    /**
+     * Paths that are loaded from filesystem. Files found from classpath are not included.
+     */
+    public synchronized List<String> filesystemPaths() {
+        List<String> paths = new ArrayList<>();
+        for (PropertyFile file : filePaths) {
+            paths.add(file.path);
         }
+        paths.addAll(systemPropertyFilePaths());
+        paths.removeIf(path -> this.getClass().getResource(path) != null);
+        return paths;
+    }
+
+    private List<String> systemPropertyFilePaths() {
+        List<String> paths = new ArrayList<>();
         Properties system = System.getProperties();
         for (String key : systemPropertyFileKeys) {
             if (system.containsKey(key)) {
-                for (String path : system.getProperty(key).split(",")) {
-                    OphProperties.merge(dest, loadPropertiesFromPath(path, true));
-                }
+                Collections.addAll(paths, system.getProperty(key).split(","));
             }
         }
-        return dest;
+        return paths;
     }
 
-    public PropertyConfig addFiles(String... paths) {
+    public synchronized PropertyConfig addFiles(String... paths) {
         for (String path : paths) {
             filePaths.add(new PropertyFile(path, true));
         }
         return this;
     }
 
-    public PropertyConfig addOptionalFiles(String... paths) {
+    public synchronized PropertyConfig addOptionalFiles(String... paths) {
         for (String path : paths) {
             filePaths.add(new PropertyFile(path, false));
         }
         return this;
     }
 
-    public PropertyConfig addSystemKeyForFiles(String... keys) {
+    public synchronized PropertyConfig addSystemKeyForFiles(String... keys) {
         Collections.addAll(systemPropertyFileKeys, keys);
         return this;
     }
 
+    private Properties loadPropertiesFromPath(String path, boolean throwError, Collection<String> changedPaths) {
+        Properties properties = loadedFiles.get(path);
+        if (properties == null || changedPaths == null || changedPaths.contains(path)) {
+            properties = loadPropertiesFromPath(path, throwError);
+            loadedFiles.put(path, properties);
+        }
+        return properties;
+    }
+
     private Properties loadPropertiesFromPath(String path, boolean throwError) {
         InputStream resourceAsStream = this.getClass().getResourceAsStream(path);
         if(resourceAsStream == null) {
@@ -0,0 +1,120 @@
+package fi.vm.sade.properties;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * Watches property files with NIO WatchService. Events are collected until there has been no new events for debounceMs,
+ * after that onChange is called with the changed paths (as they were given to watch()).
+ */
+class PropertyFileWatcher implements AutoCloseable {
+    private final WatchService watchService;
+    private final long debounceMs;
+    private final Consumer<Set<String>> onChange;
+    private final Map<Path, String> watchedFiles = new HashMap<>();
+    private final Set<Path> watchedDirectories = new HashSet<>();
+    private final Thread thread;
+
+    PropertyFileWatcher(long debounceMs, Consumer<Set<String>> onChange) {
+        try {
+            this.watchService = FileSystems.getDefault().newWatchService();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        this.debounceMs = debounceMs;
+        this.onChange = onChange;
+        thread = new Thread(this::run, "OphProperties-file-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    synchronized void watch(Collection<String> paths) {
+        for (String path : paths) {
+            Path file = Paths.get(path).toAbsolutePath().normalize();
+            Path directory = file.getParent();
+            if (directory == null || watchedFiles.containsKey(file)) {
+                continue;
+            }
+            if (!watchedDirectories.contains(directory)) {
+                try {
+                    directory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+                } catch (IOException e) {
+                    System.out.println("Could not watch property file " + path + ": " + e);
+                    continue;
+                }
+                watchedDirectories.add(directory);
+            }
+            watchedFiles.put(file, path);
+        }
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                Set<String> changed = new HashSet<>();
+                collect(watchService.take(), changed);
+                WatchKey key;
+                while ((key = watchService.poll(debounceMs, TimeUnit.MILLISECONDS)) != null) {
+                    collect(key, changed);
+                }
+                if (!changed.isEmpty()) {
+                    try {
+                        onChange.accept(changed);
+                    } catch (RuntimeException e) {
+                        System.out.println("Could not reload changed property files " + changed + ", keeping previous values: " + e);
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // closed
+        }
+    }
+
+    private void collect(WatchKey key, Set<String> changed) {
+        Path directory = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                synchronized (this) {
+                    changed.addAll(watchedFiles.values());
+                }
+            } else if (event.context() instanceof Path) {
+                String path;
+                synchronized (this) {
+                    path = watchedFiles.get(directory.resolve((Path) event.context()));
+                }
+                if (path != null) {
+                    changed.add(path);
+                }
+            }
+        }
+        key.reset();
+    }
+
+    @Override
+    public void close() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        thread.interrupt();
+    }
+}
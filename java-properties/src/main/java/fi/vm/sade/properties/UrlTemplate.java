@@ -0,0 +1,206 @@
+package fi.vm.sade.properties;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Property value parsed once into literal text, parameter slots ($1, $name) and property references (${key:defaultValue}).
+ * render() produces the same string as ParamReplacer.replaceParams() followed by reference resolution, but in a single
+ * append pass. For the rare cases where the result could differ (parameter names that are prefixes of each other,
+ * '$' in parameter values, unterminated references...) render() returns null and the caller should use the original
+ * string replacing implementation.
+ */
+class UrlTemplate {
+    interface ReferenceResolver {
+        /**
+         * @param defaultValue null if reference does not define a default value and the key is required
+         */
+        String resolve(String key, String defaultValue);
+    }
+
+    private static final byte LITERAL = 0;
+    private static final byte SLOT = 1;
+    private static final byte REFERENCE = 2;
+
+    private final boolean supported;
+    private final boolean containsDollar;
+    private final int slotCount;
+    private final int literalLength;
+    private final byte[] types;
+    private final String[] texts;
+    private final String[] defaults;
+
+    private UrlTemplate(boolean supported, boolean containsDollar, int slotCount, int literalLength, byte[] types, String[] texts, String[] defaults) {
+        this.supported = supported;
+        this.containsDollar = containsDollar;
+        this.slotCount = slotCount;
+        this.literalLength = literalLength;
+        this.types = types;
+        this.texts = texts;
+        this.defaults = defaults;
+    }
+
+    static UrlTemplate compile(String value) {
+        List<Byte> types = new ArrayList<>();
+        List<String> texts = new ArrayList<>();
+        List<String> defaults = new ArrayList<>();
+        int slotCount = 0, literalLength = 0;
+        int literalStart = 0, i = 0, length = value.length();
+        while (i < length) {
+            if (value.charAt(i) != '$') {
+                i++;
+                continue;
+            }
+            if (i > literalStart) {
+                add(types, texts, defaults, LITERAL, value.substring(literalStart, i), null);
+                literalLength += i - literalStart;
+            }
+            if (i + 1 < length && value.charAt(i + 1) == '{') {
+                int end = value.indexOf('}', i + 2);
+                if (end == -1) {
+                    return unsupported();
+                }
+                String reference = value.substring(i + 2, end);
+                if (reference.indexOf('$') != -1) {
+                    // parameters are replaced before references are resolved
+                    return unsupported();
+                }
+                String[] args = reference.split(":");
+                add(types, texts, defaults, REFERENCE, args[0], args.length == 2 ? args[1] : null);
+                i = end + 1;
+            } else {
+                int end = i + 1;
+                while (end < length && isNameChar(value.charAt(end))) {
+                    end++;
+                }
+                if (end == i + 1) {
+                    return unsupported();
+                }
+                add(types, texts, defaults, SLOT, value.substring(i + 1, end), null);
+                slotCount++;
+                i = end;
+            }
+            literalStart = i;
+        }
+        if (length > literalStart) {
+            add(types, texts, defaults, LITERAL, value.substring(literalStart), null);
+            literalLength += length - literalStart;
+        }
+        byte[] typeArray = new byte[types.size()];
+        for (int t = 0; t < typeArray.length; t++) {
+            typeArray[t] = types.get(t);
+        }
+        return new UrlTemplate(true, value.indexOf('$') != -1, slotCount, literalLength, typeArray,
+                texts.toArray(new String[0]), defaults.toArray(new String[0]));
+    }
+
+    private static UrlTemplate unsupported() {
+        return new UrlTemplate(false, true, 0, 0, null, null, null);
+    }
+
+    private static void add(List<Byte> types, List<String> texts, List<String> defaults, byte type, String text, String defaultValue) {
+        types.add(type);
+        texts.add(text);
+        defaults.add(defaultValue);
+    }
+
+    private static boolean isNameChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    /**
+     * @return rendered value or null if the template can't guarantee the same result as the string replacing implementation
+     */
+    String render(Object[] params, ParamReplacer replacer, ReferenceResolver references) {
+        if (!supported) {
+            return null;
+        }
+        String[] slotValues = new String[slotCount > 0 ? types.length : 0];
+        String queryString = "";
+        // same iteration order as ParamReplacer.replaceParams so that the first matching parameter wins
+        for (int i = params.length; i > 0; i--) {
+            Object param = params[i - 1];
+            if (param instanceof Map) {
+                Map paramMap = (Map) param;
+                for (Object key : paramMap.keySet()) {
+                    Object value = paramMap.get(key);
+                    for (Object o : ParamReplacer.ensureValueIsList(value)) {
+                        String str = replacer.enc(o);
+                        String keyString = replacer.enc(key);
+                        if (str.indexOf('$') != -1 || keyString.indexOf('$') != -1) {
+                            return null;
+                        }
+                        int filled = fill(keyString, str, slotValues);
+                        if (filled < 0) {
+                            return null;
+                        }
+                        if (o != null && filled == 0) {
+                            queryString = replacer.extraParam(queryString, keyString, str);
+                        }
+                    }
+                }
+            } else {
+                String str = replacer.enc(param);
+                if (str.indexOf('$') != -1 || fill(Integer.toString(i), str, slotValues) < 0) {
+                    return null;
+                }
+            }
+        }
+        StringBuilder buf = new StringBuilder(literalLength + queryString.length() + 16 * types.length);
+        for (int i = 0; i < types.length; i++) {
+            switch (types[i]) {
+                case LITERAL:
+                    buf.append(texts[i]);
+                    break;
+                case SLOT:
+                    if (slotValues[i] != null) {
+                        buf.append(slotValues[i]);
+                    } else {
+                        buf.append('$').append(texts[i]);
+                    }
+                    break;
+                default:
+                    String resolved = references.resolve(texts[i], defaults[i]);
+                    if (resolved.indexOf('$') != -1) {
+                        // could form a new reference together with the following text
+                        return null;
+                    }
+                    buf.append(resolved);
+            }
+        }
+        return buf.append(queryString).toString();
+    }
+
+    /**
+     * Works like String.replace("$" + needle, value) for the slots that haven't been replaced yet.
+     * @return number of replaced slots or -1 if the needle could match the template differently than a whole slot
+     */
+    private int fill(String needle, String value, String[] slotValues) {
+        int head = 0;
+        while (head < needle.length() && isNameChar(needle.charAt(head))) {
+            head++;
+        }
+        if (head == 0) {
+            return containsDollar ? -1 : 0;
+        }
+        int filled = 0;
+        for (int i = 0; i < slotValues.length; i++) {
+            if (types[i] != SLOT || slotValues[i] != null) {
+                continue;
+            }
+            String name = texts[i];
+            if (head < needle.length()) {
+                if (name.length() == head && needle.startsWith(name)) {
+                    return -1;
+                }
+            } else if (name.equals(needle)) {
+                slotValues[i] = value;
+                filled++;
+            } else if (name.startsWith(needle)) {
+                return -1;
+            }
+        }
+        return filled;
+    }
+}
@@ -1,7 +1,6 @@
 package fi.vm.sade.properties;
 
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
+import java.io.IOException;
 
 public class UrlUtils {
     public static String joinUrl(String... urls) {
@@ -27,17 +26,129 @@ public class UrlUtils {
         return url;
     }
 
+    // characters URLEncoder leaves as is, plus !'()~ which were earlier restored after URLEncoder
+    private static final boolean[] NOT_ENCODED = new boolean[128];
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    static {
+        for (char c = 'a'; c <= 'z'; c++) {
+            NOT_ENCODED[c] = true;
+        }
+        for (char c = 'A'; c <= 'Z'; c++) {
+            NOT_ENCODED[c] = true;
+        }
+        for (char c = '0'; c <= '9'; c++) {
+            NOT_ENCODED[c] = true;
+        }
+        for (char c : ".-*_!'()~".toCharArray()) {
+            NOT_ENCODED[c] = true;
+        }
+    }
+
+    /**
+     * Percent-encodes UTF-8 bytes of every character except a-z A-Z 0-9 . - * _ ! ' ( ) ~ (space is %20).
+     * Same output as URLEncoder.encode(s, "UTF-8") with "+" replaced with "%20" and !'()~ left unencoded.
+     * Returns s itself if there is nothing to encode.
+     */
     public static String encode(String s) {
+        int i = firstToEncode(s);
+        if (i == -1) {
+            return s;
+        }
+        StringBuilder buf = new StringBuilder(s.length() + 16);
+        buf.append(s, 0, i);
+        return encode(s, i, buf).toString();
+    }
+
+    /**
+     * Appends encoded s to buf, see encode(String)
+     */
+    public static StringBuilder encode(String s, StringBuilder buf) {
+        return encode(s, 0, buf);
+    }
+
+    /**
+     * Writes encoded s to out, see encode(String)
+     */
+    public static <A extends Appendable> A encode(String s, A out) throws IOException {
+        int length = s.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 128 && NOT_ENCODED[c]) {
+                continue;
+            }
+            if (i > start) {
+                out.append(s, start, i);
+            }
+            i = appendEncoded(s, i, out);
+            start = i + 1;
+        }
+        if (length > start) {
+            out.append(s, start, length);
+        }
+        return out;
+    }
+
+    private static StringBuilder encode(String s, int from, StringBuilder buf) {
+        int length = s.length();
         try {
-            return URLEncoder.encode(s, "UTF-8")
-                    .replaceAll("\\+", "%20")
-                    .replaceAll("\\%21", "!")
-                    .replaceAll("\\%27", "'")
-                    .replaceAll("\\%28", "(")
-                    .replaceAll("\\%29", ")")
-                    .replaceAll("\\%7E", "~");
-        } catch (UnsupportedEncodingException e) {
+            for (int i = from; i < length; i++) {
+                char c = s.charAt(i);
+                if (c < 128 && NOT_ENCODED[c]) {
+                    buf.append(c);
+                } else {
+                    i = appendEncoded(s, i, buf);
+                }
+            }
+        } catch (IOException e) {
+            // StringBuilder doesn't throw IOException
             throw new RuntimeException(e);
         }
+        return buf;
+    }
+
+    private static int firstToEncode(String s) {
+        for (int i = 0, length = s.length(); i < length; i++) {
+            char c = s.charAt(i);
+            if (c >= 128 || !NOT_ENCODED[c]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Appends UTF-8 bytes of the character (or surrogate pair) at i as %XX triplets. Unpaired surrogates are encoded
+     * as '?' like String.getBytes() does.
+     * @return index of the last char that was encoded
+     */
+    private static int appendEncoded(String s, int i, Appendable out) throws IOException {
+        char c = s.charAt(i);
+        if (c < 0x80) {
+            appendByte(out, c);
+        } else if (c < 0x800) {
+            appendByte(out, 0xC0 | (c >> 6));
+            appendByte(out, 0x80 | (c & 0x3F));
+        } else if (Character.isSurrogate(c)) {
+            if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                appendByte(out, 0xF0 | (codePoint >> 18));
+                appendByte(out, 0x80 | ((codePoint >> 12) & 0x3F));
+                appendByte(out, 0x80 | ((codePoint >> 6) & 0x3F));
+                appendByte(out, 0x80 | (codePoint & 0x3F));
+            } else {
+                appendByte(out, '?');
+            }
+        } else {
+            appendByte(out, 0xE0 | (c >> 12));
+            appendByte(out, 0x80 | ((c >> 6) & 0x3F));
+            appendByte(out, 0x80 | (c & 0x3F));
+        }
+        return i;
+    }
+
+    private static void appendByte(Appendable out, int b) throws IOException {
+        out.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
     }
 }
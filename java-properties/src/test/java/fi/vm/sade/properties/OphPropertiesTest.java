@@ -3,14 +3,27 @@ package fi.vm.sade.properties;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 
 public class OphPropertiesTest {
     OphProperties ctx = null;
@@ -195,6 +208,18 @@ public class OphPropertiesTest {
         assertEquals("a/b/c/d", UrlUtils.joinUrl("a/","b/","c/","/d"));
     }
 
+    @Test
+    public void encode() throws IOException {
+        String unchanged = "aZ09-_.*!'()~";
+        assertSame(unchanged, UrlUtils.encode(unchanged));
+        assertEquals("a%20b%2B%25%2F%3F%26%3D%23%24", UrlUtils.encode("a b+%/?&=#$"));
+        assertEquals("%C3%A4%E2%82%AC%F0%9F%98%80", UrlUtils.encode("\u00e4\u20ac\ud83d\ude00"));
+        // unpaired surrogate is encoded as '?' like URLEncoder does
+        assertEquals("%3Fa", UrlUtils.encode("\ud83da"));
+        assertEquals("x=a%20b", UrlUtils.encode("a b", new StringBuilder("x=")).toString());
+        assertEquals("a%20b", UrlUtils.encode("a b", new StringWriter()).toString());
+    }
+
     @Test
     public void parameterSubstitution() {
         assertEquals("https://POW/!", ctx.addDefault("host","POW").addDefault("url", "https://${host}/$1").require("url","!"));
@@ -242,4 +267,84 @@ public class OphPropertiesTest {
         ctx.ophProperties.put("a","a/${1:b}");
         assertEquals("a/b", ctx.url("a", "POW!"));
     }
+
+    @Test
+    public void cachedTemplatesFollowPropertyChanges() {
+        props.setProperty("host", "https://a");
+        props.setProperty("a.a", "${host}/a/$1/$id");
+        assertEquals("https://a/a/1/2", ctx.url("a.a", 1, new LinkedHashMap() {{
+            put("id", "2");
+        }}));
+        props.setProperty("host", "https://b");
+        props.setProperty("a.a", "${host}/b/$1");
+        assertEquals("https://b/b/1?id=2", ctx.url("a.a", 1, new LinkedHashMap() {{
+            put("id", "2");
+        }}));
+        ctx.reload();
+        ctx.ophProperties.setProperty("a.a", "/c/$1");
+        assertEquals("/c/1", ctx.url("a.a", 1));
+    }
+
+    @Test
+    public void overlappingParameterNames() {
+        props.setProperty("a.a", "/a/$1/$10/$idx");
+        assertEquals("/a/x/x0/$idx", ctx.require("a.a", "x"));
+        assertEquals("/a/p1/p10/$idx", ctx.require("a.a", "p1", "p2", "p3", "p4", "p5", "p6", "p7", "p8", "p9", "p10"));
+        assertEquals("/a/$1/$10/1x", ctx.require("a.a", new LinkedHashMap() {{
+            put("id", "1");
+        }}));
+        props.setProperty("b.b", "/b/$param/${missing:$1}");
+        assertEquals("/b/pow/x", ctx.require("b.b", "x", new LinkedHashMap() {{
+            put("param", "pow");
+        }}));
+    }
+
+    @Test
+    public void snapshotMode() {
+        ctx.snapshotMode().addDefault("a.a", "${host}/a/$1").addDefault("host", "https://a");
+        assertEquals("https://a/a/1", ctx.url("a.a", 1));
+
+        ctx.addOverride("host", "https://b");
+        assertEquals("https://b/a/1", ctx.url("a.a", 1));
+        assertEquals("https://c/a/1", ctx.urls("https://c").url("a.a", 1));
+
+        // direct changes are visible after reload
+        ctx.overrides.setProperty("host", "https://d");
+        assertEquals("https://b/a/1", ctx.url("a.a", 1));
+        ctx.reload();
+        assertEquals("https://d/a/1", ctx.url("a.a", 1));
+    }
+
+    @Test
+    public void reloadChangedFiles() throws Exception {
+        File file = File.createTempFile("oph", ".properties");
+        file.deleteOnExit();
+        Files.write(file.toPath(), "a.a=1\nb.b=2\n".getBytes());
+        OphProperties properties = new OphProperties(file.getAbsolutePath());
+        BlockingQueue<Set<String>> changes = new LinkedBlockingQueue<>();
+        properties.addChangeListener(changes::add).watchFiles(50);
+        try {
+            Files.write(file.toPath(), "a.a=3\nb.b=2\nc.c=4\n".getBytes());
+            assertEquals(new HashSet<>(Arrays.asList("a.a", "c.c")), changes.poll(10, TimeUnit.SECONDS));
+            assertEquals("3", properties.require("a.a"));
+            assertEquals("4", properties.require("c.c"));
+        } finally {
+            properties.stopWatchingFiles();
+        }
+    }
+
+    @Test
+    public void changedKeysIncludeKeysReferringToChangedKey() throws Exception {
+        File file = File.createTempFile("oph", ".properties");
+        file.deleteOnExit();
+        Files.write(file.toPath(), "host=https://a\na.a=${host}/a\nb.b=2\n".getBytes());
+        OphProperties properties = new OphProperties(file.getAbsolutePath());
+        List<Set<String>> changes = new ArrayList<>();
+        properties.addChangeListener(changes::add);
+
+        Files.write(file.toPath(), "host=https://b\na.a=${host}/a\nb.b=2\n".getBytes());
+        properties.reload();
+        assertEquals(Collections.singletonList(new HashSet<>(Arrays.asList("host", "a.a"))), changes);
+        assertEquals("https://b/a", properties.require("a.a"));
+    }
 }
@@ -1,11 +1,16 @@
 package fi.vm.sade.suomifi.valtuudet;
 
 import fi.vm.sade.javautils.httpclient.OphHttpClient;
+import fi.vm.sade.javautils.httpcommon.codec.BodyCodec;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Type;
 import java.net.URLEncoder;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
@@ -23,21 +28,34 @@ public class ValtuudetClientImpl implements ValtuudetClient {
     private final static String MAC_ALGORITHM = "HmacSHA256";
 
     private final OphHttpClient httpClient;
-    private final JsonDeserializer jsonDeserializer;
+    private final BodyCodec codec;
     private final ValtuudetProperties properties;
     private final Supplier<String> requestIdProvider;
     private final Supplier<Instant> instantProvider;
 
     public ValtuudetClientImpl(OphHttpClient httpClient, JsonDeserializer jsonDeserializer,
                                ValtuudetProperties properties) {
-        this(httpClient, jsonDeserializer, properties, () -> UUID.randomUUID().toString(), () -> Instant.now());
+        this(httpClient, new JsonDeserializerCodec(jsonDeserializer), properties);
+    }
+
+    /**
+     * Responses are decoded straight from the response stream, e.g. with JacksonBodyCodec
+     */
+    public ValtuudetClientImpl(OphHttpClient httpClient, BodyCodec codec, ValtuudetProperties properties) {
+        this(httpClient, codec, properties, () -> UUID.randomUUID().toString(), () -> Instant.now());
     }
 
     protected ValtuudetClientImpl(OphHttpClient httpClient, JsonDeserializer jsonDeserializer,
                                   ValtuudetProperties properties,
                                   Supplier<String> requestIdProvider, Supplier<Instant> instantProvider) {
+        this(httpClient, new JsonDeserializerCodec(jsonDeserializer), properties, requestIdProvider, instantProvider);
+    }
+
+    protected ValtuudetClientImpl(OphHttpClient httpClient, BodyCodec codec,
+                                  ValtuudetProperties properties,
+                                  Supplier<String> requestIdProvider, Supplier<Instant> instantProvider) {
         this.httpClient = httpClient;
-        this.jsonDeserializer = jsonDeserializer;
+        this.codec = codec;
         this.properties = properties;
         this.requestIdProvider = requestIdProvider;
         this.instantProvider = instantProvider;
@@ -52,8 +70,9 @@ public class ValtuudetClientImpl implements ValtuudetClient {
         SessionDto session = httpClient.get(url)
                 .header(AUTHORIZATION_HEADER, getChecksum(path, instantProvider.get()))
                 .doNotSendOphHeaders()
+                .codec(codec)
                 .expectStatus(200)
-                .execute(response -> jsonDeserializer.deserialize(response.asText(), SessionDto.class));
+                .execute(response -> response.as(SessionDto.class));
         assert session.sessionId != null;
         assert session.userId != null;
         return session;
@@ -88,8 +107,9 @@ public class ValtuudetClientImpl implements ValtuudetClient {
         TokenDto token = httpClient.post(url)
                 .header("Authorization", "Basic " + getCredentials())
                 .doNotSendOphHeaders()
+                .codec(codec)
                 .expectStatus(200)
-                .execute(response -> jsonDeserializer.deserialize(response.asText(), TokenDto.class));
+                .execute(response -> response.as(TokenDto.class));
         assert token != null;
         String accessToken = token.access_token;
         assert accessToken != null;
@@ -105,8 +125,9 @@ public class ValtuudetClientImpl implements ValtuudetClient {
                 .header("Authorization", "Bearer " + accessToken)
                 .header(AUTHORIZATION_HEADER, getChecksum(path, instantProvider.get()))
                 .doNotSendOphHeaders()
+                .codec(codec)
                 .expectStatus(200)
-                .execute(response -> jsonDeserializer.deserialize(response.asText(), PersonDto[].class))[0];
+                .execute(response -> response.as(PersonDto[].class))[0];
         assert person != null;
         assert person.personId != null;
         return person;
@@ -121,8 +142,9 @@ public class ValtuudetClientImpl implements ValtuudetClient {
                 .header("Authorization", "Bearer " + accessToken)
                 .header(AUTHORIZATION_HEADER, getChecksum(path, instantProvider.get()))
                 .doNotSendOphHeaders()
+                .codec(codec)
                 .expectStatus(200)
-                .execute(response -> jsonDeserializer.deserialize(response.asText(), AuthorizationDto.class));
+                .execute(response -> response.as(AuthorizationDto.class));
         assert authorization != null;
         assert authorization.result != null;
         return authorization;
@@ -142,8 +164,9 @@ public class ValtuudetClientImpl implements ValtuudetClient {
                 .header("Authorization", "Bearer " + accessToken)
                 .header(AUTHORIZATION_HEADER, getChecksum(path, instantProvider.get()))
                 .doNotSendOphHeaders()
+                .codec(codec)
                 .expectStatus(200)
-                .execute(response -> jsonDeserializer.deserialize(response.asText(), OrganisationDto[].class))[0];
+                .execute(response -> response.as(OrganisationDto[].class))[0];
         assert organisation != null;
         assert organisation.identifier != null;
         return organisation;
@@ -177,4 +200,22 @@ public class ValtuudetClientImpl implements ValtuudetClient {
         }
     }
 
+    /**
+     * Reads the body to a String for a JsonDeserializer
+     */
+    private static class JsonDeserializerCodec implements BodyCodec {
+        private final JsonDeserializer jsonDeserializer;
+
+        JsonDeserializerCodec(JsonDeserializer jsonDeserializer) {
+            this.jsonDeserializer = jsonDeserializer;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> T decode(InputStream in, Charset charset, Type type) throws IOException {
+            String json = new String(in.readAllBytes(), charset != null ? charset : StandardCharsets.UTF_8);
+            return jsonDeserializer.deserialize(json, (Class<T>) type);
+        }
+    }
+
 }
@@ -4,6 +4,7 @@ import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import fi.vm.sade.javautils.httpclient.OphHttpClient;
 import fi.vm.sade.javautils.httpclient.apache.ApacheOphHttpClient;
+import fi.vm.sade.javautils.httpcommon.codec.JacksonBodyCodec;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -29,16 +30,19 @@ public class ValtuudetClientTest {
     private static final String TEST_CHECKSUM_YPA = String.format("%s z1xDqaSjDwnVniJvis0SqMXeQEBtgBgzozhQqftmY9U=", TEST_CHECKSUM_PREFIX);
     private static final String TEST_AUTHORIZATION_HEADER = "Basic ZWQ0YjdhZTc6YWJjLWFwaS1rZXk=";
 
+    private OphHttpClient httpClient;
+    private ObjectMapper objectMapper;
+    private ValtuudetProperties properties;
     private ValtuudetClient client;
 
     @Before
     public void setup() {
         initJadler();
 
-        OphHttpClient httpClient = ApacheOphHttpClient.createDefaultOphClient("test", null);
-        ObjectMapper objectMapper = new ObjectMapper()
+        httpClient = ApacheOphHttpClient.createDefaultOphClient("test", null);
+        objectMapper = new ObjectMapper()
                 .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-        ValtuudetProperties properties = ValtuudetPropertiesImpl.builder()
+        properties = ValtuudetPropertiesImpl.builder()
                 .host("http://localhost:" + port())
                 .clientId(TEST_CLIENT_ID)
                 .apiKey(TEST_API_KEY)
@@ -160,4 +164,32 @@ public class ValtuudetClientTest {
         assertThat(organisation).returns("2305162-8", t -> t.identifier);
     }
 
+    @Test
+    public void codecDecodesResponses() {
+        ValtuudetClient codecClient = new ValtuudetClientImpl(httpClient, new JacksonBodyCodec(objectMapper), properties,
+                () -> TEST_REQUEST_ID, () -> TEST_INSTANT);
+        onRequest()
+                .havingMethodEqualTo("GET")
+                .havingPathEqualTo(String.format("/service/hpa/user/register/%s/%s", TEST_CLIENT_ID, TEST_HETU))
+                .havingQueryStringEqualTo(String.format("requestId=%s", TEST_REQUEST_ID))
+                .havingHeaderEqualTo("X-AsiointivaltuudetAuthorization", TEST_CHECKSUM_HPA)
+                .respond()
+                .withStatus(200)
+                .withBody(loadAsString("session.json"));
+        onRequest()
+                .havingMethodEqualTo("GET")
+                .havingPathEqualTo("/service/hpa/api/delegate/sessionId123")
+                .havingQueryStringEqualTo(String.format("requestId=%s", TEST_REQUEST_ID))
+                .havingHeaderEqualTo("Authorization", "Bearer accessToken123")
+                .respond()
+                .withStatus(200)
+                .withBody(loadAsString("people.json"));
+
+        SessionDto session = codecClient.createSession(ValtuudetType.PERSON, TEST_HETU);
+        PersonDto person = codecClient.getSelectedPerson(session.sessionId, "accessToken123");
+
+        assertThat(session).returns("sessionId123", t -> t.sessionId).returns("userId123", t -> t.userId);
+        assertThat(person).returns("120508A950F", t -> t.personId);
+    }
+
 }